@@ -0,0 +1,42 @@
+package com.jefftastic.genericbanking.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ *  Runs the benchmarks and writes their results as JSON, so runs
+ *  before and after a change can be compared. Takes up to two
+ *  arguments:<br>
+ *  - A regex of the benchmarks to run, all of them by default<br>
+ *  - A comma-separated list of account counts, e.g. "10000,1000000"<br>
+ *  Results go to bench-results/jmh-[date]-[time].json.
+ */
+
+public class BenchmarkMain {
+    // Declare constants
+    private static final String RESULTS_DIR = "bench-results";
+
+    public static void main(String[] args) throws RunnerException {
+        // Declare variables
+        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        File results = new File(RESULTS_DIR, "jmh-" + stamp + ".json");
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(args.length >= 1 ? args[0] : BenchmarkMain.class.getPackageName() + ".*")
+                .resultFormat(ResultFormatType.JSON)
+                .result(results.getPath());
+
+        if (args.length >= 2)
+            options.param("accounts", args[1].split(","));
+
+        results.getParentFile().mkdirs();
+        new Runner(options.build()).run();
+        System.out.printf("Results were written to \"%s\".\n", results.getPath());
+    }
+}
@@ -0,0 +1,50 @@
+package com.jefftastic.genericbanking.bench;
+
+import com.jefftastic.genericbanking.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Measures how fast accounts can be opened and closed again on top
+ *  of an existing ledger, which exercises slot reuse in the store
+ *  and keeping the name index in sync.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms12g", "-Xmx12g"})
+public class ChurnBenchmark {
+    // Declare class variables
+    @Param({"10000", "1000000", "10000000"})
+    public int accounts;
+    private Ledger ledger;
+
+    /**
+     * Every benchmark thread opens its own made-up accounts.
+     */
+    @State(Scope.Thread)
+    public static class Generator {
+        final SyntheticAccounts accounts = new SyntheticAccounts(Thread.currentThread().getId());
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledger = SyntheticAccounts.ledger(accounts);
+    }
+
+    @Benchmark
+    public boolean openClose(Generator generator) {
+        Account acc = ledger.open(generator.accounts.name(), generator.accounts.address(), 0);
+        return ledger.close(acc.getID());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean openCloseContended(Generator generator) {
+        return openClose(generator);
+    }
+}
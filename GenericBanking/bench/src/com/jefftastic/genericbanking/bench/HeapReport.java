@@ -0,0 +1,98 @@
+package com.jefftastic.genericbanking.bench;
+
+import com.jefftastic.genericbanking.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ *  Measures how much heap each account takes, by loading a CSV file
+ *  of made-up accounts and reading the heap in use after a full GC
+ *  at each of these stages:<br>
+ *  - The accounts loaded into a store, the same way the program does<br>
+ *  - A ledger over the store, which indexes every name<br>
+ *  - The report indexes, built by a first address search<br>
+ *  Takes one argument, the number of accounts (10000000 by default),
+ *  which needs a heap of about 3 GB. Prints bytes per account at each
+ *  stage, and writes them as JSON to bench-results/heap-[date]-[time].json
+ *  so that runs before and after a change can be compared.
+ */
+
+public class HeapReport {
+    // Declare constants
+    private static final String RESULTS_DIR = "bench-results";
+    private static final int DEFAULT_ACCOUNTS = 10_000_000;
+    private static final int GC_ROUNDS = 4;
+
+    public static void main(String[] args) throws Exception {
+        // Declare variables
+        int accounts = args.length >= 1 ? Integer.parseInt(args[0]) : DEFAULT_ACCOUNTS;
+        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        File results = new File(RESULTS_DIR, "heap-" + stamp + ".json");
+
+        System.out.printf("Writing %d accounts...\n", accounts);
+        File csv = SyntheticAccounts.csv(accounts);
+        long start = usedHeap();
+
+        System.out.println("Loading them...");
+        AccountStore store;
+        try { store = Database.constructAccountStore(csv); }
+        finally { SyntheticAccounts.delete(csv.getParentFile()); }
+        long loaded = usedHeap() - start;
+
+        System.out.println("Indexing names...");
+        Ledger ledger = new Ledger(store);
+        long indexed = usedHeap() - start;
+
+        System.out.println("Building report indexes...");
+        ledger.findAddress("");
+        long reports = usedHeap() - start;
+
+        System.out.printf("""
+                %-24s %12s %16s
+                %-24s %12.1f %16.1f
+                %-24s %12.1f %16.1f
+                %-24s %12.1f %16.1f
+                """,
+                "Stage", "MB", "Bytes/account",
+                "Store", loaded / 1e6, loaded / (double) accounts,
+                "+ name index", indexed / 1e6, indexed / (double) accounts,
+                "+ report indexes", reports / 1e6, reports / (double) accounts);
+
+        // Keep everything reachable until the last reading
+        if (ledger.getStore().size() != accounts)
+            throw new IllegalStateException("Expected " + accounts + " accounts");
+
+        results.getParentFile().mkdirs();
+        Files.writeString(results.toPath(), String.format(Locale.ROOT, """
+                {
+                  "accounts": %d,
+                  "storeBytesPerAccount": %.1f,
+                  "nameIndexBytesPerAccount": %.1f,
+                  "reportIndexesBytesPerAccount": %.1f,
+                  "totalBytesPerAccount": %.1f
+                }
+                """, accounts, loaded / (double) accounts, (indexed - loaded) / (double) accounts,
+                (reports - indexed) / (double) accounts, reports / (double) accounts));
+        System.out.printf("Results were written to \"%s\".\n", results.getPath());
+    }
+
+    /**
+     * Reads the heap in use once garbage is collected. A few rounds
+     * are run, since a single System.gc() may leave some behind.
+     * @return The heap in use, in bytes
+     */
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < GC_ROUNDS; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
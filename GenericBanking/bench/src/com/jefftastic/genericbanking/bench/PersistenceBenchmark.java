@@ -0,0 +1,70 @@
+package com.jefftastic.genericbanking.bench;
+
+import com.jefftastic.genericbanking.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Measures how long it takes to move every account between memory
+ *  and disk, through:<br>
+ *  - The parallel CSV loader, and the plain opencsv reader<br>
+ *  - The CSV writer<br>
+ *  - The binary snapshot reader and writer<br>
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms12g", "-Xmx12g"})
+public class PersistenceBenchmark {
+    // Declare class variables
+    @Param({"10000", "1000000", "10000000"})
+    public int accounts;
+    private File csv, snapshot, output;
+    private AccountStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        csv = SyntheticAccounts.csv(accounts);
+        store = Database.constructAccountStore(csv);
+        snapshot = new File(csv.getParentFile(), "adb.snap");
+        output = new File(csv.getParentFile(), "out");
+        if (!Database.saveSnapshot(store, snapshot.getPath()))
+            throw new IllegalStateException("Could not write " + snapshot);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticAccounts.delete(csv.getParentFile());
+    }
+
+    @Benchmark
+    public AccountStore loadCsv() throws Exception {
+        return Database.constructAccountStore(csv);
+    }
+
+    @Benchmark
+    public List<String[]> readCsv() throws Exception {
+        return Database.readCSV(csv);
+    }
+
+    @Benchmark
+    public boolean saveCsv() {
+        return Database.saveCSV(store, output.getPath());
+    }
+
+    @Benchmark
+    public AccountStore loadSnapshot() throws Exception {
+        return Database.constructAccountStoreFromSnapshot(snapshot);
+    }
+
+    @Benchmark
+    public boolean saveSnapshot() {
+        return Database.saveSnapshot(store, output.getPath());
+    }
+}
@@ -0,0 +1,71 @@
+package com.jefftastic.genericbanking.bench;
+
+import com.jefftastic.genericbanking.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Measures deposit and withdraw throughput against random accounts,
+ *  both from one thread and from many threads at once, with and
+ *  without a journal behind the ledger.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms12g", "-Xmx12g"})
+public class PostingBenchmark {
+    // Declare class variables
+    @Param({"10000", "1000000", "10000000"})
+    public int accounts;
+    @Param({"false", "true"})
+    public boolean journaled;
+    private Ledger ledger;
+    private Journal journal;
+    private File dir;
+
+    /**
+     * Every benchmark thread picks its own random accounts.
+     */
+    @State(Scope.Thread)
+    public static class Picker {
+        final SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        AccountStore store = SyntheticAccounts.ledger(accounts).getStore();
+        if (journaled) {
+            dir = Files.createTempDirectory("genericbanking-bench").toFile();
+            journal = Journal.open(new File(dir, "adb.journal").getPath(), store);
+        }
+        ledger = new Ledger(store, journal);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (journal != null) {
+            journal.close();
+            SyntheticAccounts.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public long depositWithdraw(Picker picker) {
+        int id = 1 + picker.random.nextInt(accounts);
+        ledger.deposit(id, 500);
+        return ledger.withdraw(id, 500);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long depositWithdrawContended(Picker picker) {
+        return depositWithdraw(picker);
+    }
+}
@@ -0,0 +1,93 @@
+package com.jefftastic.genericbanking.bench;
+
+import com.jefftastic.genericbanking.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Measures the latency of looking accounts up by name, for:<br>
+ *  - Names that exist, typed in a different case<br>
+ *  - Names that don't exist<br>
+ *  - The first few letters of a name<br>
+ *  - Names that exist, with a typo in each word<br>
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms12g", "-Xmx12g"})
+public class SearchBenchmark {
+    // Declare constants
+    private static final int QUERIES = 4096;
+
+    // Declare class variables
+    @Param({"10000", "1000000", "10000000"})
+    public int accounts;
+    private Ledger ledger;
+    private String[] hits, misses, prefixes, typos;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Declare variables
+        SyntheticAccounts generator = new SyntheticAccounts(1);
+        SplittableRandom random = new SplittableRandom(2);
+
+        // Search for names we know are there, picked before the benchmark
+        ledger = SyntheticAccounts.ledger(accounts);
+        hits = new String[QUERIES];
+        misses = new String[QUERIES];
+        prefixes = new String[QUERIES];
+        typos = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String name = ledger.get(1 + random.nextInt(accounts)).getName();
+            hits[i] = name.toUpperCase();
+            misses[i] = generator.name() + " Jr";
+            prefixes[i] = name.substring(0, Math.min(4, name.length()));
+            typos[i] = typo(name, random);
+        }
+    }
+
+    /**
+     * Swaps one letter of every word of at least 3 letters for another.
+     */
+    private static String typo(String name, SplittableRandom random) {
+        // Declare variables
+        char[] chars = name.toCharArray();
+        int start = 0;
+
+        for (int i = 0; i <= chars.length; i++) {
+            if (i < chars.length && chars[i] != ' ')
+                continue;
+            if (i - start >= 3)
+                chars[start + random.nextInt(i - start)] = (char) ('a' + random.nextInt(26));
+            start = i + 1;
+        }
+        return new String(chars);
+    }
+
+    @Benchmark
+    public List<Account> findHit() {
+        return ledger.find(hits[next++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public List<Account> findMiss() {
+        return ledger.find(misses[next++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public List<Account> findPrefix() {
+        return ledger.findPrefix(prefixes[next++ & (QUERIES - 1)], 25);
+    }
+
+    @Benchmark
+    public List<Account> findSimilar() {
+        return ledger.findSimilar(typos[next++ & (QUERIES - 1)], 25);
+    }
+}
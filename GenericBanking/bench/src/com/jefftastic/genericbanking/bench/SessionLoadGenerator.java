@@ -0,0 +1,256 @@
+package com.jefftastic.genericbanking.bench;
+
+import com.jefftastic.genericbanking.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Drives many simulated users through the real account menu at once,
+ *  each one a session reading scripted input and printing to nowhere.
+ *  Sessions follow one of these flows:<br>
+ *  - Search by name, log in, deposit, withdraw past zero and confirm, log out<br>
+ *  - Search by name, log in and transfer funds to another account<br>
+ *  - Search by the start of a name and leave without logging in<br>
+ *  - Open an account, look at its information and log out<br>
+ *  - Or, if given a script file, replay that file as is<br>
+ *  Takes up to four arguments: the number of sessions (100000 by
+ *  default), the number of users running them at once (64), the number
+ *  of accounts (1000000) and a script file. Reports latency percentiles
+ *  per flow and sessions per second, and writes them as JSON to
+ *  bench-results/load-[date]-[time].json.
+ */
+
+public class SessionLoadGenerator {
+    // Declare constants
+    private static final String RESULTS_DIR = "bench-results";
+    private static final int DEFAULT_SESSIONS = 100_000;
+    private static final int DEFAULT_USERS = 64;
+    private static final int DEFAULT_ACCOUNTS = 1_000_000;
+    private static final int PREFIX_LENGTH = 3;
+
+    /**
+     * The flows a simulated user can follow, and how often.
+     */
+    private enum Flow {
+        LOGIN_DEPOSIT_WITHDRAW(50),
+        LOGIN_TRANSFER(20),
+        PREFIX_SEARCH(20),
+        OPEN_ACCOUNT(10),
+        SCRIPT(0);
+
+        final int weight;
+
+        Flow(int weight) { this.weight = weight; }
+    }
+
+    // Declare class variables
+    private final Ledger ledger;
+    private final String script;
+    private final Map<Flow, LatencyHistogram> latency = new EnumMap<>(Flow.class);
+    // Scanner reads numbers in the default locale, so amounts are written in it too
+    private final Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+
+    /**
+     * SessionLoadGenerator constructor.
+     * @param ledger The ledger every session works on
+     * @param script Input to replay in every session, or null for the built-in flows
+     */
+    public SessionLoadGenerator(Ledger ledger, String script) {
+        this.ledger = ledger;
+        this.script = script;
+        for (Flow flow : Flow.values())
+            latency.put(flow, new LatencyHistogram("flow." + flow.name()));
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Declare variables
+        int sessions = args.length >= 1 ? Integer.parseInt(args[0]) : DEFAULT_SESSIONS;
+        int users = args.length >= 2 ? Integer.parseInt(args[1]) : DEFAULT_USERS;
+        int accounts = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_ACCOUNTS;
+        String script = args.length >= 4 ? Files.readString(Path.of(args[3])) : null;
+        String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        File results = new File(RESULTS_DIR, "load-" + stamp + ".json");
+
+        System.out.printf("Opening %d accounts...\n", accounts);
+        SessionLoadGenerator generator = new SessionLoadGenerator(SyntheticAccounts.ledger(accounts), script);
+        System.out.printf("Running %d sessions from %d users at once...\n", sessions, users);
+        long nanos = generator.run(sessions, users);
+
+        System.out.print(generator.report(sessions, nanos));
+        results.getParentFile().mkdirs();
+        Files.writeString(results.toPath(), generator.json(sessions, users, accounts, nanos));
+        System.out.printf("Results were written to \"%s\".\n", results.getPath());
+    }
+
+    /**
+     * Runs sessions from many users at once until the given number
+     * of sessions have finished.
+     * @param sessions The number of sessions to run
+     * @param users The number of sessions to run at once
+     * @return How long it took, in nanoseconds
+     */
+    public long run(int sessions, int users) throws InterruptedException {
+        // Declare variables
+        AtomicInteger remaining = new AtomicInteger(sessions);
+        ExecutorService pool = Executors.newFixedThreadPool(users);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < users; i++) {
+            long seed = i;
+            pool.execute(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                while (remaining.getAndDecrement() > 0)
+                    runSession(random);
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Runs one session from start to finish. The input is made up
+     * before the clock starts, so only the session itself is timed.
+     */
+    private void runSession(SplittableRandom random) {
+        // Declare variables
+        Flow flow = script != null ? Flow.SCRIPT : pick(random);
+        String input = script != null ? script : input(flow, random);
+        AccountManager session = new AccountManager(ledger,
+                new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(OutputStream.nullOutputStream()));
+        long start = System.nanoTime();
+
+        // Sessions end once they exit, or once their input runs out
+        while (session.update() != -1);
+        latency.get(flow).recordSince(start);
+    }
+
+    private static Flow pick(SplittableRandom random) {
+        int roll = random.nextInt(100);
+        for (Flow flow : Flow.values()) {
+            if (roll < flow.weight)
+                return flow;
+            roll -= flow.weight;
+        }
+        return Flow.LOGIN_DEPOSIT_WITHDRAW;
+    }
+
+    /**
+     * Makes up what a user following a flow would type, one line
+     * per prompt, ending by closing the program.
+     */
+    private String input(Flow flow, SplittableRandom random) {
+        // Declare variables
+        StringBuilder lines = new StringBuilder();
+        int maxID = ledger.getStore().maxID();
+        Account acc = ledger.get(1 + random.nextInt(maxID));
+        // Searching picks the first match, which may be a namesake
+        Account first = acc == null ? null : ledger.find(acc.getName()).get(0);
+
+        if (first == null && flow != Flow.OPEN_ACCOUNT)
+            return "0\n";
+        switch (flow) {
+            case LOGIN_DEPOSIT_WITHDRAW: {
+                long deposit = 100 * (1 + random.nextInt(500));
+                long overdraft = Math.max(0, first.getBalance() + deposit) + 100 * (1 + random.nextInt(500));
+                type(lines, "1", acc.getName(), "1");
+                type(lines, "1", amount(deposit));
+                type(lines, "2", amount(overdraft), "y");
+                type(lines, "5", "y");
+                break;
+            }
+            case LOGIN_TRANSFER: {
+                int to = 1 + random.nextInt(maxID);
+                if (to == first.getID() || ledger.get(to) == null)
+                    return "0\n";
+                long amount = 100 * (1 + random.nextInt(100));
+                type(lines, "1", acc.getName(), "1");
+                type(lines, "3", Integer.toString(to), "y", amount(amount));
+                if (first.getBalance() - amount < 0)
+                    type(lines, "y");
+                type(lines, "5", "y");
+                break;
+            }
+            case PREFIX_SEARCH:
+                type(lines, "1", acc.getName().substring(0, PREFIX_LENGTH), "0");
+                break;
+            case OPEN_ACCOUNT: {
+                SyntheticAccounts made = new SyntheticAccounts(random.nextLong());
+                type(lines, "2", made.name(), made.address(), amount(Math.max(0, made.balance())), "y");
+                type(lines, "4", "5", "y");
+                break;
+            }
+            default:
+                break;
+        }
+
+        type(lines, "0");
+        return lines.toString();
+    }
+
+    private static void type(StringBuilder lines, String... typed) {
+        for (String line : typed)
+            lines.append(line).append('\n');
+    }
+
+    private String amount(long cents) {
+        return String.format(locale, "%.2f", cents / 100.0);
+    }
+
+    /**
+     * @param sessions The number of sessions that were run
+     * @param nanos How long they took
+     * @return A table of latency percentiles per flow, in microseconds
+     */
+    public String report(int sessions, long nanos) {
+        StringBuilder report = new StringBuilder("""
+                %-24s %10s %10s %10s %10s %10s %10s
+                """.formatted("flow", "sessions", "mean", "p50", "p90", "p99", "max"));
+
+        for (LatencyHistogram h : latency.values()) {
+            if (h.getCount() == 0)
+                continue;
+            report.append("%-24s %10d %10.1f %10.1f %10.1f %10.1f %10.1f\n".formatted(
+                    h.getName(), h.getCount(), h.getMeanMicros(), h.getP50Micros(),
+                    h.getP90Micros(), h.getP99Micros(), h.getMaxMicros()));
+        }
+
+        return report.append("%d sessions in %.2f seconds (%.0f sessions/second), latencies in microseconds.\n"
+                .formatted(sessions, nanos / 1e9, sessions / (nanos / 1e9))).toString();
+    }
+
+    private String json(int sessions, int users, int accounts, long nanos) {
+        StringJoiner flows = new StringJoiner(",\n", "[\n", "\n  ]");
+
+        for (LatencyHistogram h : latency.values()) {
+            if (h.getCount() == 0)
+                continue;
+            flows.add(String.format(Locale.ROOT, """
+                        \s   {"flow": "%s", "sessions": %d, "meanMicros": %.1f, "p50Micros": %.1f, "p90Micros": %.1f, "p99Micros": %.1f, "maxMicros": %.1f}""",
+                    h.getName(), h.getCount(), h.getMeanMicros(), h.getP50Micros(),
+                    h.getP90Micros(), h.getP99Micros(), h.getMaxMicros()));
+        }
+
+        // JSON always uses a dot for decimals, whatever the locale
+        return String.format(Locale.ROOT, """
+                {
+                  "sessions": %d,
+                  "users": %d,
+                  "accounts": %d,
+                  "seconds": %.3f,
+                  "sessionsPerSecond": %.1f,
+                  "flows": %s
+                }
+                """, sessions, users, accounts, nanos / 1e9, sessions / (nanos / 1e9), flows);
+    }
+}
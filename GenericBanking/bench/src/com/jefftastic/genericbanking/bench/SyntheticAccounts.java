@@ -0,0 +1,134 @@
+package com.jefftastic.genericbanking.bench;
+
+import com.jefftastic.genericbanking.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+
+/**
+ *  Generates made-up accounts for benchmarks, with:<br>
+ *  - Names built from random syllables, so most names are unique but
+ *    some are shared, like in a real customer base<br>
+ *  - Street addresses, some holding the CSV separator<br>
+ *  - Balances between -1,000.00 and 99,000.00<br>
+ *  Everything comes from a fixed seed, so every run of a benchmark
+ *  works on exactly the same accounts.
+ */
+
+public class SyntheticAccounts {
+    // Declare constants
+    private static final long SEED = 0x6A3F_19C2_5B7E_D041L;
+    private static final String[] SYLLABLES = {
+            "an", "be", "cor", "da", "el", "fi", "gar", "ha", "is", "jo",
+            "ka", "lu", "mar", "ne", "ol", "pe", "qui", "ro", "sa", "ti",
+            "ul", "va", "wen", "xa", "yo", "zu"
+    };
+    private static final String[] STREETS = {
+            "Main St", "Oak Ave", "Pine Rd", "Maple Dr", "Cedar Ln",
+            "Elm St", "Lake Rd", "Hill Ave", "Park Blvd", "River Way"
+    };
+
+    // Declare class variables
+    private final SplittableRandom random;
+
+    /**
+     * SyntheticAccounts constructor, using the fixed seed.
+     */
+    public SyntheticAccounts() {
+        this(SEED);
+    }
+
+    /**
+     * SyntheticAccounts constructor.
+     * @param seed The seed to generate accounts from
+     */
+    public SyntheticAccounts(long seed) {
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * @return A new made-up name, e.g. "Marol Dasati"
+     */
+    public String name() {
+        return capitalize(word(2 + random.nextInt(2))) + " " + capitalize(word(2 + random.nextInt(2)));
+    }
+
+    /**
+     * @return A new made-up address, e.g. "1234 Oak Ave; Apt 5"
+     */
+    public String address() {
+        String street = (1 + random.nextInt(9999)) + " " + STREETS[random.nextInt(STREETS.length)];
+        return random.nextInt(8) == 0 ? street + "; Apt " + (1 + random.nextInt(99)) : street;
+    }
+
+    /**
+     * @return A new made-up balance, in cents
+     */
+    public long balance() {
+        return random.nextLong(-100_000, 9_900_000);
+    }
+
+    /**
+     * Opens the given number of accounts in a ledger, with IDs
+     * counting up from the ledger's next free ID.
+     * @param ledger The ledger to open accounts in
+     * @param count The number of accounts to open
+     */
+    public void fill(Ledger ledger, int count) {
+        for (int i = 0; i < count; i++)
+            ledger.open(name(), address(), balance());
+    }
+
+    /**
+     * Builds a ledger of made-up accounts, with no journal.
+     * @param count The number of accounts to open
+     * @return The new ledger
+     */
+    public static Ledger ledger(int count) {
+        Ledger ledger = new Ledger(new ColumnarAccountStore());
+        new SyntheticAccounts().fill(ledger, count);
+        return ledger;
+    }
+
+    /**
+     * Writes made-up accounts to a CSV file in a fresh temporary
+     * directory. Benchmarks should hand the directory to
+     * {@link #delete(File)} once they are done with it.
+     * @param count The number of accounts to write
+     * @return The CSV file
+     */
+    public static File csv(int count) throws IOException {
+        // Declare variables
+        File dir = Files.createTempDirectory("genericbanking-bench").toFile();
+        File file = new File(dir, "adb.csv");
+
+        if (!Database.saveCSV(ledger(count).getStore(), file.getPath()))
+            throw new IOException("Could not write " + file);
+        return file;
+    }
+
+    /**
+     * Deletes a temporary directory and every file in it.
+     * @param dir The directory to delete
+     */
+    public static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private String word(int syllables) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < syllables; i++)
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        return word.toString();
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
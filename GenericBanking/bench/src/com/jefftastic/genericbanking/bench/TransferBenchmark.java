@@ -0,0 +1,69 @@
+package com.jefftastic.genericbanking.bench;
+
+import com.jefftastic.genericbanking.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Measures transfer throughput from many threads at once, with every
+ *  transfer going between a small set of hot accounts, so threads
+ *  keep fighting over the same stripe locks. Transfers are made one
+ *  at a time and in batches through {@link Ledger#transferAll}.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(8)
+public class TransferBenchmark {
+    // Declare constants
+    private static final int ACCOUNTS = 1_000_000;
+    private static final int BATCH_SIZE = 1024;
+
+    // Declare class variables
+    @Param({"2", "16", "1000000"})
+    public int hotAccounts;
+    private Ledger ledger;
+
+    /**
+     * Every benchmark thread picks its own random transfers.
+     */
+    @State(Scope.Thread)
+    public static class Picker {
+        final SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+        final List<Ledger.Transfer> batch = new ArrayList<>(BATCH_SIZE);
+
+        Ledger.Transfer next(int hotAccounts) {
+            int from = 1 + random.nextInt(hotAccounts);
+            int to = 1 + random.nextInt(hotAccounts - 1);
+            return new Ledger.Transfer(from, to >= from ? to + 1 : to, 1 + random.nextInt(10_000));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ledger = SyntheticAccounts.ledger(ACCOUNTS);
+    }
+
+    @Benchmark
+    public long transfer(Picker picker) {
+        Ledger.Transfer t = picker.next(hotAccounts);
+        return ledger.transfer(t.from(), t.to(), t.amount());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long[] transferAll(Picker picker) {
+        picker.batch.clear();
+        for (int i = 0; i < BATCH_SIZE; i++)
+            picker.batch.add(picker.next(hotAccounts));
+        return ledger.transferAll(picker.batch);
+    }
+}
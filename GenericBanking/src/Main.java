@@ -1,26 +1,156 @@
 import com.jefftastic.genericbanking.*;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.*;
 
 public class Main {
+    // Declare constants
+    private static final long METRICS_PERIOD_SECONDS = 60;
+    private static final String CHECKPOINT_USAGE = """
+            Usage: --checkpoint seconds
+              Saves in the background every so many seconds, or never for 0.
+            """;
+
     public static void main(String[] args) {
         // Declare variables
         AccountManager aM;
-        List<Account> accounts = new ArrayList<>();
+        Journal journal;
+        HistoryStore history;
+        AccountStore accounts;
+        Checkpointer checkpointer = null;
+        ChangeFileSink changeSink = null;
+        long checkpointSeconds = Checkpointer.DEFAULT_INTERVAL_SECONDS;
         boolean isRunning = true;
 
-        // Attempt to load existing data
+        // Dump metrics to a file every so often, if asked to
+        List<String> argList = new ArrayList<>(Arrays.asList(args));
+        int metricsAt = argList.indexOf("--metrics");
+        if (metricsAt >= 0 && metricsAt + 1 < argList.size()) {
+            Metrics.startDump(Path.of(argList.get(metricsAt + 1)), METRICS_PERIOD_SECONDS);
+            argList.subList(metricsAt, metricsAt + 2).clear();
+        }
+
+        // Checkpoint at a different interval, or not at all for 0
+        int checkpointAt = argList.indexOf("--checkpoint");
+        if (checkpointAt >= 0) {
+            try {
+                checkpointSeconds = checkpointAt + 1 < argList.size()
+                        ? Long.parseLong(argList.get(checkpointAt + 1)) : -1;
+            } catch (NumberFormatException e) {
+                checkpointSeconds = -1;
+            }
+            if (checkpointSeconds < 0) {
+                System.out.print(CHECKPOINT_USAGE);
+                System.exit(1);
+            }
+            argList.subList(checkpointAt, checkpointAt + 2).clear();
+        }
+
+        // Append every change to a file, if asked to
+        Path changesPath = null;
+        int changesAt = argList.indexOf("--changes");
+        if (changesAt >= 0 && changesAt + 1 < argList.size()) {
+            changesPath = Path.of(argList.get(changesAt + 1));
+            argList.subList(changesAt, changesAt + 2).clear();
+        }
+
+        // Only read accounts as they're needed, if asked to
+        boolean lazy = argList.remove("--lazy");
+        args = argList.toArray(new String[0]);
+
+        // Attempt to load existing data, then replay anything that
+        // happened after it was saved
         try {
-            File file = new File(Database.DEFAULT_PATH);
-            if (file.exists())
-                 accounts = Database.constructAccountList(file);
+            accounts = load(lazy);
+            journal = Journal.open(Journal.DEFAULT_PATH, accounts);
+            history = HistoryStore.open(new File(HistoryStore.DEFAULT_PATH));
         } catch (Exception e) { throw new RuntimeException(e); }
-        aM = new AccountManager(accounts);
+        aM = new AccountManager(new Ledger(accounts, journal, history));
+
+        // Save in the background while running, so exiting only saves what's left
+        if (checkpointSeconds > 0)
+            checkpointer = new Checkpointer(aM.getLedger(), journal, new File(Database.DATA_PATH), checkpointSeconds);
+
+        // Batch runs post without pause, so the sink checks back every
+        // so often instead of being woken by every posting; sessions
+        // post now and then, so it sleeps until woken
+        if (changesPath != null) {
+            try {
+                changeSink = new ChangeFileSink(changesPath);
+                aM.getLedger().changes().subscribe("file", changeSink,
+                        args.length >= 1 && args[0].equals("--batch")
+                                ? ChangeStream.WaitStrategy.SLEEPING : ChangeStream.WaitStrategy.BLOCKING);
+            } catch (Exception e) {
+                System.out.printf("Could not open \"%s\" to write changes to, they won't be written.\n", changesPath);
+                e.printStackTrace(System.out);
+            }
+        }
+
+        // Run a transaction file instead of prompting, if given one
+        if (args.length >= 2 && args[0].equals("--batch")) {
+            File input = new File(args[1]);
+            File output = new File(args.length >= 3 ? args[2] : args[1] + ".results");
+            try {
+                BatchProcessor.Result result = new BatchProcessor(aM.getLedger()).run(input, output);
+                System.out.printf("""
+                        Applied %d and rejected %d transactions in %.2f seconds (%.0f transactions/second).
+                        Results were written to "%s".
+                        """, result.applied(), result.rejected(), result.nanos() / 1e9,
+                        result.perSecond(), output.getPath());
+            } catch (Exception e) {
+                System.out.println("Could not finish the batch run, anything applied so far will be saved.");
+                e.printStackTrace(System.out);
+            }
+            isRunning = false;
+        }
+
+        // Merge accounts from another CSV file into ours, if asked to
+        if (args.length >= 2 && args[0].equals("--import")) {
+            File input = new File(args[1]);
+            File output = new File(args.length >= 3 ? args[2] : args[1] + ".conflicts");
+            try {
+                CsvImporter.Result result = new CsvImporter(aM.getLedger()).run(input, output);
+                System.out.printf("""
+                        Opened %d, updated %d and left %d accounts as they were in %.2f seconds, sorting %d runs.
+                        %d conflicts were written to "%s".
+                        """, result.inserted(), result.updated(), result.unchanged(), result.nanos() / 1e9,
+                        result.runs(), result.conflicts(), output.getPath());
+            } catch (Exception e) {
+                System.out.println("Could not finish the import, anything imported so far will be saved.");
+                e.printStackTrace(System.out);
+            }
+            isRunning = false;
+        }
+
+        // Export every account to a CSV file, if asked to
+        if (args.length >= 1 && args[0].equals("--export")) {
+            String path = args.length >= 2 ? args[1] : Database.DEFAULT_PATH;
+            try (AccountView view = aM.getLedger().snapshot()) {
+                if (Database.saveCSV(view, path))
+                    System.out.printf("Exported %d accounts to \"%s\".\n", view.size(), path);
+            }
+            isRunning = false;
+        }
+
+        // Print a report about the accounts, if asked to
+        if (args.length >= 1 && args[0].equals("--report")) {
+            Reports.run(aM.getLedger(), Arrays.copyOfRange(args, 1, args.length), System.out);
+            isRunning = false;
+        }
+
+        // Serve sessions over TCP until told to stop, if asked to
+        if (args.length >= 1 && args[0].equals("--server")) {
+            int port = args.length >= 2 ? Integer.parseInt(args[1]) : BankServer.DEFAULT_PORT;
+            try (BankServer server = new BankServer(aM.getLedger(), port)) {
+                System.out.printf("Serving sessions on port %d, press enter to stop.\n", server.getPort());
+                new Scanner(System.in).nextLine();
+            } catch (Exception e) {
+                System.out.println("The server stopped unexpectedly, saving what we have.");
+                e.printStackTrace(System.out);
+            }
+            isRunning = false;
+        }
 
         // Main loop
         while (isRunning) {
@@ -29,10 +159,59 @@ public class Main {
                 isRunning = false;
         }
 
-        // Save data to csv file here
-        Database.saveCSV(aM.getAccounts(), Database.DEFAULT_PATH);
+        if (checkpointer != null)
+            checkpointer.close();
+        if (changeSink != null) {
+            aM.getLedger().changes().close();
+            try { changeSink.close(); }
+            catch (Exception e) {
+                System.out.println("Could not finish writing changes, the latest ones may be lost.");
+                e.printStackTrace(System.out);
+            }
+        }
+        save(aM.getAccounts(), journal);
+        try { history.close(); }
+        catch (Exception e) {
+            System.out.println("Could not save the account history, the latest entries may be lost.");
+            e.printStackTrace(System.out);
+        }
+        Metrics.stopDump();
 
         // Stop program
         System.exit(0);
     }
+
+    /**
+     * Loads the accounts, preferring the data directory, then the
+     * snapshot saved by older versions, then the CSV. A lazy load
+     * pages accounts in from the data directory as they're needed.
+     * Accounts from anywhere else are split into shards right away,
+     * so every save after the first only writes what changed.
+     */
+    private static AccountStore load(boolean lazy) throws Exception {
+        File data = new File(Database.DATA_PATH);
+        File snapshot = new File(Database.SNAPSHOT_PATH);
+        File file = new File(Database.DEFAULT_PATH);
+        if (lazy && Database.hasShards(data))
+            return Database.openPagedAccountStore(data);
+        else if (Database.hasShards(data))
+            return Database.constructAccountStoreFromShards(data);
+        else if (snapshot.exists())
+            return Database.shardAccountStore(Database.constructAccountStoreFromSnapshot(snapshot));
+        else if (file.exists())
+            return Database.shardAccountStore(Database.constructAccountStore(file));
+        return Database.shardAccountStore(new ColumnarAccountStore());
+    }
+
+    /**
+     * Saves whatever changed to the data directory, and only lets go
+     * of the journal once everything in it is saved.
+     */
+    private static void save(AccountStore accounts, Journal journal) {
+        try {
+            if (Database.saveShards(accounts, Database.DATA_PATH))
+                journal.reset();
+            journal.close();
+        } catch (Exception e) { throw new RuntimeException(e); }
+    }
 }
@@ -2,29 +2,42 @@ package com.jefftastic.genericbanking;
 
 /**
  *  Holds information about an account, such as:<br>
+ *  - Account ID<br>
  *  - First Name<br>
  *  - Last Name<br>
  *  - Address<br>
  *  - and Balance<br>
+ *  Accounts are copies of what an account store held at the time
+ *  they were read, and never change. Balances go through the ledger.
+ * @see AccountStore
+ * @see Ledger
  */
 
 public class Account {
-    private String name, address;
-    private double balance;
+    private final int id;
+    private final String name, address;
+    private final long balance;
 
     /**
      * Constructs a new Account object based on the provided
      * args.
+     * @param accID The persistent ID of the account
      * @param accName The name of the account
      * @param accAddress The address associated with the account
-     * @param accBalance The starting balance of the account
+     * @param accBalance The balance of the account, in cents
      */
-    Account(String accName, String accAddress, double accBalance) {
+    Account(int accID, String accName, String accAddress, long accBalance) {
+        this.id = accID;
         this.name = accName;
         this.address = accAddress;
         this.balance = accBalance;
     }
 
+    /**
+     * @return The persistent ID of this account
+     */
+    public int getID() {return this.id;}
+
     /**
      * @return The name of this account
      */
@@ -36,15 +49,7 @@ public class Account {
     public String getAddress() {return this.address;}
 
     /**
-     * @return The current balance of this account
+     * @return The balance of this account, in cents
      */
-    public double getBalance() {return this.balance;}
-
-    /**
-     * Sets the balance of this account.
-     * @param newBalance The new balance.
-     */
-    public void setBalance(double newBalance) {
-        this.balance = newBalance;
-    }
+    public long getBalance() {return this.balance;}
 }
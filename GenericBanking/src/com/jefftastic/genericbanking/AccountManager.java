@@ -1,13 +1,24 @@
 package com.jefftastic.genericbanking;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 /**
  *  Manages a list of accounts, in ways such as:<br>
  *  - Withdrawing/depositing money into accounts<br>
+ *  - Transferring money to other accounts<br>
  *  - Opening new bank accounts<br>
  *  - Closing existing bank accounts<br>
  *  - Searching through the list of accounts by name<br>
+ *  Each manager is one session, with its own input and output.
+ *  Any number of sessions can share a ledger.
  * @see Account
  */
 
@@ -26,22 +37,29 @@ public class AccountManager {
             >""",
             """
             
-            Hello %s! You currently have $%.2f.
-            Please enter an option from below. (0-5)
+            Hello %s! You currently have $%s.
+            Please enter an option from below. (0-7)
             
             Fund Management
             [1] - Deposit funds
             [2] - Withdraw funds
+            [3] - Transfer funds
             
             Account Settings
-            [3] - Account information
-            [4] - Log-out
-            [5] - Close this account
+            [4] - Account information
+            [5] - Log-out
+            [6] - Close this account
+            [7] - Account history
             
             [0] - Close program
             
             >""",
     };
+    private static final int PREFIX_SEARCH_LIMIT = 25;
+    private static final int SIMILAR_SEARCH_LIMIT = 25;
+    private static final int HISTORY_COUNT = 10;
+    private static final int HISTORY_RANGE_LIMIT = 1000;
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     /**
      * Set of constants that determine how the program will update.
@@ -54,7 +72,8 @@ public class AccountManager {
         LOGIN_IDLE,
         /**
          * Searches for a full name provided by end user, and
-         * provides a list of exact matches to choose from.
+         * provides a list of exact matches to choose from, or
+         * of similar names if nothing matches exactly.
          */
         LOGIN_SEARCH,
         /**
@@ -74,6 +93,11 @@ public class AccountManager {
          * Puts user through fund withdraw process.
          */
         ACCOUNT_WITHDRAW,
+        /**
+         * Puts user through transferring funds to
+         * another account.
+         */
+        ACCOUNT_TRANSFER,
         /**
          * Prints information about the current account
          * to the console.
@@ -88,35 +112,98 @@ public class AccountManager {
          * the existing list of accounts
          */
         ACCOUNT_CLOSE,
+        /**
+         * Prints the latest entries in the history of the
+         * current account, or those between two dates.
+         */
+        ACCOUNT_HISTORY,
         /**
          * Closes the program.
          */
         EXIT_PROGRAM
     }
 
+    // How long each mode takes to handle, leaving out waiting on the user
+    private static final LatencyHistogram[] MODE_LATENCY = new LatencyHistogram[AccessMode.values().length];
+    static {
+        for (AccessMode mode : AccessMode.values())
+            MODE_LATENCY[mode.ordinal()] = Metrics.histogram("mode." + mode.name());
+    }
+
     // Declare class variables
-    private List<Account> accounts = new ArrayList<>();
+    private final Ledger ledger;
+    private final Scanner input;
+    private final PrintStream output;
     private Account currentAccount;
-    private Scanner input = new Scanner(System.in);
     private AccessMode mode = AccessMode.LOGIN_IDLE;
+    private long waitingNanos;
+
+    /**
+     * Account manager constructor.
+     * @param ledger Ledger to share with other sessions
+     * @param in Stream this session reads user input from
+     * @param out Stream this session prints prompts to
+     */
+    public AccountManager(Ledger ledger, InputStream in, PrintStream out) {
+        this.ledger = ledger;
+        this.input = new Scanner(in);
+        this.output = out;
+    }
+
+    /**
+     * Account manager constructor, using the console.
+     * @param ledger Ledger to share with other sessions
+     */
+    public AccountManager(Ledger ledger) {
+        this(ledger, System.in, System.out);
+    }
 
     /**
      * Account manager constructor.
-     * @param accounts Account list to initialize with
+     * @param accounts Account store to initialize with
+     * @param journal Journal to record every mutation in
      */
-    public AccountManager(List<Account> accounts) {
-        this.accounts = accounts;
+    public AccountManager(AccountStore accounts, Journal journal) {
+        this(new Ledger(accounts, journal));
     }
 
     /**
      * Account manager constructor.
+     * @param accounts Account store to initialize with
      */
-    public AccountManager() {}
+    public AccountManager(AccountStore accounts) {
+        this(new Ledger(accounts));
+    }
+
+    /**
+     * Account manager constructor.
+     */
+    public AccountManager() {
+        this(new ColumnarAccountStore());
+    }
 
     /**
      * Main update loop.
+     * @return -1 once the session is over, either because the user
+     *         asked to close it or because their input ran out
      */
     public int update() {
+        // Declare variables
+        AccessMode handled = mode;
+        long start = System.nanoTime();
+
+        waitingNanos = 0;
+        try {
+            step();
+        } catch (NoSuchElementException e) {
+            // Input ran out, e.g. the user hung up
+            mode = AccessMode.EXIT_PROGRAM;
+        }
+        MODE_LATENCY[handled.ordinal()].record(System.nanoTime() - start - waitingNanos);
+        return mode == AccessMode.EXIT_PROGRAM ? -1 : 0;
+    }
+
+    private void step() {
         switch (mode) {
             case LOGIN_IDLE:            loginIdleLoop();                break;
             case LOGIN_SEARCH:          loginSearchLoop();              break;
@@ -124,12 +211,13 @@ public class AccountManager {
             case ACCOUNT_IDLE:          accountIdleLoop();              break;
             case ACCOUNT_DEPOSIT:       accountDepositLoop();           break;
             case ACCOUNT_WITHDRAW:      accountWithdrawLoop();          break;
+            case ACCOUNT_TRANSFER:      accountTransferLoop();          break;
             case ACCOUNT_INFO:          accountInfoLoop();              break;
             case ACCOUNT_LOGOUT:        accountLogoutLoop();            break;
             case ACCOUNT_CLOSE:         accountCloseLoop();             break;
-            case EXIT_PROGRAM:          return -1;
+            case ACCOUNT_HISTORY:       accountHistoryLoop();           break;
+            case EXIT_PROGRAM:                                          break;
         }
-        return 0;
     }
 
     private void loginIdleLoop() {
@@ -150,7 +238,7 @@ public class AccountManager {
             case 1:     mode = AccessMode.LOGIN_SEARCH;                 break;
             case 2:     mode = AccessMode.LOGIN_OPEN_ACCOUNT;           break;
             default:
-                System.out.println("\nInvalid input, please try again.\n");
+                output.println("\nInvalid input, please try again.\n");
                 break;
         }
     }
@@ -165,11 +253,24 @@ public class AccountManager {
         nextStr = promptUserLine("\nPlease input your full name here.\n>", input);
         foundAccounts = findAccount(nextStr);
 
+        // Fall back to names with a typo or two, then to names
+        // starting with the input, if nothing matched exactly
+        if (foundAccounts.isEmpty() && nextStr != null && !nextStr.isEmpty()) {
+            foundAccounts = ledger.findSimilar(nextStr, SIMILAR_SEARCH_LIMIT);
+            if (!foundAccounts.isEmpty())
+                output.println("\nNo exact matches, showing similar names instead.");
+        }
+        if (foundAccounts.isEmpty() && nextStr != null && !nextStr.isEmpty()) {
+            foundAccounts = ledger.findPrefix(nextStr, PREFIX_SEARCH_LIMIT);
+            if (!foundAccounts.isEmpty())
+                output.println("\nNo exact matches, showing names starting with your input instead.");
+        }
+
         // Now print accounts in a list and ask user to pick one
-        System.out.println("Here is the list of accounts that we found:\n");
+        output.println("Here is the list of accounts that we found:\n");
         for (int i = 0; i < foundAccounts.size(); i++) {
             Account acc = foundAccounts.get(i);
-            System.out.printf(
+            output.printf(
                     "[%d] - %-30s %30s\n",
                     i + 1,
                     acc.getName(),
@@ -191,9 +292,8 @@ public class AccountManager {
         // Open and confirm account
         acc = openAndConfirmAccount();
 
-        // Add this to list, and set as current
-        accounts.add(acc);
-        currentAccount = acc;
+        // Add this to the ledger, and set as current
+        currentAccount = ledger.open(acc.getName(), acc.getAddress(), acc.getBalance());
         mode = AccessMode.ACCOUNT_IDLE;
     }
 
@@ -203,23 +303,25 @@ public class AccountManager {
 
         // If we DON'T have a current account, switch
         // to LOGIN_IDLE instead.
-        if (currentAccount == null) {
+        if (!refreshCurrentAccount()) {
             mode = AccessMode.LOGIN_IDLE;
             return;
         }
 
         // Print generic prompt and wait for response
         next = promptUserInt(manMesg[1].formatted(
-                currentAccount.getName(), currentAccount.getBalance()), input);
+                currentAccount.getName(), Money.format(currentAccount.getBalance())), input);
         switch (next) {
             case 0:     mode = AccessMode.EXIT_PROGRAM;                 break;
             case 1:     mode = AccessMode.ACCOUNT_DEPOSIT;              break;
             case 2:     mode = AccessMode.ACCOUNT_WITHDRAW;             break;
-            case 3:     mode = AccessMode.ACCOUNT_INFO;                 break;
-            case 4:     mode = AccessMode.ACCOUNT_LOGOUT;               break;
-            case 5:     mode = AccessMode.ACCOUNT_CLOSE;                break;
+            case 3:     mode = AccessMode.ACCOUNT_TRANSFER;             break;
+            case 4:     mode = AccessMode.ACCOUNT_INFO;                 break;
+            case 5:     mode = AccessMode.ACCOUNT_LOGOUT;               break;
+            case 6:     mode = AccessMode.ACCOUNT_CLOSE;                break;
+            case 7:     mode = AccessMode.ACCOUNT_HISTORY;              break;
             default:
-                System.out.println("\nInvalid input, please try again.\n");
+                output.println("\nInvalid input, please try again.\n");
                 break;
         }
     }
@@ -229,17 +331,22 @@ public class AccountManager {
         double amount = promptUserDouble("\nHow much would you like to deposit?\n$", input);
 
         // Deposit amount and continue
-        currentAccount.setBalance(currentAccount.getBalance() + amount);
+        if (!Double.isNaN(amount))
+            checkStillOpen(ledger.deposit(currentAccount.getID(), Money.fromDouble(amount)));
         mode = AccessMode.ACCOUNT_IDLE;
     }
 
     private void accountWithdrawLoop() {
         // Ask for withdraw amount
         double amount = promptUserDouble("\nHow much would you like to withdraw?\n$", input);
-        double target = currentAccount.getBalance() - amount;
+        if (!refreshCurrentAccount()) {
+            mode = AccessMode.LOGIN_IDLE;
+            return;
+        }
+        long target = currentAccount.getBalance() - Money.fromDouble(amount);
 
         // Prompt again if it goes into the negatives
-        if (target < 0.0d) {
+        if (target < 0) {
             String confirmation = promptUserLine("""
                     Are you sure you wish to withdraw %.2f?
                     This transaction can put your account into the negatives. (Y/N)
@@ -252,22 +359,83 @@ public class AccountManager {
             }
         }
 
-        // Deposit amount and continue
-        currentAccount.setBalance(target);
+        // Withdraw amount and continue
+        if (!Double.isNaN(amount))
+            checkStillOpen(ledger.withdraw(currentAccount.getID(), Money.fromDouble(amount)));
+        mode = AccessMode.ACCOUNT_IDLE;
+    }
+
+    private void accountTransferLoop() {
+        // Declare variables
+        Account recipient;
+        double amount;
+
+        // Ask who to send funds to, and make sure it's who they meant
+        int recipientID = promptUserInt("\nWhat is the account number you would like to transfer to?\n>", input);
+        recipient = recipientID == currentAccount.getID() ? null : ledger.get(recipientID);
+        if (recipient == null) {
+            output.println("\nNo other account has that number.\n");
+            mode = AccessMode.ACCOUNT_IDLE;
+            return;
+        }
+        String confirmation = promptUserLine(
+                "\nTransfer to %s? (Y/N)\n>".formatted(recipient.getName()),
+                input
+        );
+        if (!confirmation.toLowerCase(Locale.ROOT).equals("y")) {
+            mode = AccessMode.ACCOUNT_IDLE;
+            return;
+        }
+
+        // Ask for transfer amount
+        amount = promptUserDouble("\nHow much would you like to transfer?\n$", input);
+        if (Double.isNaN(amount) || amount <= 0 || !refreshCurrentAccount()) {
+            mode = AccessMode.ACCOUNT_IDLE;
+            return;
+        }
+
+        // Prompt again if it goes into the negatives
+        if (currentAccount.getBalance() - Money.fromDouble(amount) < 0) {
+            confirmation = promptUserLine("""
+                    Are you sure you wish to transfer %.2f?
+                    This transaction can put your account into the negatives. (Y/N)
+                    >""".formatted(amount),
+                    input
+            );
+            if (!confirmation.toLowerCase(Locale.ROOT).equals("y")) {
+                mode = AccessMode.ACCOUNT_IDLE;
+                return;
+            }
+        }
+
+        // Transfer amount and continue, unless either side was closed meanwhile
+        long balance = ledger.transfer(currentAccount.getID(), recipient.getID(), Money.fromDouble(amount));
+        if (balance == Ledger.CLOSED && refreshCurrentAccount())
+            output.println("\nThe other account has been closed, nothing was transferred.\n");
+        else
+            checkStillOpen(balance);
         mode = AccessMode.ACCOUNT_IDLE;
     }
 
     private void accountInfoLoop() {
+        // Make sure we show the latest balance
+        if (!refreshCurrentAccount()) {
+            mode = AccessMode.LOGIN_IDLE;
+            return;
+        }
+
         // Print account information
-        System.out.printf("""
+        output.printf("""
             
+            Account # %28d
             Name    %30s
             Address %30s
             Funds   %30s
             """,
+            currentAccount.getID(),
             currentAccount.getName(),
             currentAccount.getAddress(),
-            currentAccount.getBalance()
+            Money.format(currentAccount.getBalance())
         );
 
         // Go back to normal screen
@@ -291,9 +459,8 @@ public class AccountManager {
                 input
         );
         if (response.toLowerCase(Locale.ROOT).equals("y")) {
-            // Find the account in list, then remove
-            int index = findAccountID(currentAccount);
-            accounts.remove(index);
+            // Remove the account from the ledger
+            ledger.close(currentAccount.getID());
 
             // Now logout
             currentAccount = null;
@@ -301,6 +468,57 @@ public class AccountManager {
         }
     }
 
+    private void accountHistoryLoop() {
+        // Declare variables
+        List<HistoryStore.Entry> entries;
+        ZoneId zone = ZoneId.systemDefault();
+
+        // Ask for a number of entries, or two dates
+        String request = promptUserLine("""
+
+                How many of the latest entries would you like to see? (%d by default)
+                Or enter two dates to see everything between them, such as 2024-01-01 2024-01-31.
+                >""".formatted(HISTORY_COUNT),
+                input
+        ).trim();
+        try {
+            String[] dates = request.split("\\s+");
+            if (dates.length == 2) {
+                long from = LocalDate.parse(dates[0]).atStartOfDay(zone).toInstant().toEpochMilli();
+                long to = LocalDate.parse(dates[1]).plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+                entries = ledger.history(currentAccount.getID(), from, to, HISTORY_RANGE_LIMIT);
+            } else {
+                int count = request.isEmpty() ? HISTORY_COUNT : Integer.parseInt(request);
+                entries = ledger.history(currentAccount.getID(), count);
+                Collections.reverse(entries);
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            output.println("\nInvalid input, please try again.\n");
+            mode = AccessMode.ACCOUNT_IDLE;
+            return;
+        } catch (IOException e) {
+            output.println("\nThe account history could not be read, please try again later.\n");
+            mode = AccessMode.ACCOUNT_IDLE;
+            return;
+        }
+
+        // Print entries, oldest first
+        if (entries.isEmpty())
+            output.println("\nNo history was found for this account.\n");
+        else {
+            output.printf("\n%-19s  %-24s %14s %14s\n", "Date", "Entry", "Amount", "Balance");
+            for (HistoryStore.Entry entry : entries)
+                output.printf("%-19s  %-24s %14s %14s\n",
+                        HISTORY_TIME.format(Instant.ofEpochMilli(entry.time()).atZone(zone)),
+                        describe(entry),
+                        entry.kind() == HistoryStore.Kind.CLOSE ? "" : Money.format(entry.amount()),
+                        Money.format(entry.balance()));
+        }
+
+        // Go back to normal screen
+        mode = AccessMode.ACCOUNT_IDLE;
+    }
+
     /**
      * Guides the user through the entire process of opening an account
      * and confirming the information within. If the information is
@@ -317,19 +535,19 @@ public class AccountManager {
             newAccount = openAccount();
 
             // Now prompt user about their details
-            System.out.printf(
+            output.printf(
                     """
                     Name provided : %s
                     Address provided : %s
-                    Balance deposited : $%.2f
+                    Balance deposited : $%s
                     
                     Is this information correct? (Y/N)
                     """,
                     newAccount.getName(),
                     newAccount.getAddress(),
-                    newAccount.getBalance()
+                    Money.format(newAccount.getBalance())
             );
-            String response = input.nextLine();
+            String response = nextLine(input);
 
             // Depending on response, break loop
             if (response.toLowerCase(Locale.ROOT).equals("y")) {
@@ -360,7 +578,8 @@ public class AccountManager {
         while (Double.isNaN(inputBalance))
             inputBalance = promptUserDouble("\nHow many funds would you like to put in for your initial deposit?\n$", input);
 
-        newAccount = new Account(inputName, inputAddress, inputBalance);
+        // The ledger hands out the real ID once the account is confirmed
+        newAccount = new Account(0, inputName, inputAddress, Money.fromDouble(inputBalance));
         return newAccount;
     }
 
@@ -369,10 +588,11 @@ public class AccountManager {
      * @param prompt Prompt to print in console
      * @param in Scanner to pull input from
      * @return User's input as String
+     * @throws NoSuchElementException If the input has run out
      */
     private String promptUserLine(String prompt, Scanner in) {
-        System.out.print(prompt);
-        return in.hasNextLine() ? in.nextLine() : null;
+        output.print(prompt);
+        return nextLine(in);
     }
 
     /**
@@ -386,12 +606,15 @@ public class AccountManager {
         double result;
 
         // Prompt and get input
-        System.out.print(prompt);
+        output.print(prompt);
+        output.flush();
+        long start = System.nanoTime();
         try { result = in.nextDouble(); }
         catch (InputMismatchException e) {
             in.nextLine();
             return Double.NaN;
         }
+        finally { waitingNanos += System.nanoTime() - start; }
 
         // Clean buffer and return input
         in.nextLine();
@@ -409,18 +632,35 @@ public class AccountManager {
         int result;
 
         // Prompt and get input
-        System.out.print(prompt);
+        output.print(prompt);
+        output.flush();
+        long start = System.nanoTime();
         try { result = in.nextInt(); }
         catch (InputMismatchException e) {
             in.nextLine();
             return Integer.MIN_VALUE;
         }
+        finally { waitingNanos += System.nanoTime() - start; }
 
         // Clean buffer and return input
         in.nextLine();
         return result;
     }
 
+    /**
+     * Flushes any prompt out to the user and waits for their next
+     * line. The wait isn't counted towards the handler's latency.
+     * @param in Scanner to pull input from
+     * @return User's input as String
+     * @throws NoSuchElementException If the input has run out
+     */
+    private String nextLine(Scanner in) {
+        output.flush();
+        long start = System.nanoTime();
+        try { return in.nextLine(); }
+        finally { waitingNanos += System.nanoTime() - start; }
+    }
+
     /**
      * Provides a list of accounts in this manager's
      * list based on the provided name
@@ -428,36 +668,68 @@ public class AccountManager {
      * @return The found account
      */
     private List<Account> findAccount(String name) {
-        // Declare variables
-        List<Account> foundAccounts = new ArrayList<>();
+        // Nothing to look up if the user gave us nothing
+        if (name == null)
+            return new ArrayList<>();
 
-        // Iterate through accounts and create a list of matches
-        for (Account acc : accounts) {
-            if (acc.getName().equalsIgnoreCase(name))
-                foundAccounts.add(acc);
+        return ledger.find(name);
+    }
+
+    /**
+     * Describes an entry of an account's history to the user.
+     * @param entry The entry to describe
+     * @return What the entry records, in words
+     */
+    private static String describe(HistoryStore.Entry entry) {
+        switch (entry.kind()) {
+            case OPEN:          return "Account opened";
+            case CLOSE:         return "Account closed";
+            case DEPOSIT:       return "Deposit";
+            case WITHDRAW:      return "Withdrawal";
+            case TRANSFER_OUT:  return "Transfer to # " + entry.otherID();
+            case TRANSFER_IN:   return "Transfer from # " + entry.otherID();
+            case IMPORT:        return "Imported";
+            default:            return entry.kind().name();
         }
+    }
 
-        return foundAccounts;
+    /**
+     * Logs the user out if their account was closed by another
+     * session while they were using it.
+     * @param balance The balance returned by the ledger
+     */
+    private void checkStillOpen(long balance) {
+        if (balance == Ledger.CLOSED) {
+            output.println("\nThis account has been closed, logging out.\n");
+            currentAccount = null;
+        }
     }
 
     /**
-     * Returns the first position of a given account
-     * reference from this manager's list of accounts.
-     * If no account is found, -1 is returned indicating
-     * that the reference could not be located.
-     * @param ref Reference to account to find
-     * @return The first position of the given account reference
+     * Re-reads the current account, since accounts are copies and
+     * the balance may have changed since the last read.
+     * @return Whether there still is a current account
      */
-    private int findAccountID(Account ref) {
-        for (int i = 0; i < accounts.size(); i++)
-            if (accounts.get(i).hashCode() == ref.hashCode()) {
-                return i;
-            }
-        return -1;
+    private boolean refreshCurrentAccount() {
+        if (currentAccount != null)
+            currentAccount = ledger.get(currentAccount.getID());
+        return currentAccount != null;
     }
 
     /**
-     * @return This manager's account list
+     * Provides the account with the given ID.
+     * @param id The ID of the account
+     * @return The account, or null if no account has this ID
+     */
+    public Account getAccount(int id) { return ledger.get(id); }
+
+    /**
+     * @return This manager's account store
+     */
+    public AccountStore getAccounts() { return ledger.getStore(); }
+
+    /**
+     * @return The ledger this manager works on
      */
-    public List<Account> getAccounts() { return this.accounts; }
+    public Ledger getLedger() { return this.ledger; }
 }
@@ -0,0 +1,126 @@
+package com.jefftastic.genericbanking;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ *  Storage for every account, keyed by account ID, that allows for:<br>
+ *  - Adding, replacing and removing accounts<br>
+ *  - Reading and writing balances in cents<br>
+ *  - Scanning every account, or just every balance<br>
+ *  - Taking read-only views of every account at one moment<br>
+ *  - Reclaiming the space left behind by closed accounts<br>
+ *  Adding and removing accounts is safe from any thread. Balances
+ *  are not guarded by the store itself; whoever changes them has
+ *  to hold the lock that covers the account, as the ledger does.
+ * @see Ledger
+ * @see ColumnarAccountStore
+ */
+
+public interface AccountStore {
+    /**
+     * Adds an account, replacing any account stored under the same ID.
+     * @param acc The account to store
+     */
+    void put(Account acc);
+
+    /**
+     * Removes an account.
+     * @param id The ID of the account
+     * @return Whether an account was stored under this ID
+     */
+    boolean remove(int id);
+
+    /**
+     * @param id The ID of an account
+     * @return Whether an account is stored under this ID
+     */
+    boolean contains(int id);
+
+    /**
+     * Provides a copy of the account stored under an ID.
+     * @param id The ID of the account
+     * @return The account, or null if no account has this ID
+     */
+    Account get(int id);
+
+    /**
+     * @param id The ID of a stored account
+     * @return The balance of the account, in cents
+     * @throws java.util.NoSuchElementException If no account has this ID
+     */
+    long getBalance(int id);
+
+    /**
+     * Sets the balance of a stored account.
+     * @param id The ID of a stored account
+     * @param balance The new balance, in cents
+     * @throws java.util.NoSuchElementException If no account has this ID
+     */
+    void setBalance(int id, long balance);
+
+    /**
+     * @return The number of stored accounts
+     */
+    int size();
+
+    /**
+     * @return The highest ID ever stored, or 0 if nothing was
+     */
+    int maxID();
+
+    /**
+     * Raises the highest ID ever stored to at least the given ID, for
+     * IDs that were handed out before the store was loaded, so that
+     * closed accounts never have their IDs handed out again.
+     * @param maxID The highest ID that was ever handed out
+     */
+    void raiseMaxID(int maxID);
+
+    /**
+     * Hands a copy of every stored account to the given action.
+     * @param action The action to run for each account
+     */
+    void forEach(Consumer<Account> action);
+
+    /**
+     * @return The sum of every balance, in cents
+     */
+    long totalBalance();
+
+    /**
+     * @return The number of accounts with a negative balance
+     */
+    int countNegative();
+
+    /**
+     * Takes a read-only view of every stored account as it is right
+     * now. No balance may be changing while this runs, or the view
+     * may catch a transfer halfway; {@link Ledger#snapshot()} takes
+     * care of that. Stores that can't share their data with a view
+     * copy every account into it, which is what this does by default.
+     * @return The view, which has to be closed once done with
+     */
+    default AccountView snapshot() {
+        ColumnarAccountStore copy = new ColumnarAccountStore();
+        forEach(copy::put);
+        copy.raiseMaxID(maxID());
+        return copy.snapshot();
+    }
+
+    /**
+     * Reclaims the space left behind by closed accounts, once they
+     * take up at least the given share of it. Closing an account only
+     * leaves a gap where it was, so closing never has to wait for
+     * anything to move. Stores that move accounts around in memory
+     * only do so within the given work, while no balance can change;
+     * {@link Ledger#compact(double)} takes care of that. By default
+     * there's nothing to reclaim.
+     * @param ratio The share of closed accounts to start reclaiming at, from 0 to 1
+     * @param exclusive Runs work while no balance can change
+     * @return Whether any space was reclaimed
+     */
+    default boolean compact(double ratio, Consumer<Runnable> exclusive) throws IOException {
+        return false;
+    }
+}
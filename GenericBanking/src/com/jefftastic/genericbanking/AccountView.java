@@ -0,0 +1,22 @@
+package com.jefftastic.genericbanking;
+
+/**
+ *  Read-only view of every account in a store as it was at one
+ *  moment, which stays the same however the store changes after.
+ *  Views can be handed to anything that reads an account store,
+ *  such as saving to CSV or a report, so that it can take its time
+ *  while sessions keep changing the store. Anything that changes
+ *  the view throws {@link UnsupportedOperationException}.<br>
+ *  Views have to be closed once they are done with, so that the
+ *  store can let go of what it kept around for them.
+ * @see AccountStore#snapshot()
+ * @see Ledger#snapshot()
+ */
+
+public interface AccountView extends AccountStore, AutoCloseable {
+    /**
+     * Lets go of the view. Closing a view more than once does nothing.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,108 @@
+package com.jefftastic.genericbanking;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Running totals over every account in a ledger, being:<br>
+ *  - The sum of every balance<br>
+ *  - The overdraft exposure, i.e. how far negative balances go below zero in total<br>
+ *  - The number of accounts, and the number of accounts below zero<br>
+ *  Totals are adjusted on every mutation rather than summed up when
+ *  read, so reading them takes the same time however many accounts
+ *  there are. Each total is a {@link LongAdder}, so sessions updating
+ *  different accounts at once don't fight over a single counter.
+ * @see Ledger
+ */
+
+class Aggregates {
+    // Declare class variables
+    private final LongAdder balance = new LongAdder();
+    private final LongAdder overdraft = new LongAdder();
+    private final LongAdder accounts = new LongAdder();
+    private final LongAdder negative = new LongAdder();
+
+    /**
+     * Aggregates constructor.
+     * @param start The totals to count on from
+     */
+    Aggregates(Ledger.Totals start) {
+        balance.add(start.balance());
+        overdraft.add(start.overdraft());
+        accounts.add(start.accounts());
+        negative.add(start.negative());
+    }
+
+    /**
+     * Counts a newly opened account.
+     * @param opening The balance of the account, in cents
+     */
+    void opened(long opening) {
+        balance.add(opening);
+        accounts.increment();
+        if (opening < 0) {
+            overdraft.add(-opening);
+            negative.increment();
+        }
+    }
+
+    /**
+     * Stops counting a closed account.
+     * @param closing The balance the account had, in cents
+     */
+    void closed(long closing) {
+        balance.add(-closing);
+        accounts.decrement();
+        if (closing < 0) {
+            overdraft.add(closing);
+            negative.decrement();
+        }
+    }
+
+    /**
+     * Counts the change of an account's balance.
+     * @param from The old balance, in cents
+     * @param to The new balance, in cents
+     */
+    void moved(long from, long to) {
+        balance.add(to - from);
+        if (from < 0 || to < 0)
+            overdraft.add(Math.max(0, -to) - Math.max(0, -from));
+        if ((from < 0) != (to < 0)) {
+            if (to < 0)
+                negative.increment();
+            else
+                negative.decrement();
+        }
+    }
+
+    /**
+     * Reads the totals. While mutations are under way, each total
+     * may be read at a slightly different moment than the others.
+     * @return The current totals
+     */
+    Ledger.Totals totals() {
+        return new Ledger.Totals(balance.sum(), overdraft.sum(), accounts.intValue(), negative.intValue());
+    }
+
+    /**
+     * Works out the totals by going through every account.
+     * @param store The accounts to total up
+     * @return The totals
+     */
+    static Ledger.Totals scan(AccountStore store) {
+        // Declare variables
+        long[] sums = new long[4];
+
+        store.forEach(acc -> {
+            long b = acc.getBalance();
+            sums[0] += b;
+            sums[2]++;
+            if (b < 0) {
+                sums[1] -= b;
+                sums[3]++;
+            }
+        });
+
+        return new Ledger.Totals(sums[0], sums[1], (int) sums[2], (int) sums[3]);
+    }
+}
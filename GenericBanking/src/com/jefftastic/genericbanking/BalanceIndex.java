@@ -0,0 +1,157 @@
+package com.jefftastic.genericbanking;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ *  Indexes account IDs by their balance, allowing for:<br>
+ *  - Walking every account within a range of balances, in order<br>
+ *  - Walking accounts from the highest balance down<br>
+ *  Both take time in the number of accounts walked, not the number
+ *  of accounts indexed. Like {@link NameIndex}, the index has to be
+ *  kept in sync by whoever changes balances, and buckets of IDs are
+ *  replaced rather than modified, so lookups never lock.
+ * @see Ledger
+ */
+
+class BalanceIndex {
+    // Declare class variables
+    private final ConcurrentSkipListMap<Long, int[]> byBalance = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds an account to the index.
+     * @param id The ID of the account
+     * @param balance The balance of the account, in cents
+     */
+    void add(int id, long balance) {
+        byBalance.compute(balance, (key, bucket) -> {
+            if (bucket == null)
+                return new int[] {id};
+
+            int[] grown = Arrays.copyOf(bucket, bucket.length + 1);
+            grown[bucket.length] = id;
+            return grown;
+        });
+    }
+
+    /**
+     * Fills an empty index with many accounts at once. Accounts are
+     * sorted by balance first, so the skip list is built from front
+     * to back instead of being searched for every account.
+     * @param ids The ID of each account
+     * @param balances The balance of each account, in cents
+     * @param count The number of accounts
+     */
+    void addAll(int[] ids, long[] balances, int count) {
+        // Declare variables
+        int[] order = new int[count], scratch = new int[count];
+
+        if (!byBalance.isEmpty())
+            throw new IllegalStateException("Only an empty balance index can be filled at once");
+
+        // Bottom-up merge sort of positions by balance
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        for (int width = 1; width < count; width *= 2) {
+            for (int lo = 0; lo < count; lo += 2 * width) {
+                int mid = Math.min(lo + width, count), hi = Math.min(lo + 2 * width, count);
+                for (int i = lo, a = lo, b = mid; i < hi; i++)
+                    scratch[i] = b >= hi || (a < mid && balances[order[a]] <= balances[order[b]])
+                            ? order[a++] : order[b++];
+            }
+            int[] swap = order;
+            order = scratch;
+            scratch = swap;
+        }
+
+        // Then one bucket per balance, in order
+        for (int i = 0; i < count;) {
+            long balance = balances[order[i]];
+            int end = i;
+            while (end < count && balances[order[end]] == balance)
+                end++;
+            int[] bucket = new int[end - i];
+            for (int j = i; j < end; j++)
+                bucket[j - i] = ids[order[j]];
+            byBalance.put(balance, bucket);
+            i = end;
+        }
+    }
+
+    /**
+     * Removes an account from the index. Nothing happens if the
+     * account was never indexed under this balance.
+     * @param id The ID of the account
+     * @param balance The balance the account was indexed under, in cents
+     */
+    void remove(int id, long balance) {
+        byBalance.computeIfPresent(balance, (key, bucket) -> {
+            // Most balances are held by a single account
+            int index = -1;
+            for (int i = 0; i < bucket.length && index == -1; i++)
+                if (bucket[i] == id)
+                    index = i;
+            if (index == -1)
+                return bucket;
+            if (bucket.length == 1)
+                return null;
+
+            int[] shrunk = new int[bucket.length - 1];
+            System.arraycopy(bucket, 0, shrunk, 0, index);
+            System.arraycopy(bucket, index + 1, shrunk, index, shrunk.length - index);
+            return shrunk;
+        });
+    }
+
+    /**
+     * Moves an account from its old balance to its new one.
+     * @param id The ID of the account
+     * @param from The old balance, in cents
+     * @param to The new balance, in cents
+     */
+    void move(int id, long from, long to) {
+        if (from == to)
+            return;
+        remove(id, from);
+        add(id, to);
+    }
+
+    /**
+     * Provides the IDs of accounts whose balance is within a range,
+     * lowest balance first.
+     * @param low The lowest balance to include, in cents
+     * @param high The highest balance to include, in cents
+     * @param limit The maximum number of IDs to return
+     * @return A new list of matching IDs
+     */
+    List<Integer> range(long low, long high, int limit) {
+        if (low > high)
+            return new ArrayList<>();
+        return collect(byBalance.subMap(low, true, high, true), limit);
+    }
+
+    /**
+     * Provides the IDs of accounts with the highest balances,
+     * highest balance first.
+     * @param limit The maximum number of IDs to return
+     * @return A new list of IDs
+     */
+    List<Integer> top(int limit) {
+        return collect(byBalance.descendingMap(), limit);
+    }
+
+    private static List<Integer> collect(ConcurrentNavigableMap<Long, int[]> buckets, int limit) {
+        List<Integer> result = new ArrayList<>();
+
+        for (int[] bucket : buckets.values()) {
+            for (int id : bucket) {
+                if (result.size() >= limit)
+                    return result;
+                result.add(id);
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,171 @@
+package com.jefftastic.genericbanking;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Serves the account menu over TCP, so that many users can be
+ *  logged in at once. The protocol is plain lines of text, the same
+ *  prompts and answers as on the console, so any line-based client
+ *  (telnet, netcat) works. Every connection gets:<br>
+ *  - Its own account manager, holding its mode and current account<br>
+ *  - Its own small-stack thread and small I/O buffers<br>
+ *  All sessions share one ledger. Once the session limit is reached,
+ *  new connections are told to try again later and closed.
+ * @see AccountManager
+ * @see Ledger
+ */
+
+public class BankServer implements AutoCloseable {
+    // Declare constants
+    public static final int DEFAULT_PORT = 8023;
+    public static final int DEFAULT_MAX_SESSIONS = 4096;
+    private static final long SESSION_STACK_SIZE = 256 * 1024;
+    private static final int SESSION_BUFFER_SIZE = 2048;
+    private static final int BACKLOG = 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+
+    // Declare class variables
+    private final Ledger ledger;
+    private final ServerSocket serverSocket;
+    private final Semaphore sessionPermits;
+    private final Map<Socket, Thread> sessions = new ConcurrentHashMap<>();
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    /**
+     * BankServer constructor. The server only listens on the
+     * loopback address, and starts accepting straight away.
+     * @param ledger The ledger every session shares
+     * @param port The port to listen on, or 0 for any free port
+     * @param maxSessions The most sessions to serve at once
+     */
+    public BankServer(Ledger ledger, int port, int maxSessions) throws IOException {
+        this.ledger = ledger;
+        this.sessionPermits = new Semaphore(maxSessions);
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+
+        acceptor = new Thread(this::acceptLoop, "bank-server");
+        acceptor.start();
+    }
+
+    /**
+     * BankServer constructor.
+     * @param ledger The ledger every session shares
+     * @param port The port to listen on, or 0 for any free port
+     */
+    public BankServer(Ledger ledger, int port) throws IOException {
+        this(ledger, port, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * @return The port this server is listening on
+     */
+    public int getPort() { return serverSocket.getLocalPort(); }
+
+    /**
+     * @return The number of sessions being served right now
+     */
+    public int getSessionCount() { return sessions.size(); }
+
+    /**
+     * Stops accepting connections and hangs up on every session,
+     * then waits for their threads to finish, for a few seconds at
+     * most. Once this returns, sessions have stopped changing the
+     * ledger, so it can be saved.
+     */
+    @Override
+    public void close() throws IOException {
+        // Declare variables
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+
+        running = false;
+        serverSocket.close();
+        try {
+            // No session is added once the acceptor is done
+            acceptor.join();
+            for (Socket socket : sessions.keySet())
+                closeQuietly(socket);
+            for (Thread session : sessions.values())
+                session.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!sessions.isEmpty())
+            System.out.printf("%d sessions did not stop in time, their last changes may not be saved.\n", sessions.size());
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            // Declare variables
+            Socket socket;
+
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Could not accept a connection, continuing.");
+                    e.printStackTrace(System.out);
+                }
+                continue;
+            }
+
+            // Turn the connection away if we're full
+            if (!sessionPermits.tryAcquire()) {
+                try (socket; OutputStream out = socket.getOutputStream()) {
+                    out.write("Too many sessions, please try again later.\n".getBytes(StandardCharsets.UTF_8));
+                } catch (IOException ignored) {}
+                continue;
+            }
+
+            Thread session = new Thread(null, () -> serve(socket),
+                    "bank-session-" + socket.getPort(), SESSION_STACK_SIZE);
+            session.setDaemon(true);
+            sessions.put(socket, session);
+            session.start();
+
+            // Closing may have started since the accept, hang up if so
+            if (!running)
+                closeQuietly(socket);
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), SESSION_BUFFER_SIZE);
+            PrintStream out = new PrintStream(new BufferedOutputStream(
+                    socket.getOutputStream(), SESSION_BUFFER_SIZE), false, StandardCharsets.UTF_8);
+
+            // Run the menu until the user leaves or hangs up
+            AccountManager session = new AccountManager(ledger, in, out);
+            while (session.update() != -1);
+            out.flush();
+        } catch (SocketException ignored) {
+            // The client or the server hung up mid-session
+        } catch (Exception e) {
+            System.out.println("A session ended unexpectedly.");
+            e.printStackTrace(System.out);
+        } finally {
+            sessions.remove(socket);
+            sessionPermits.release();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,275 @@
+package com.jefftastic.genericbanking;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ *  Applies a file of transactions to the ledger without any prompts,
+ *  one per line, each being one of:<br>
+ *  - OPEN;name;address;balance<br>
+ *  - DEPOSIT;id;amount<br>
+ *  - WITHDRAW;id;amount<br>
+ *  - CLOSE;id<br>
+ *  - TRANSFER;from;to;amount<br>
+ *  Fields follow the same quoting rules as the account CSV. The work
+ *  is pipelined: one thread parses lines into batches, the calling
+ *  thread applies each batch while waiting on the journal only once
+ *  per batch, and one thread writes every line back out to a result
+ *  file along with whether it was applied or why it was rejected.
+ * @see Ledger
+ */
+
+public class BatchProcessor {
+    // Declare constants
+    private static final char SEPARATOR = ';';
+    private static final char QUOTE = '"';
+    private static final int BATCH_SIZE = 4096;
+    private static final int QUEUE_DEPTH = 8;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * One line of the transaction file. The outcome is filled in
+     * once the transaction has been applied.
+     */
+    private static class Transaction {
+        final String line;
+        final String[] fields;
+        String outcome;
+
+        Transaction(String line, String[] fields) {
+            this.line = line;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * What a batch run did.
+     * @param applied The number of transactions applied
+     * @param rejected The number of transactions rejected
+     * @param nanos How long the run took
+     */
+    public record Result(long applied, long rejected, long nanos) {
+        /**
+         * @return The number of transactions handled per second
+         */
+        public double perSecond() {
+            return nanos == 0 ? 0 : (applied + rejected) * 1e9 / nanos;
+        }
+    }
+
+    // Declare class variables
+    private final Ledger ledger;
+
+    /**
+     * BatchProcessor constructor.
+     * @param ledger The ledger to apply transactions to
+     */
+    public BatchProcessor(Ledger ledger) {
+        this.ledger = ledger;
+    }
+
+    /**
+     * Applies every transaction in a file, in order.
+     * @param input The transaction file
+     * @param output The file to write results to
+     * @return What the run did
+     */
+    public Result run(File input, File output) throws IOException {
+        // Declare variables
+        BlockingQueue<List<Transaction>> parsed = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        BlockingQueue<List<Transaction>> applied = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        List<Transaction> end = List.of();
+        IOException[] failure = new IOException[1];
+        long[] counts = new long[2];
+        long start = System.nanoTime();
+
+        // Parse on one thread...
+        Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(input), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                List<Transaction> batch = new ArrayList<>(BATCH_SIZE);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.isBlank())
+                        continue;
+                    batch.add(new Transaction(line, split(line)));
+                    if (batch.size() == BATCH_SIZE) {
+                        parsed.put(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty())
+                    parsed.put(batch);
+            } catch (IOException e) {
+                failure[0] = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                putQuietly(parsed, end);
+            }
+        }, "batch-reader");
+
+        // ...and write results on another
+        Thread writer = new Thread(() -> {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(output), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                List<Transaction> batch;
+                while ((batch = applied.take()) != end) {
+                    for (Transaction tx : batch) {
+                        out.write(tx.line);
+                        out.write(SEPARATOR);
+                        out.write(tx.outcome);
+                        out.write('\n');
+                    }
+                }
+            } catch (IOException e) {
+                // Keep taking batches so the applier never blocks on us
+                failure[0] = e;
+                try {
+                    while (applied.take() != end);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "batch-writer");
+
+        reader.start();
+        writer.start();
+
+        // Apply every batch here, in file order
+        try {
+            List<Transaction> batch;
+            while ((batch = parsed.take()) != end) {
+                List<Transaction> current = batch;
+                ledger.deferCommits(() -> {
+                    for (Transaction tx : current) {
+                        tx.outcome = apply(tx.fields);
+                        counts[tx.outcome.startsWith("OK") ? 0 : 1]++;
+                    }
+                });
+                applied.put(batch);
+            }
+            applied.put(end);
+            reader.join();
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reader.interrupt();
+            writer.interrupt();
+            throw new InterruptedIOException("Batch run was interrupted");
+        }
+
+        if (failure[0] != null)
+            throw failure[0];
+        return new Result(counts[0], counts[1], System.nanoTime() - start);
+    }
+
+    /**
+     * Applies a single transaction.
+     * @return "OK" and a detail, or "REJECTED" and a reason
+     */
+    private String apply(String[] fields) {
+        try {
+            switch (fields[0].trim().toUpperCase(Locale.ROOT)) {
+                case "OPEN":
+                    expect(fields, 4);
+                    long balance = parseAmount(fields[3], true);
+                    if (fields[1].isBlank())
+                        return "REJECTED;Account name is empty";
+                    return "OK;" + ledger.open(fields[1], fields[2], balance).getID();
+                case "DEPOSIT":
+                    expect(fields, 3);
+                    return outcome(ledger.deposit(parseID(fields[1]), parseAmount(fields[2], false)));
+                case "WITHDRAW":
+                    expect(fields, 3);
+                    return outcome(ledger.withdraw(parseID(fields[1]), parseAmount(fields[2], false)));
+                case "CLOSE":
+                    expect(fields, 2);
+                    return ledger.close(parseID(fields[1])) ? "OK;closed" : "REJECTED;Account is not open";
+                case "TRANSFER":
+                    expect(fields, 4);
+                    int from = parseID(fields[1]), to = parseID(fields[2]);
+                    if (from == to)
+                        return "REJECTED;Can't transfer to the same account";
+                    return outcome(ledger.transfer(from, to, parseAmount(fields[3], false)));
+                default:
+                    return "REJECTED;Unknown transaction type \"" + fields[0] + "\"";
+            }
+        } catch (IllegalArgumentException e) {
+            return "REJECTED;" + e.getMessage();
+        }
+    }
+
+    private static String outcome(long balance) {
+        return balance == Ledger.CLOSED ? "REJECTED;Account is not open" : "OK;" + Money.format(balance);
+    }
+
+    private static void expect(String[] fields, int count) {
+        if (fields.length != count)
+            throw new IllegalArgumentException("Expected " + count + " fields, got " + fields.length);
+    }
+
+    private static int parseID(String field) {
+        try {
+            return Integer.parseInt(field.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid account ID \"" + field + "\"");
+        }
+    }
+
+    private static long parseAmount(String field, boolean allowZero) {
+        // Declare variables
+        long amount;
+
+        try {
+            amount = Money.parse(field.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid amount \"" + field + "\"");
+        }
+        if (amount < 0 || (amount == 0 && !allowZero))
+            throw new IllegalArgumentException("Invalid amount \"" + field + "\"");
+        return amount;
+    }
+
+    /**
+     * Splits a line into fields, honouring quotes like the CSV loader.
+     */
+    static String[] split(String line) {
+        // Declare variables
+        List<String> fields = new ArrayList<>(4);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == QUOTE) {
+                // A doubled quote inside quotes is a literal quote
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == QUOTE) {
+                    field.append(QUOTE);
+                    i++;
+                } else
+                    quoted = !quoted;
+            } else if (c == SEPARATOR && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else
+                field.append(c);
+        }
+        fields.add(field.toString());
+
+        return fields.toArray(new String[0]);
+    }
+
+    private static <T> void putQuietly(BlockingQueue<T> queue, T item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.jefftastic.genericbanking;
+
+/**
+ *  Receives every change made to the accounts, in the order they
+ *  were made, on a thread of its own. Consumers are handed events in
+ *  batches of everything published since the last batch, so work that
+ *  can wait, such as flushing a file, can be done once per batch.
+ * @see ChangeStream
+ * @see ChangeFileSink
+ * @see StandbyReplica
+ */
+
+public interface ChangeConsumer {
+    /**
+     * Handles one change. Throwing stops this consumer from receiving
+     * any more changes, so that it can't hold up the stream.
+     * @param event The change, which is reused once this returns
+     * @param endOfBatch Whether this is the last change published so far
+     */
+    void onEvent(ChangeEvent event, boolean endOfBatch) throws Exception;
+}
@@ -0,0 +1,95 @@
+package com.jefftastic.genericbanking;
+
+/**
+ *  One change to the accounts, as handed to change consumers, being
+ *  one of:<br>
+ *  - OPEN: an account was opened, or stored under a given ID, with
+ *    its name, address and balance<br>
+ *  - CLOSE: an account was closed<br>
+ *  - DEPOSIT and WITHDRAW: funds went into or out of an account,
+ *    with the resulting balance<br>
+ *  - TRANSFER: funds went from one account to another, with both
+ *    resulting balances<br>
+ *  Amounts and balances are in cents. Events aren't made for every
+ *  change; each consumer is handed the same event over and over,
+ *  each time reading another slot of the stream, so anything kept
+ *  after {@link ChangeConsumer#onEvent} returns has to be copied out.
+ * @see ChangeStream
+ */
+
+public final class ChangeEvent {
+    /**
+     * What kind of change an event is.
+     */
+    public enum Type { OPEN, CLOSE, DEPOSIT, WITHDRAW, TRANSFER }
+
+    // Declare constants
+    static final Type[] TYPES = Type.values();
+
+    // Declare class variables
+    private final ChangeStream stream;
+    private long sequence;
+    private int slot;
+
+    ChangeEvent(ChangeStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Points this event at another slot of the stream.
+     */
+    void moveTo(long sequence) {
+        this.sequence = sequence;
+        this.slot = stream.slotOf(sequence);
+    }
+
+    /**
+     * @return The position of this event in the stream, counting up from 0 every run
+     */
+    public long getSequence() { return sequence; }
+
+    /**
+     * @return When the change happened, in milliseconds since the epoch
+     */
+    public long getTime() { return stream.times[slot]; }
+
+    /**
+     * @return What kind of change this is
+     */
+    public Type getType() { return TYPES[stream.types[slot]]; }
+
+    /**
+     * @return The ID of the account changed, or the one funds were transferred from
+     */
+    public int getID() { return stream.ids[slot]; }
+
+    /**
+     * @return The ID of the account funds were transferred to, or 0
+     */
+    public int getOtherID() { return stream.otherIDs[slot]; }
+
+    /**
+     * @return The amount deposited, withdrawn or transferred, or 0
+     */
+    public long getAmount() { return stream.amounts[slot]; }
+
+    /**
+     * @return The resulting balance of the account changed
+     */
+    public long getBalance() { return stream.balances[slot]; }
+
+    /**
+     * @return The resulting balance of the account funds were transferred to, or 0
+     */
+    public long getOtherBalance() { return stream.otherBalances[slot]; }
+
+    /**
+     * @return The name of the account opened, or null
+     */
+    public String getName() { return stream.names[slot]; }
+
+    /**
+     * @return The address of the account opened, or null
+     */
+    public String getAddress() { return stream.addresses[slot]; }
+}
@@ -0,0 +1,113 @@
+package com.jefftastic.genericbanking;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *  Appends every change to a file, one line per change, as:<br>
+ *  - sequence;time;OPEN;id;name;address;balance<br>
+ *  - sequence;time;CLOSE;id<br>
+ *  - sequence;time;DEPOSIT;id;amount;balance, the same for WITHDRAW<br>
+ *  - sequence;time;TRANSFER;from;to;amount;fromBalance;toBalance<br>
+ *  Fields are quoted the same way as in the account CSV, and amounts
+ *  are in dollars. The file is flushed at the end of every batch, so
+ *  it's written in large pieces when changes come in quickly. A
+ *  standby replica can be rebuilt from the file.
+ * @see ChangeStream
+ * @see StandbyReplica#replay
+ */
+
+public class ChangeFileSink implements ChangeConsumer, AutoCloseable {
+    // Declare constants
+    private static final char SEPARATOR = ';';
+    private static final char QUOTE = '"';
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Declare class variables
+    private final BufferedWriter out;
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * ChangeFileSink constructor, appending to the file if it exists.
+     * @param path The file to write changes to
+     */
+    public ChangeFileSink(Path path) throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE),
+                StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    @Override
+    public void onEvent(ChangeEvent event, boolean endOfBatch) throws IOException {
+        line.setLength(0);
+        line.append(event.getSequence()).append(SEPARATOR)
+                .append(event.getTime()).append(SEPARATOR)
+                .append(event.getType()).append(SEPARATOR)
+                .append(event.getID());
+
+        switch (event.getType()) {
+            case OPEN:
+                line.append(SEPARATOR);
+                appendField(event.getName());
+                line.append(SEPARATOR);
+                appendField(event.getAddress());
+                line.append(SEPARATOR).append(Money.format(event.getBalance()));
+                break;
+            case CLOSE:
+                break;
+            case DEPOSIT:
+            case WITHDRAW:
+                line.append(SEPARATOR).append(Money.format(event.getAmount()))
+                        .append(SEPARATOR).append(Money.format(event.getBalance()));
+                break;
+            case TRANSFER:
+                line.append(SEPARATOR).append(event.getOtherID())
+                        .append(SEPARATOR).append(Money.format(event.getAmount()))
+                        .append(SEPARATOR).append(Money.format(event.getBalance()))
+                        .append(SEPARATOR).append(Money.format(event.getOtherBalance()));
+                break;
+        }
+
+        line.append('\n');
+        out.append(line);
+        if (endOfBatch)
+            out.flush();
+    }
+
+    /**
+     * Flushes and closes the file. The stream has to be done with
+     * this sink first.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Appends a string, quoting it if it holds a separator or quote,
+     * and keeping it on one line.
+     */
+    private void appendField(String str) {
+        // Declare variables
+        boolean quoted = str.indexOf(SEPARATOR) >= 0 || str.indexOf(QUOTE) >= 0;
+
+        if (quoted)
+            line.append(QUOTE);
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '\n' || c == '\r')
+                line.append(' ');
+            else if (c == QUOTE)
+                line.append(QUOTE).append(QUOTE);
+            else
+                line.append(c);
+        }
+        if (quoted)
+            line.append(QUOTE);
+    }
+}
@@ -0,0 +1,402 @@
+package com.jefftastic.genericbanking;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  Stream of every change made to the accounts, for consumers such
+ *  as audit, fraud scoring and standby replicas. Changes go into a
+ *  ring of slots allocated up front as columns of primitives, so
+ *  publishing a change neither allocates nor locks:<br>
+ *  - A publisher claims the next sequence number with one atomic
+ *    increment, fills in the slot it maps to, then marks the slot
+ *    as published by writing the sequence number into it<br>
+ *  - Every consumer follows the ring on a thread of its own, handling
+ *    everything published since it last looked as one batch<br>
+ *  - A publisher only waits when the slowest consumer is a whole ring
+ *    behind, as the slot it needs hasn't been read yet<br>
+ *  The ledger publishes while holding the stripe locks of the
+ *  accounts changed, so the changes to an account come in the order
+ *  they were made. How a consumer waits for more changes is up to its
+ *  {@link WaitStrategy}. A consumer that throws is dropped from the
+ *  stream, so that it can't hold up sessions.
+ * @see Ledger
+ * @see ChangeConsumer
+ */
+
+public class ChangeStream implements AutoCloseable {
+    // Declare constants
+    public static final int DEFAULT_CAPACITY = 1 << 14;
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long SLEEP_NANOS = 100_000;
+    private static final long FULL_WAIT_NANOS = 10_000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+
+    /**
+     * How a consumer waits for changes once it has caught up. The
+     * further down, the less CPU it takes up waiting, and the longer
+     * it may take to notice a change.
+     */
+    public enum WaitStrategy {
+        /**
+         * Keeps checking, taking up a whole core. Only for when a
+         * change has to be seen within a microsecond, and cores are spare.
+         */
+        BUSY_SPIN,
+        /**
+         * Checks for a while, then lets other threads run between checks.
+         */
+        YIELDING,
+        /**
+         * Checks for a while, yields for a while, then sleeps for a
+         * tenth of a millisecond between checks.
+         */
+        SLEEPING,
+        /**
+         * Checks for a while, then sleeps until a publisher wakes it.
+         * Publishers only pay for waking consumers that are asleep.
+         */
+        BLOCKING
+    }
+
+    /**
+     * One consumer's place in the stream, and the thread following it.
+     */
+    public final class Subscription implements AutoCloseable {
+        // Declare class variables
+        private final ChangeConsumer consumer;
+        private final WaitStrategy wait;
+        private final Thread thread;
+        private volatile long sequence;
+        private volatile boolean running = true, parked;
+
+        private Subscription(String name, ChangeConsumer consumer, WaitStrategy wait, long sequence) {
+            this.consumer = consumer;
+            this.wait = wait;
+            this.sequence = sequence;
+            this.thread = new Thread(() -> follow(this), "changes-" + name);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * @return The sequence number of the last change handled
+         */
+        public long getSequence() { return sequence; }
+
+        /**
+         * @return Whether the consumer is still receiving changes
+         */
+        public boolean isRunning() { return running; }
+
+        /**
+         * Waits until every change published before this call has been handled.
+         * @param timeoutMillis How long to wait at most
+         * @return Whether they were all handled in time
+         */
+        public boolean drain(long timeoutMillis) {
+            // Declare variables
+            long target = cursor.get();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+            while (sequence < target) {
+                if (!running || System.nanoTime() > deadline)
+                    return false;
+                LockSupport.parkNanos(SLEEP_NANOS);
+            }
+            return true;
+        }
+
+        /**
+         * Stops receiving changes, leaving whatever wasn't handled yet.
+         */
+        @Override
+        public void close() {
+            remove(this);
+            running = false;
+            LockSupport.unpark(thread);
+            if (Thread.currentThread() == thread)
+                return;
+
+            try { thread.join(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+    }
+
+    // The ring, as columns read through change events
+    final long[] times, amounts, balances, otherBalances;
+    final int[] ids, otherIDs;
+    final byte[] types;
+    final String[] names, addresses;
+
+    // Declare class variables
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong(-1);
+    private final AtomicInteger sleepers = new AtomicInteger();
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    // Never past the slowest consumer, so publishers rarely look at them
+    private volatile long gate = -1;
+
+    /**
+     * ChangeStream constructor.
+     * @param capacity How many changes the ring holds, a power of two
+     */
+    public ChangeStream(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity has to be a power of two, got " + capacity);
+
+        mask = capacity - 1;
+        times = new long[capacity];
+        amounts = new long[capacity];
+        balances = new long[capacity];
+        otherBalances = new long[capacity];
+        ids = new int[capacity];
+        otherIDs = new int[capacity];
+        types = new byte[capacity];
+        names = new String[capacity];
+        addresses = new String[capacity];
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            published.set(i, -1);
+    }
+
+    /**
+     * ChangeStream constructor, holding {@value #DEFAULT_CAPACITY} changes.
+     */
+    public ChangeStream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Starts a consumer on a thread of its own, receiving every change
+     * published from now on.
+     * @param name The name of the consumer, used to name its thread
+     * @param consumer The consumer to hand changes to
+     * @param wait How the consumer waits once it has caught up
+     * @return The subscription, to be closed once done with
+     */
+    public synchronized Subscription subscribe(String name, ChangeConsumer consumer, WaitStrategy wait) {
+        // Declare variables
+        Subscription sub = new Subscription(name, consumer, wait, cursor.get());
+        Subscription[] subs = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+
+        subs[subs.length - 1] = sub;
+        subscriptions = subs;
+        sub.thread.start();
+        return sub;
+    }
+
+    /**
+     * @return The sequence number of the last change published, or -1
+     */
+    public long getSequence() {
+        return cursor.get();
+    }
+
+    /**
+     * Lets every consumer catch up, for a few seconds at most, then
+     * stops them all.
+     */
+    @Override
+    public void close() {
+        for (Subscription sub : subscriptions) {
+            sub.drain(CLOSE_TIMEOUT_MILLIS);
+            sub.close();
+        }
+    }
+
+    void publishOpen(int id, String name, String address, long balance) {
+        long seq = claim();
+        fill(seq, ChangeEvent.Type.OPEN, id, 0, 0, balance, 0, name, address);
+        publish(seq);
+    }
+
+    void publishClose(int id) {
+        long seq = claim();
+        fill(seq, ChangeEvent.Type.CLOSE, id, 0, 0, 0, 0, null, null);
+        publish(seq);
+    }
+
+    void publishDeposit(int id, long amount, long balance) {
+        long seq = claim();
+        fill(seq, ChangeEvent.Type.DEPOSIT, id, 0, amount, balance, 0, null, null);
+        publish(seq);
+    }
+
+    void publishWithdraw(int id, long amount, long balance) {
+        long seq = claim();
+        fill(seq, ChangeEvent.Type.WITHDRAW, id, 0, amount, balance, 0, null, null);
+        publish(seq);
+    }
+
+    void publishTransfer(int from, int to, long amount, long fromBalance, long toBalance) {
+        long seq = claim();
+        fill(seq, ChangeEvent.Type.TRANSFER, from, to, amount, fromBalance, toBalance, null, null);
+        publish(seq);
+    }
+
+    int slotOf(long sequence) {
+        return (int) (sequence & mask);
+    }
+
+    /**
+     * Claims the next sequence number, waiting if its slot still
+     * holds a change the slowest consumer hasn't handled.
+     */
+    private long claim() {
+        // Declare variables
+        long seq = cursor.incrementAndGet();
+        long wrap = seq - (mask + 1);
+
+        if (wrap > gate) {
+            long slowest;
+            while (wrap > (slowest = slowest(seq - 1)))
+                LockSupport.parkNanos(FULL_WAIT_NANOS);
+            gate = slowest;
+        }
+        return seq;
+    }
+
+    private void fill(long seq, ChangeEvent.Type type, int id, int otherID, long amount,
+                      long balance, long otherBalance, String name, String address) {
+        int slot = slotOf(seq);
+        times[slot] = System.currentTimeMillis();
+        types[slot] = (byte) type.ordinal();
+        ids[slot] = id;
+        otherIDs[slot] = otherID;
+        amounts[slot] = amount;
+        balances[slot] = balance;
+        otherBalances[slot] = otherBalance;
+        names[slot] = name;
+        addresses[slot] = address;
+    }
+
+    /**
+     * Marks a filled slot as published, waking any consumer asleep.
+     * The mark is a volatile write, so a consumer that checked the
+     * slot before going to sleep is always seen asleep here.
+     */
+    private void publish(long seq) {
+        published.set(slotOf(seq), seq);
+        if (sleepers.get() > 0) {
+            for (Subscription sub : subscriptions)
+                if (sub.parked)
+                    LockSupport.unpark(sub.thread);
+        }
+    }
+
+    /**
+     * @return The sequence number the slowest consumer has handled, or the fallback if it's lower
+     */
+    private long slowest(long fallback) {
+        long min = fallback;
+        for (Subscription sub : subscriptions)
+            min = Math.min(min, sub.sequence);
+        return min;
+    }
+
+    /**
+     * Hands changes to a consumer as they're published, until it's
+     * closed or throws.
+     */
+    private void follow(Subscription sub) {
+        // Declare variables
+        ChangeEvent event = new ChangeEvent(this);
+        long next = sub.sequence + 1;
+
+        while (sub.running) {
+            long last = waitFor(sub, next);
+            try {
+                for (long seq = next; seq <= last; seq++) {
+                    event.moveTo(seq);
+                    sub.consumer.onEvent(event, seq == last);
+                }
+            } catch (Exception e) {
+                System.out.printf("""
+                        The change consumer "%s" failed, and won't receive any more changes.
+                        """, sub.thread.getName());
+                e.printStackTrace(System.out);
+                sub.running = false;
+                remove(sub);
+                return;
+            }
+            sub.sequence = last;
+            next = last + 1;
+        }
+    }
+
+    /**
+     * Waits until the change with the given sequence number is
+     * published, the way the consumer asked to.
+     * @return The sequence number of the last change published in a
+     *         row from there, or one before it if the consumer was closed
+     */
+    private long waitFor(Subscription sub, long next) {
+        // Declare variables
+        int slot = slotOf(next);
+        int tries = 0;
+
+        while (published.get(slot) != next) {
+            if (!sub.running)
+                return next - 1;
+
+            switch (sub.wait) {
+                case BUSY_SPIN:
+                    Thread.onSpinWait();
+                    break;
+                case YIELDING:
+                    if (tries++ < SPIN_TRIES)
+                        Thread.onSpinWait();
+                    else
+                        Thread.yield();
+                    break;
+                case SLEEPING:
+                    if (tries++ < SPIN_TRIES)
+                        Thread.onSpinWait();
+                    else if (tries < YIELD_TRIES)
+                        Thread.yield();
+                    else
+                        LockSupport.parkNanos(SLEEP_NANOS);
+                    break;
+                case BLOCKING:
+                    if (tries++ < SPIN_TRIES) {
+                        Thread.onSpinWait();
+                        break;
+                    }
+                    // Announce the sleep before checking one last time,
+                    // so a publisher either is seen or sees us asleep
+                    sub.parked = true;
+                    sleepers.incrementAndGet();
+                    if (published.get(slot) != next && sub.running)
+                        LockSupport.park(this);
+                    sleepers.decrementAndGet();
+                    sub.parked = false;
+                    break;
+            }
+        }
+
+        // Take everything published in a row as one batch
+        long last = next;
+        while (last - next < mask && published.get(slotOf(last + 1)) == last + 1)
+            last++;
+        return last;
+    }
+
+    private synchronized void remove(Subscription sub) {
+        Subscription[] subs = subscriptions;
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i] == sub) {
+                Subscription[] left = new Subscription[subs.length - 1];
+                System.arraycopy(subs, 0, left, 0, i);
+                System.arraycopy(subs, i + 1, left, i, left.length - i);
+                subscriptions = left;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.jefftastic.genericbanking;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ *  Background thread that saves a ledger's accounts to the data
+ *  directory every so often, so that:<br>
+ *  - The journal only ever holds what happened since the last checkpoint<br>
+ *  - Saving at exit only has to write what changed since then<br>
+ *  - Space left behind by closed accounts is reclaimed as it builds up<br>
+ *  A checkpoint is taken once enough time has gone by or enough
+ *  mutations were journaled, whichever comes first. Each one rotates
+ *  the journal, saves a view of the accounts at a limited rate, then
+ *  lets go of the rotated journal, so a crash at any point still has
+ *  every mutation covered by a save or the journal.
+ * @see ShardStorage
+ * @see Journal
+ */
+
+public class Checkpointer implements AutoCloseable {
+    // Declare constants
+    public static final long DEFAULT_INTERVAL_SECONDS = 30;
+    public static final long DEFAULT_MUTATIONS = 100_000;
+    public static final long DEFAULT_BYTES_PER_SECOND = 32L << 20;
+    public static final double DEFAULT_COMPACT_RATIO = 0.25;
+    private static final long POLL_MILLIS = 200;
+    private static final LatencyHistogram CHECKPOINT_LATENCY = Metrics.histogram("checkpoint");
+    private static final LatencyHistogram COMPACT_LATENCY = Metrics.histogram("checkpoint.compact");
+
+    // Declare class variables
+    private final Ledger ledger;
+    private final Journal journal;
+    private final File dir;
+    private final long intervalNanos, mutations;
+    private final double compactRatio;
+    private final Thread thread;
+    private volatile long bytesPerSecond;
+    private long checkpointedSeq;
+    private boolean closed;
+
+    /**
+     * Checkpointer constructor, which starts the background thread.
+     * @param ledger The ledger whose accounts to save
+     * @param journal The journal of the ledger
+     * @param dir The data directory to save to
+     * @param intervalSeconds The most time to let go by between checkpoints
+     * @param mutations The most mutations to let build up between checkpoints
+     * @param bytesPerSecond The most to write per second on average while saving
+     * @param compactRatio The share of closed accounts to start reclaiming space at
+     */
+    public Checkpointer(Ledger ledger, Journal journal, File dir, long intervalSeconds,
+                        long mutations, long bytesPerSecond, double compactRatio) {
+        this.ledger = ledger;
+        this.journal = journal;
+        this.dir = dir;
+        this.intervalNanos = intervalSeconds * 1_000_000_000L;
+        this.mutations = mutations;
+        this.bytesPerSecond = bytesPerSecond;
+        this.compactRatio = compactRatio;
+        this.checkpointedSeq = journal.sequence();
+        this.thread = new Thread(this::run, "checkpointer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Checkpointer constructor, using the default limits.
+     * @param ledger The ledger whose accounts to save
+     * @param journal The journal of the ledger
+     * @param dir The data directory to save to
+     * @param intervalSeconds The most time to let go by between checkpoints
+     */
+    public Checkpointer(Ledger ledger, Journal journal, File dir, long intervalSeconds) {
+        this(ledger, journal, dir, intervalSeconds, DEFAULT_MUTATIONS,
+                DEFAULT_BYTES_PER_SECOND, DEFAULT_COMPACT_RATIO);
+    }
+
+    /**
+     * Takes a checkpoint right away.
+     * @return Whether the accounts were saved
+     */
+    public boolean checkpoint() {
+        // Declare variables
+        long start = System.nanoTime();
+
+        // A failed checkpoint waits for the next one to come due
+        synchronized (this) {
+            checkpointedSeq = journal.sequence();
+        }
+
+        try {
+            // Everything journaled before the rotation is in the view
+            journal.rotate();
+            ShardStorage.checkpoint(ledger, dir, Database.DEFAULT_SHARDS, () -> bytesPerSecond);
+            journal.dropRotated();
+        } catch (IOException | RuntimeException e) {
+            // Print error
+            System.out.println("""
+                    Could not take a checkpoint of the ADB!
+                    Everything is still in the journal, trying again later.
+                    """);
+            e.printStackTrace(System.out);
+            return false;
+        }
+
+        CHECKPOINT_LATENCY.recordSince(start);
+        return true;
+    }
+
+    /**
+     * Reclaims the space left behind by closed accounts, if there's
+     * enough of it.
+     * @return Whether any space was reclaimed
+     */
+    public boolean compact() {
+        // Declare variables
+        long start = System.nanoTime();
+
+        try {
+            if (!ledger.compact(compactRatio))
+                return false;
+        } catch (IOException | RuntimeException e) {
+            // Print error
+            System.out.println("""
+                    Could not compact the ADB!
+                    Closed accounts will be left where they are until the next try.
+                    """);
+            e.printStackTrace(System.out);
+            return false;
+        }
+
+        COMPACT_LATENCY.recordSince(start);
+        return true;
+    }
+
+    /**
+     * Stops the background thread, letting a checkpoint that's under
+     * way finish as fast as it can rather than at the limited rate.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            bytesPerSecond = 0;
+            notifyAll();
+        }
+        try { thread.join(); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+    }
+
+    /**
+     * Background loop that waits for a checkpoint to be due, takes it,
+     * then compacts if needed.
+     */
+    private void run() {
+        // Declare variables
+        long last = System.nanoTime();
+
+        while (true) {
+            synchronized (this) {
+                while (!closed && !isDue(last)) {
+                    try { wait(POLL_MILLIS); }
+                    catch (InterruptedException ignored) {}
+                }
+                if (closed)
+                    return;
+            }
+
+            checkpoint();
+            compact();
+            last = System.nanoTime();
+        }
+    }
+
+    private boolean isDue(long last) {
+        return System.nanoTime() - last >= intervalNanos
+                || journal.sequence() - checkpointedSeq >= mutations;
+    }
+}
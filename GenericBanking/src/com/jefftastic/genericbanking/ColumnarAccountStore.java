@@ -0,0 +1,550 @@
+package com.jefftastic.genericbanking;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ *  Account store that keeps accounts as columns of primitives rather
+ *  than as objects, holding for every account:<br>
+ *  - Its ID, as an int<br>
+ *  - Its balance in cents, as a long<br>
+ *  - Its name and address, as codes into a shared string pool<br>
+ *  Columns are split into fixed-size segments that never move once
+ *  allocated, so growing the store never copies account data and
+ *  scans over balances walk plain long arrays. Closed slots are
+ *  reused by the next account that is added, and compacting moves
+ *  the last accounts into any slots left over, letting go of
+ *  segments that end up empty.<br>
+ *  Reads take no lock. Every slot has a stamp that is odd while the
+ *  slot is being written, and readers read a slot again if its stamp
+ *  changed while they read it, so an account being replaced is never
+ *  read half old and half new.<br>
+ *  Views share segments with the store instead of copying them.
+ *  Each segment remembers the version of the store it was made in,
+ *  and taking a view starts a new version, so the first write to a
+ *  segment after a view copies it, and the view keeps the original.
+ *  Taking a view costs one pointer per segment, and only segments
+ *  written to while views are open are ever copied.
+ * @see AccountStore
+ * @see StringPool
+ */
+
+public class ColumnarAccountStore implements AccountStore {
+    // Declare constants
+    private static final int SEGMENT_SHIFT = 14;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int COMPACT_BATCH = 4096;
+
+    /**
+     * One segment's worth of every column. A slot whose ID
+     * is 0 is free.
+     */
+    private static final class Segment {
+        final int version;
+        final int[] ids, names, addresses;
+        final long[] balances;
+        // Stamps only have to agree with the columns of their own segment
+        final AtomicIntegerArray stamps = new AtomicIntegerArray(SEGMENT_SIZE);
+
+        Segment(int version) {
+            this.version = version;
+            this.ids = new int[SEGMENT_SIZE];
+            this.balances = new long[SEGMENT_SIZE];
+            this.names = new int[SEGMENT_SIZE];
+            this.addresses = new int[SEGMENT_SIZE];
+        }
+
+        Segment(Segment original, int version) {
+            this.version = version;
+            this.ids = original.ids.clone();
+            this.balances = original.balances.clone();
+            this.names = original.names.clone();
+            this.addresses = original.addresses.clone();
+        }
+
+        /**
+         * Marks a slot as being written. Only called while holding the
+         * store's lock.
+         */
+        void beginWrite(int i) {
+            stamps.getAndIncrement(i);
+        }
+
+        /**
+         * Marks a slot as written, publishing its columns to readers.
+         */
+        void endWrite(int i) {
+            stamps.incrementAndGet(i);
+        }
+    }
+
+    // Declare class variables
+    private final StringPool pool = new StringPool();
+    private volatile Segment[] segments = new Segment[0];
+    private volatile int[][] slotsByID = new int[0][];
+    private volatile int highWater, size;
+    private int[] freeSlots = new int[64];
+    private int freeCount, maxID;
+    // Rows of the ID table are copied on write like segments are
+    private int[] rowVersions = new int[0];
+    private volatile int version;
+
+    @Override
+    public synchronized void put(Account acc) {
+        // Declare variables
+        int id = acc.getID();
+        if (id <= 0)
+            throw new IllegalArgumentException("Account IDs must be positive, got " + id);
+        int slot = slotOf(slotsByID, id);
+        boolean replacing = slot >= 0;
+
+        // Reuse the slot of a replaced account, then a freed slot
+        Segment seg;
+        if (replacing)
+            seg = writableSegment(slot >>> SEGMENT_SHIFT);
+        else {
+            slot = freeCount > 0 ? freeSlots[--freeCount] : highWater;
+            seg = segmentFor(slot);
+        }
+
+        // Fill in the columns before making the slot reachable, and
+        // readers of a replaced account read it again once written
+        int i = slot & SEGMENT_MASK;
+        seg.beginWrite(i);
+        if (replacing) {
+            pool.release(seg.names[i]);
+            pool.release(seg.addresses[i]);
+        }
+        seg.names[i] = pool.intern(acc.getName());
+        seg.addresses[i] = pool.intern(acc.getAddress());
+        seg.balances[i] = acc.getBalance();
+        seg.ids[i] = id;
+        seg.endWrite(i);
+        if (!replacing) {
+            slotRowFor(id)[id & SEGMENT_MASK] = slot + 1;
+            if (slot == highWater)
+                highWater = slot + 1;
+            size++;
+        }
+        maxID = Math.max(maxID, id);
+    }
+
+    @Override
+    public synchronized boolean remove(int id) {
+        int slot = slotOf(slotsByID, id);
+        if (slot < 0)
+            return false;
+
+        // Clear the slot so scans skip it, then free it up
+        Segment seg = writableSegment(slot >>> SEGMENT_SHIFT);
+        int i = slot & SEGMENT_MASK;
+        seg.beginWrite(i);
+        pool.release(seg.names[i]);
+        pool.release(seg.addresses[i]);
+        seg.ids[i] = 0;
+        seg.balances[i] = 0;
+        seg.endWrite(i);
+        writableRow(id >>> SEGMENT_SHIFT)[id & SEGMENT_MASK] = 0;
+        if (freeCount == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+        size--;
+        return true;
+    }
+
+    @Override
+    public boolean contains(int id) {
+        return slotOf(slotsByID, id) >= 0;
+    }
+
+    @Override
+    public Account get(int id) {
+        // Compacting may move the account after its slot is looked up
+        while (true) {
+            int[][] rows = slotsByID;
+            int slot = slotOf(rows, id);
+            Account acc = get(segments, rows, id);
+            if (acc != null || slot == slotOf(slotsByID, id))
+                return acc;
+        }
+    }
+
+    @Override
+    public long getBalance(int id) {
+        int slot = checkedSlotOf(slotsByID, id);
+        return segments[slot >>> SEGMENT_SHIFT].balances[slot & SEGMENT_MASK];
+    }
+
+    @Override
+    public void setBalance(int id, long balance) {
+        int slot = checkedSlotOf(slotsByID, id);
+        writableSegment(slot >>> SEGMENT_SHIFT).balances[slot & SEGMENT_MASK] = balance;
+    }
+
+    @Override
+    public int size() { return size; }
+
+    @Override
+    public synchronized int maxID() { return maxID; }
+
+    @Override
+    public synchronized void raiseMaxID(int maxID) { this.maxID = Math.max(this.maxID, maxID); }
+
+    @Override
+    public void forEach(Consumer<Account> action) {
+        forEach(segments, highWater, action);
+    }
+
+    @Override
+    public long totalBalance() {
+        return totalBalance(segments, highWater);
+    }
+
+    @Override
+    public int countNegative() {
+        return countNegative(segments, highWater);
+    }
+
+    /**
+     * Moves the last accounts into the slots closed accounts left
+     * behind, a batch at a time, so sessions only ever wait for one
+     * batch to be moved.
+     */
+    @Override
+    public boolean compact(double ratio, Consumer<Runnable> exclusive) {
+        // Declare variables
+        boolean[] more = {true};
+
+        synchronized (this) {
+            if (freeCount == 0 || freeCount < ratio * highWater)
+                return false;
+        }
+        while (more[0])
+            exclusive.accept(() -> more[0] = compactBatch(COMPACT_BATCH) == COMPACT_BATCH);
+        return true;
+    }
+
+    /**
+     * Moves up to the given number of accounts from the end of the
+     * store into the lowest free slots.
+     * @return The number of accounts moved
+     */
+    private synchronized int compactBatch(int limit) {
+        // Declare variables
+        int end = trimmedEnd(highWater), next = 0, moved = 0;
+
+        Arrays.sort(freeSlots, 0, freeCount);
+        while (moved < limit && next < freeCount && freeSlots[next] < end) {
+            moveSlot(end - 1, freeSlots[next++]);
+            end = trimmedEnd(end - 1);
+            moved++;
+        }
+
+        // Slots that were filled or are past the end aren't free anymore
+        int kept = 0;
+        for (int i = next; i < freeCount; i++)
+            if (freeSlots[i] < end)
+                freeSlots[kept++] = freeSlots[i];
+        freeCount = kept;
+
+        // Lock-free scans read the directory first, so shrink it last
+        highWater = end;
+        segments = Arrays.copyOf(segments, (end + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        return moved;
+    }
+
+    /**
+     * Moves an account to another slot, filling in the new slot
+     * before pointing its ID at it, so lookups never miss it.
+     */
+    private void moveSlot(int from, int to) {
+        // Declare variables
+        Segment src = segments[from >>> SEGMENT_SHIFT], dst = writableSegment(to >>> SEGMENT_SHIFT);
+        int i = from & SEGMENT_MASK, j = to & SEGMENT_MASK, id = src.ids[i];
+
+        dst.beginWrite(j);
+        dst.names[j] = src.names[i];
+        dst.addresses[j] = src.addresses[i];
+        dst.balances[j] = src.balances[i];
+        dst.ids[j] = id;
+        dst.endWrite(j);
+        writableRow(id >>> SEGMENT_SHIFT)[id & SEGMENT_MASK] = to + 1;
+
+        src = writableSegment(from >>> SEGMENT_SHIFT);
+        src.beginWrite(i);
+        src.ids[i] = 0;
+        src.balances[i] = 0;
+        src.endWrite(i);
+    }
+
+    /**
+     * @return The end of the store once free slots at the end are left off
+     */
+    private int trimmedEnd(int end) {
+        while (end > 0 && segments[(end - 1) >>> SEGMENT_SHIFT].ids[(end - 1) & SEGMENT_MASK] == 0)
+            end--;
+        return end;
+    }
+
+    /**
+     * Takes a view sharing every segment with this store. Segments
+     * are only copied once they're written to, by whichever write
+     * comes first.
+     * @return The view, which has to be closed once done with
+     */
+    @Override
+    public synchronized AccountView snapshot() {
+        // Strings the view refers to must not be handed out again
+        pool.hold();
+        View view = new View(segments.clone(), slotsByID.clone(), highWater, size, maxID);
+        version++;
+        return view;
+    }
+
+    /**
+     * A view of the store, made of the segments and rows it had when
+     * the view was taken. None of them are written to again, since
+     * the store copies them first.
+     */
+    private final class View implements AccountView {
+        // Declare class variables
+        private final Segment[] segs;
+        private final int[][] rows;
+        private final int end, count, highestID;
+        private boolean closed;
+
+        View(Segment[] segs, int[][] rows, int end, int count, int highestID) {
+            this.segs = segs;
+            this.rows = rows;
+            this.end = end;
+            this.count = count;
+            this.highestID = highestID;
+        }
+
+        @Override
+        public void put(Account acc) { throw readOnly(); }
+
+        @Override
+        public boolean remove(int id) { throw readOnly(); }
+
+        @Override
+        public void setBalance(int id, long balance) { throw readOnly(); }
+
+        @Override
+        public void raiseMaxID(int maxID) { throw readOnly(); }
+
+        @Override
+        public boolean contains(int id) { return slotOf(rows, id) >= 0; }
+
+        @Override
+        public Account get(int id) { return ColumnarAccountStore.this.get(segs, rows, id); }
+
+        @Override
+        public long getBalance(int id) {
+            int slot = checkedSlotOf(rows, id);
+            return segs[slot >>> SEGMENT_SHIFT].balances[slot & SEGMENT_MASK];
+        }
+
+        @Override
+        public int size() { return count; }
+
+        @Override
+        public int maxID() { return highestID; }
+
+        @Override
+        public void forEach(Consumer<Account> action) { ColumnarAccountStore.this.forEach(segs, end, action); }
+
+        @Override
+        public long totalBalance() { return ColumnarAccountStore.totalBalance(segs, end); }
+
+        @Override
+        public int countNegative() { return ColumnarAccountStore.countNegative(segs, end); }
+
+        @Override
+        public AccountView snapshot() {
+            // Nothing here ever changes, but each view is closed on its own
+            synchronized (ColumnarAccountStore.this) {
+                pool.hold();
+                return new View(segs, rows, end, count, highestID);
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (ColumnarAccountStore.this) {
+                if (closed)
+                    return;
+                closed = true;
+                pool.unhold();
+            }
+        }
+
+        private UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("Account views are read-only");
+        }
+    }
+
+    private Account get(Segment[] segs, int[][] rows, int id) {
+        int slot = slotOf(rows, id);
+        if (slot < 0)
+            return null;
+        Account acc = view(segs[slot >>> SEGMENT_SHIFT], slot & SEGMENT_MASK);
+        return acc.getID() == id ? acc : null;
+    }
+
+    private void forEach(Segment[] segs, int end, Consumer<Account> action) {
+        for (int slot = 0; slot < end; slot++) {
+            Segment seg = segs[slot >>> SEGMENT_SHIFT];
+            int i = slot & SEGMENT_MASK;
+            if (seg.ids[i] == 0)
+                continue;
+            Account acc = view(seg, i);
+            if (acc.getID() != 0)
+                action.accept(acc);
+        }
+    }
+
+    private static long totalBalance(Segment[] segs, int end) {
+        // Free slots hold a balance of 0, so they can be summed too
+        long total = 0;
+        for (long[] balances : balanceColumns(segs, end))
+            for (long balance : balances)
+                total += balance;
+        return total;
+    }
+
+    private static int countNegative(Segment[] segs, int end) {
+        int count = 0;
+        for (long[] balances : balanceColumns(segs, end))
+            for (long balance : balances)
+                if (balance < 0)
+                    count++;
+        return count;
+    }
+
+    private static long[][] balanceColumns(Segment[] segs, int end) {
+        long[][] columns = new long[(end + SEGMENT_MASK) >>> SEGMENT_SHIFT][];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = segs[i].balances;
+        return columns;
+    }
+
+    /**
+     * Reads a slot without locking, reading it again for as long as
+     * it's written to in the middle. Strings released meanwhile still
+     * read as something, and the stamp says to throw them away.
+     * @return The account in the slot, with an ID of 0 if it's free
+     */
+    private Account view(Segment seg, int i) {
+        while (true) {
+            int stamp = seg.stamps.get(i);
+            if ((stamp & 1) == 0) {
+                Account acc = new Account(seg.ids[i], pool.get(seg.names[i]), pool.get(seg.addresses[i]),
+                        seg.balances[i]);
+                // Keep the column reads from moving past the second stamp read
+                VarHandle.acquireFence();
+                if (seg.stamps.get(i) == stamp)
+                    return acc;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return The slot holding an ID, or -1 if it isn't stored
+     */
+    private static int slotOf(int[][] rows, int id) {
+        int row = id >>> SEGMENT_SHIFT;
+        if (id <= 0 || row >= rows.length || rows[row] == null)
+            return -1;
+        return rows[row][id & SEGMENT_MASK] - 1;
+    }
+
+    private static int checkedSlotOf(int[][] rows, int id) {
+        int slot = slotOf(rows, id);
+        if (slot < 0)
+            throw new NoSuchElementException("No account with ID " + id);
+        return slot;
+    }
+
+    /**
+     * Provides a segment that no view shares, copying it if a view
+     * was taken since it was made.
+     */
+    private Segment writableSegment(int index) {
+        Segment seg = segments[index];
+        return seg.version == version ? seg : copySegment(index);
+    }
+
+    private synchronized Segment copySegment(int index) {
+        // Someone else may have copied it while we waited
+        Segment seg = segments[index];
+        if (seg.version != version) {
+            // Publishing the directory again lets lock-free readers see the copy
+            Segment[] segs = segments;
+            seg = new Segment(seg, version);
+            segs[index] = seg;
+            segments = segs;
+        }
+        return seg;
+    }
+
+    /**
+     * Provides a row of the ID-to-slot table that no view shares,
+     * copying it if a view was taken since it was made. Only called
+     * while holding this store's lock.
+     */
+    private int[] writableRow(int row) {
+        if (rowVersions[row] != version) {
+            slotsByID[row] = slotsByID[row].clone();
+            rowVersions[row] = version;
+        }
+        return slotsByID[row];
+    }
+
+    /**
+     * Provides the segment covering a slot, allocating it if needed.
+     * Only called while holding this store's lock.
+     */
+    private Segment segmentFor(int slot) {
+        // Declare variables
+        int index = slot >>> SEGMENT_SHIFT;
+        Segment[] segs = segments;
+
+        // Segments are filled in before the directory is published
+        // again, so lock-free readers never see a missing one
+        if (index >= segs.length || segs[index] == null) {
+            if (index >= segs.length)
+                segs = Arrays.copyOf(segs, Math.max(index + 1, segs.length * 2));
+            segs[index] = new Segment(version);
+            segments = segs;
+        }
+        return writableSegment(index);
+    }
+
+    /**
+     * Provides the row of the ID-to-slot table covering an ID,
+     * allocating it if needed. Only called while holding this
+     * store's lock.
+     */
+    private int[] slotRowFor(int id) {
+        // Declare variables
+        int row = id >>> SEGMENT_SHIFT;
+        int[][] rows = slotsByID;
+
+        if (row >= rows.length || rows[row] == null) {
+            if (row >= rows.length) {
+                rows = Arrays.copyOf(rows, Math.max(row + 1, rows.length * 2));
+                rowVersions = Arrays.copyOf(rowVersions, rows.length);
+            }
+            rows[row] = new int[SEGMENT_SIZE];
+            rowVersions[row] = version;
+            slotsByID = rows;
+        }
+        return writableRow(row);
+    }
+}
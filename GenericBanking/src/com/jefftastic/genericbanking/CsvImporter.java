@@ -0,0 +1,418 @@
+package com.jefftastic.genericbanking;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ *  Merges an account CSV file from elsewhere into the ledger by:<br>
+ *  - Streaming the file in, sorting rows by ID in runs that fit in
+ *    memory and spilling every run to a temporary file<br>
+ *  - Merging all runs in a single pass, so rows come out in ID order,
+ *    and matching each against the account stored under its ID<br>
+ *  - Matching rows without an ID against accounts by name and address<br>
+ *  A row whose ID isn't in use opens an account under that ID. One
+ *  whose ID is held by an account of the same name, ignoring case,
+ *  updates that account, and one whose ID is held by someone else is
+ *  a conflict. A row without an ID updates the one account with the
+ *  same name and address, or opens a new one if there is none.<br>
+ *  Conflicts, malformed rows and IDs that appear more than once are
+ *  written to a report as line;ID;reason rather than ending the
+ *  import. Only a single run is ever held in memory, and accounts
+ *  are probed in ID order, so even paged stores are read front to
+ *  back.
+ * @see CsvLoader
+ * @see Ledger
+ */
+
+public class CsvImporter {
+    // Declare constants
+    public static final int DEFAULT_RUN_ROWS = 1 << 18;
+    private static final char SEPARATOR = ';';
+    private static final char QUOTE = '"';
+    private static final int BATCH_SIZE = 4096;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int RUN_BUFFER_SIZE = 1 << 16;
+    private static final LatencyHistogram SORT_LATENCY = Metrics.histogram("import.sort");
+    private static final LatencyHistogram MERGE_LATENCY = Metrics.histogram("import.merge");
+
+    /**
+     * One row of the file, numbered by its line. Rows without an ID
+     * have an ID of 0.
+     */
+    private record Row(long line, int id, String name, String address, long balance) {}
+
+    /**
+     * What an import did.
+     * @param inserted The number of accounts opened
+     * @param updated The number of accounts changed
+     * @param unchanged The number of rows that matched an account exactly
+     * @param conflicts The number of rows written to the conflict report
+     * @param runs The number of sorted runs spilled to disk
+     * @param nanos How long the import took
+     */
+    public record Result(long inserted, long updated, long unchanged, long conflicts, int runs, long nanos) {}
+
+    /**
+     * Reads rows back out of a spilled run, one at a time.
+     */
+    private static class RunReader implements Closeable {
+        // Declare class variables
+        private final DataInputStream in;
+        private Row head;
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+            advance();
+        }
+
+        /**
+         * Moves on to the next row, leaving head null past the last one.
+         */
+        void advance() throws IOException {
+            head = readRow(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Declare class variables
+    private final Ledger ledger;
+    private final int runRows;
+    private Writer report;
+    private long inserted, updated, unchanged, conflicts;
+
+    /**
+     * CsvImporter constructor.
+     * @param ledger The ledger to import accounts into
+     * @param runRows The most rows to sort in memory at once
+     */
+    public CsvImporter(Ledger ledger, int runRows) {
+        this.ledger = ledger;
+        this.runRows = runRows;
+    }
+
+    /**
+     * CsvImporter constructor, sorting the default number of rows at once.
+     * @param ledger The ledger to import accounts into
+     */
+    public CsvImporter(Ledger ledger) {
+        this(ledger, DEFAULT_RUN_ROWS);
+    }
+
+    /**
+     * Imports every row of an account CSV file. Runs are spilled next
+     * to the report, and deleted once the import is done.
+     * @param input The file to import
+     * @param output The file to write conflicts to
+     * @return What the import did
+     */
+    public Result run(File input, File output) throws IOException {
+        // Declare variables
+        File parent = output.getAbsoluteFile().getParentFile();
+        File spill = Files.createTempDirectory(parent.toPath(), "import").toFile();
+        File unnumbered = new File(spill, "unnumbered");
+        List<File> runs;
+        long start = System.nanoTime();
+
+        inserted = updated = unchanged = conflicts = 0;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            report = out;
+            runs = sort(input, spill, unnumbered);
+            SORT_LATENCY.recordSince(start);
+
+            long mergeStart = System.nanoTime();
+            merge(runs);
+            matchUnnumbered(unnumbered);
+            MERGE_LATENCY.recordSince(mergeStart);
+        } finally {
+            report = null;
+            File[] files = spill.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            spill.delete();
+        }
+
+        return new Result(inserted, updated, unchanged, conflicts, runs.size(), System.nanoTime() - start);
+    }
+
+    /**
+     * Reads the file, spilling rows with an ID as sorted runs and rows
+     * without one as they come.
+     * @return The spilled runs, in the order they were written
+     */
+    private List<File> sort(File input, File spill, File unnumbered) throws IOException {
+        // Declare variables
+        List<File> runs = new ArrayList<>();
+        List<Row> run = new ArrayList<>();
+        long line = 0;
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(input), StandardCharsets.UTF_8), BUFFER_SIZE);
+             DataOutputStream rest = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(unnumbered), RUN_BUFFER_SIZE))) {
+            String text;
+            while ((text = in.readLine()) != null) {
+                line++;
+                if (text.isBlank())
+                    continue;
+
+                Row row = parse(line, BatchProcessor.split(text));
+                if (row == null)
+                    continue;
+                if (row.id() == 0) {
+                    writeRow(rest, row);
+                    continue;
+                }
+
+                run.add(row);
+                if (run.size() == runRows) {
+                    runs.add(spillRun(run, spill, runs.size()));
+                    run.clear();
+                }
+            }
+            if (!run.isEmpty())
+                runs.add(spillRun(run, spill, runs.size()));
+        }
+
+        return runs;
+    }
+
+    /**
+     * Sorts a run by ID and writes it out. The sort is stable, so rows
+     * sharing an ID stay in file order.
+     */
+    private static File spillRun(List<Row> run, File spill, int index) throws IOException {
+        File file = new File(spill, "run" + index);
+
+        run.sort(Comparator.comparingInt(Row::id));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), RUN_BUFFER_SIZE))) {
+            for (Row row : run)
+                writeRow(out, row);
+        }
+
+        return file;
+    }
+
+    /**
+     * Merges every run at once, applying rows in ID order. Of rows
+     * sharing an ID, only the first in the file is applied.
+     */
+    private void merge(List<File> runs) throws IOException {
+        // Declare variables
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                Comparator.comparingInt((RunReader r) -> r.head.id()).thenComparingLong(r -> r.head.line()));
+        List<RunReader> readers = new ArrayList<>();
+        List<Row> batch = new ArrayList<>(BATCH_SIZE);
+        Row first = null;
+
+        try {
+            for (File file : runs) {
+                RunReader reader = new RunReader(file);
+                readers.add(reader);
+                if (reader.head != null)
+                    queue.add(reader);
+            }
+
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                Row row = reader.head;
+                reader.advance();
+                if (reader.head != null)
+                    queue.add(reader);
+
+                if (first != null && first.id() == row.id()) {
+                    conflict(row.line(), row.id(), "Account ID %d appears more than once, first on line %d."
+                            .formatted(row.id(), first.line()));
+                    continue;
+                }
+                first = row;
+                batch.add(row);
+                if (batch.size() == BATCH_SIZE)
+                    apply(batch);
+            }
+            apply(batch);
+        } finally {
+            for (RunReader reader : readers)
+                reader.close();
+        }
+    }
+
+    /**
+     * Matches rows without an ID by name and address, in file order.
+     */
+    private void matchUnnumbered(File unnumbered) throws IOException {
+        // Declare variables
+        List<Row> batch = new ArrayList<>(BATCH_SIZE);
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(unnumbered), RUN_BUFFER_SIZE))) {
+            Row row;
+            while ((row = readRow(in)) != null) {
+                batch.add(row);
+                if (batch.size() == BATCH_SIZE)
+                    apply(batch);
+            }
+            apply(batch);
+        }
+    }
+
+    /**
+     * Applies a batch of rows, waiting on the journal once for all of them.
+     */
+    private void apply(List<Row> batch) throws IOException {
+        // Declare variables
+        IOException[] failure = new IOException[1];
+
+        ledger.deferCommits(() -> {
+            try {
+                for (Row row : batch) {
+                    if (row.id() == 0)
+                        upsertByName(row);
+                    else
+                        upsertByID(row);
+                }
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        batch.clear();
+
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    private void upsertByID(Row row) throws IOException {
+        Account existing = ledger.get(row.id());
+
+        if (existing == null) {
+            ledger.put(row.id(), row.name(), row.address(), row.balance());
+            inserted++;
+        } else if (!existing.getName().equalsIgnoreCase(row.name()))
+            conflict(row.line(), row.id(), "Account ID %d belongs to \"%s\", not \"%s\"."
+                    .formatted(row.id(), existing.getName(), row.name()));
+        else
+            update(existing, row);
+    }
+
+    private void upsertByName(Row row) throws IOException {
+        // Declare variables
+        Account match = null;
+        int matches = 0;
+
+        for (Account acc : ledger.find(row.name())) {
+            if (acc.getAddress().equalsIgnoreCase(row.address())) {
+                match = acc;
+                matches++;
+            }
+        }
+
+        if (matches == 0) {
+            ledger.open(row.name(), row.address(), row.balance());
+            inserted++;
+        } else if (matches > 1)
+            conflict(row.line(), 0, "%d accounts are named \"%s\" at \"%s\"."
+                    .formatted(matches, row.name(), row.address()));
+        else
+            update(match, row);
+    }
+
+    private void update(Account existing, Row row) {
+        if (existing.getName().equals(row.name()) && existing.getAddress().equals(row.address())
+                && existing.getBalance() == row.balance()) {
+            unchanged++;
+            return;
+        }
+
+        ledger.put(existing.getID(), row.name(), row.address(), row.balance());
+        updated++;
+    }
+
+    /**
+     * Parses the fields of a row, reporting it if it's malformed.
+     * @return The row, or null if it was reported
+     */
+    private Row parse(long line, String[] fields) throws IOException {
+        // Declare variables
+        int id = 0;
+        int at = fields.length - 3;
+
+        if (fields.length != 3 && fields.length != 4) {
+            conflict(line, 0, "Expected 4 values but received %d.".formatted(fields.length));
+            return null;
+        }
+
+        try {
+            if (fields.length == 4) {
+                id = Integer.parseInt(fields[0].trim());
+                if (id <= 0) {
+                    conflict(line, 0, "Account ID %d is not positive.".formatted(id));
+                    return null;
+                }
+            }
+            if (fields[at].isBlank()) {
+                conflict(line, id, "Account name is empty.");
+                return null;
+            }
+            return new Row(line, id, fields[at], fields[at + 1], Money.parse(fields[at + 2].trim()));
+        } catch (NumberFormatException e) {
+            conflict(line, id, "Invalid number (%s).".formatted(e.getMessage()));
+            return null;
+        }
+    }
+
+    private void conflict(long line, int id, String reason) throws IOException {
+        report.write(Long.toString(line));
+        report.write(SEPARATOR);
+        if (id != 0)
+            report.write(Integer.toString(id));
+        report.write(SEPARATOR);
+        report.write(QUOTE);
+        report.write(reason.replace("\"", "\"\""));
+        report.write(QUOTE);
+        report.write('\n');
+        conflicts++;
+    }
+
+    private static void writeRow(DataOutputStream out, Row row) throws IOException {
+        out.writeLong(row.line());
+        out.writeInt(row.id());
+        out.writeLong(row.balance());
+        writeString(out, row.name());
+        writeString(out, row.address());
+    }
+
+    /**
+     * @return The next row, or null if there are no more
+     */
+    private static Row readRow(DataInputStream in) throws IOException {
+        // Declare variables
+        long line;
+
+        try { line = in.readLong(); }
+        catch (EOFException e) { return null; }
+
+        int id = in.readInt();
+        long balance = in.readLong();
+        return new Row(line, id, readString(in), readString(in), balance);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,289 @@
+package com.jefftastic.genericbanking;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ *  Loads accounts out of an account CSV file by:<br>
+ *  - Splitting the file into line-aligned chunks<br>
+ *  - Memory-mapping and parsing every chunk in parallel<br>
+ *  - Adding the chunks to an account store in file order<br>
+ *  Rows are parsed straight into accounts without holding the
+ *  whole file as strings, and malformed rows are reported with
+ *  their line number rather than ending the load.
+ * @see Database
+ */
+
+class CsvLoader {
+    // Declare constants
+    private static final char SEPARATOR = ';';
+    private static final char QUOTE = '"';
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final long MAX_CHUNK_SIZE = 1L << 28;
+    private static final int MAX_REPORTED_ERRORS = 100;
+    private static final LatencyHistogram PARSE_LATENCY = Metrics.histogram("csv.parse");
+    private static final LatencyHistogram INSERT_LATENCY = Metrics.histogram("csv.insert");
+
+    /**
+     * A row that was stored before accounts had IDs.
+     */
+    private record LegacyRow(String name, String address, long balance) {}
+
+    /**
+     * A malformed row, numbered relative to the start of its chunk.
+     */
+    private record RowError(long line, String reason) {}
+
+    /**
+     * Everything parsed out of one chunk of the file.
+     */
+    private static class Chunk {
+        final List<Account> accounts = new ArrayList<>();
+        final List<LegacyRow> legacy = new ArrayList<>();
+        final List<RowError> errors = new ArrayList<>();
+        long lines;
+    }
+
+    /**
+     * Loads every account stored in a CSV file. Rows are expected
+     * to hold an ID, name, address and balance. Rows without an ID
+     * are given the next free IDs once every stored ID is known.
+     * @param file The file to load accounts from
+     * @param store The store to add the accounts to
+     */
+    static void load(File file, AccountStore store) throws IOException {
+        // Declare variables
+        List<Chunk> chunks = new ArrayList<>();
+        int errorCount = 0;
+        long lineOffset = 0;
+        long start = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Parse every chunk on the common fork-join pool
+            List<ChunkTask> tasks = new ArrayList<>();
+            long[] bounds = split(channel);
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                ChunkTask task = new ChunkTask(channel, bounds[i], bounds[i + 1]);
+                ForkJoinPool.commonPool().execute(task);
+                tasks.add(task);
+            }
+            for (ChunkTask task : tasks)
+                chunks.add(task.join());
+        }
+        PARSE_LATENCY.recordSince(start);
+        start = System.nanoTime();
+
+        // Stitch chunks together in order
+        for (Chunk chunk : chunks) {
+            for (RowError error : chunk.errors)
+                if (errorCount++ < MAX_REPORTED_ERRORS)
+                    printError(lineOffset + error.line(), error.reason());
+
+            for (Account acc : chunk.accounts) {
+                // IDs have to be unique, so drop repeats
+                if (store.contains(acc.getID())) {
+                    if (errorCount++ < MAX_REPORTED_ERRORS)
+                        printError(-1, "Account ID %d appears more than once.".formatted(acc.getID()));
+                    continue;
+                }
+                store.put(acc);
+            }
+            chunk.accounts.clear();
+            lineOffset += chunk.lines;
+        }
+        if (errorCount > MAX_REPORTED_ERRORS)
+            System.out.printf("%d more malformed rows were skipped.\n", errorCount - MAX_REPORTED_ERRORS);
+
+        // Now give rows without IDs the next free ones
+        int nextID = store.maxID() + 1;
+        for (Chunk chunk : chunks)
+            for (LegacyRow row : chunk.legacy)
+                store.put(new Account(nextID++, row.name(), row.address(), row.balance()));
+        INSERT_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Splits a file into chunks that each end right after a line
+     * break, sized so every worker gets a few chunks to balance load.
+     * @param channel The channel of the file to split
+     * @return The chunk boundaries, starting at 0 and ending at the file size
+     */
+    private static long[] split(FileChannel channel) throws IOException {
+        // Declare variables
+        long size = channel.size();
+        int workers = ForkJoinPool.commonPool().getParallelism();
+        long target = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (workers * 4L)));
+        List<Long> bounds = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+
+        bounds.add(0L);
+        long pos = target;
+        while (pos < size) {
+            // Move forward until just past the next line break
+            long next = -1;
+            while (next == -1 && pos < size) {
+                probe.clear();
+                int read = channel.read(probe, pos);
+                for (int i = 0; i < read; i++)
+                    if (probe.get(i) == '\n') {
+                        next = pos + i + 1;
+                        break;
+                    }
+                if (next == -1)
+                    pos += Math.max(read, 0);
+            }
+            if (next == -1 || next >= size)
+                break;
+
+            bounds.add(next);
+            pos = next + target;
+        }
+        bounds.add(size);
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = bounds.get(i);
+        return result;
+    }
+
+    private static void printError(long line, String reason) {
+        if (line < 0)
+            System.out.printf("An error occurred during the creation of aDB! %s Skipping!\n", reason);
+        else
+            System.out.printf("An error occurred during the creation of aDB on line %d! %s Skipping!\n", line, reason);
+    }
+
+    /**
+     * Parses a single chunk of the file.
+     */
+    private static class ChunkTask extends RecursiveTask<Chunk> {
+        // Declare constants
+        private static final long serialVersionUID = 1L;
+
+        // Declare class variables
+        private final FileChannel channel;
+        private final long start, end;
+        private final List<String> fields = new ArrayList<>(4);
+        private byte[] scratch = new byte[256];
+        private MappedByteBuffer buf;
+
+        ChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Chunk compute() {
+            // Declare variables
+            Chunk chunk = new Chunk();
+            int length = (int) (end - start);
+            int lineStart = 0;
+
+            try { buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length); }
+            catch (IOException e) { throw new RuntimeException(e); }
+
+            // Walk line by line, leaving off a trailing carriage return
+            while (lineStart < length) {
+                int lineEnd = lineStart;
+                while (lineEnd < length && buf.get(lineEnd) != '\n')
+                    lineEnd++;
+                int contentEnd = lineEnd;
+                if (contentEnd > lineStart && buf.get(contentEnd - 1) == '\r')
+                    contentEnd--;
+
+                chunk.lines++;
+                if (contentEnd > lineStart)
+                    parseRow(chunk, lineStart, contentEnd);
+                lineStart = lineEnd + 1;
+            }
+
+            return chunk;
+        }
+
+        /**
+         * Parses one row into an account, or records why it could not.
+         */
+        private void parseRow(Chunk chunk, int from, int to) {
+            // Split into fields
+            String reason = splitFields(from, to);
+            if (reason != null) {
+                chunk.errors.add(new RowError(chunk.lines, reason));
+                return;
+            }
+
+            try {
+                if (fields.size() == 4) {
+                    int id = Integer.parseInt(fields.get(0));
+                    if (id <= 0)
+                        chunk.errors.add(new RowError(chunk.lines, "Account ID %d is not positive.".formatted(id)));
+                    else
+                        chunk.accounts.add(new Account(id, fields.get(1), fields.get(2), Money.parse(fields.get(3))));
+                } else if (fields.size() == 3)
+                    chunk.legacy.add(new LegacyRow(fields.get(0), fields.get(1), Money.parse(fields.get(2))));
+                else
+                    chunk.errors.add(new RowError(chunk.lines,
+                            "Expected 4 values but received %d.".formatted(fields.size())));
+            } catch (NumberFormatException e) {
+                chunk.errors.add(new RowError(chunk.lines, "Invalid number (%s).".formatted(e.getMessage())));
+            }
+        }
+
+        /**
+         * Splits the bytes of a row into fields, following the
+         * quoting rules of the OpenCSV parser.
+         * @return null on success, otherwise the reason the row is malformed
+         */
+        private String splitFields(int from, int to) {
+            // Declare variables
+            int pos = from;
+            fields.clear();
+
+            while (true) {
+                int len = 0;
+                if (pos < to && buf.get(pos) == QUOTE) {
+                    // Quoted field, where a doubled quote is a literal quote
+                    pos++;
+                    while (true) {
+                        if (pos >= to)
+                            return "Unterminated quoted value.";
+                        byte b = buf.get(pos++);
+                        if (b == QUOTE) {
+                            if (pos < to && buf.get(pos) == QUOTE)
+                                pos++;
+                            else
+                                break;
+                        }
+                        len = append(len, b);
+                    }
+                    if (pos < to && buf.get(pos) != SEPARATOR)
+                        return "Unexpected text after a quoted value.";
+                } else {
+                    while (pos < to && buf.get(pos) != SEPARATOR)
+                        len = append(len, buf.get(pos++));
+                }
+                fields.add(new String(scratch, 0, len, StandardCharsets.UTF_8));
+
+                // Either continue past the separator or stop at the end of the row
+                if (pos >= to)
+                    return null;
+                pos++;
+            }
+        }
+
+        private int append(int len, byte b) {
+            if (len == scratch.length)
+                scratch = Arrays.copyOf(scratch, len * 2);
+            scratch[len] = b;
+            return len + 1;
+        }
+    }
+}
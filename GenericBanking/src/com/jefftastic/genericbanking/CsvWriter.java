@@ -0,0 +1,169 @@
+package com.jefftastic.genericbanking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ *  Writes accounts into an account CSV file by:<br>
+ *  - Encoding every row straight into a large direct buffer<br>
+ *  - Streaming that buffer into a temporary file next to the target<br>
+ *  - Syncing the temporary file and renaming it over the target<br>
+ *  The target is never truncated in place, so a crash mid-save
+ *  leaves the previous file untouched.
+ * @see Database
+ */
+
+class CsvWriter {
+    // Declare constants
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final LatencyHistogram WRITE_LATENCY = Metrics.histogram("csv.write");
+    private static final LatencyHistogram SYNC_LATENCY = Metrics.histogram("csv.sync");
+    private static final byte SEPARATOR = ';';
+    private static final byte QUOTE = '"';
+
+    // Declare class variables
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] digits = new byte[20];
+    private FileChannel channel;
+    private long written;
+
+    /**
+     * Writes every account in a store as CSV, replacing the file
+     * at the given path atomically.
+     * @param accounts The accounts to write
+     * @param path The file to replace
+     * @return The number of bytes written
+     */
+    static long write(AccountStore accounts, Path path) throws IOException {
+        // Declare variables
+        Path target = path.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        CsvWriter writer = new CsvWriter();
+        long start = System.nanoTime();
+
+        // Stream every row into the temporary file, then make it durable
+        try (FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writer.channel = fc;
+            try {
+                accounts.forEach(acc -> {
+                    try { writer.writeRow(acc); }
+                    catch (IOException e) { throw new UncheckedIOException(e); }
+                });
+            } catch (UncheckedIOException e) { throw e.getCause(); }
+            writer.drain();
+            WRITE_LATENCY.recordSince(start);
+            start = System.nanoTime();
+            fc.force(true);
+        }
+
+        // Now swap it in
+        Database.replaceFile(temp, target);
+        SYNC_LATENCY.recordSince(start);
+
+        return writer.written;
+    }
+
+    private void writeRow(Account acc) throws IOException {
+        writeLong(acc.getID());
+        put(SEPARATOR);
+        writeField(acc.getName());
+        put(SEPARATOR);
+        writeField(acc.getAddress());
+        put(SEPARATOR);
+        writeBalance(acc.getBalance());
+        put((byte) '\n');
+    }
+
+    /**
+     * Writes a string as UTF-8, quoting it if it holds a separator or
+     * quote. Rows have to stay on one line for the loader to split the
+     * file, so line breaks are written as spaces.
+     */
+    private void writeField(String str) throws IOException {
+        // Declare variables
+        boolean quoted = false;
+        int len = str.length();
+
+        for (int i = 0; i < len && !quoted; i++) {
+            char c = str.charAt(i);
+            quoted = c == SEPARATOR || c == QUOTE;
+        }
+
+        if (quoted)
+            put(QUOTE);
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c == '\n' || c == '\r') {
+                put((byte) ' ');
+            } else if (c < 0x80) {
+                if (c == QUOTE)
+                    put(QUOTE);
+                put((byte) c);
+            } else if (c < 0x800) {
+                put((byte) (0xC0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                put((byte) (0xF0 | (cp >> 18)));
+                put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                put((byte) '?');
+            } else {
+                put((byte) (0xE0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        if (quoted)
+            put(QUOTE);
+    }
+
+    /**
+     * Writes a balance in cents as dollars with two decimal places.
+     */
+    private void writeBalance(long cents) throws IOException {
+        if (cents < 0) {
+            put((byte) '-');
+            cents = -cents;
+        }
+        writeLong(cents / 100);
+        put((byte) '.');
+        put((byte) ('0' + cents % 100 / 10));
+        put((byte) ('0' + cents % 10));
+    }
+
+    private void writeLong(long value) throws IOException {
+        // Declare variables
+        int pos = digits.length;
+
+        if (value < 0) {
+            put((byte) '-');
+            value = -value;
+        }
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (pos < digits.length)
+            put(digits[pos++]);
+    }
+
+    private void put(byte b) throws IOException {
+        if (!buf.hasRemaining())
+            drain();
+        buf.put(b);
+    }
+
+    private void drain() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            written += channel.write(buf);
+        buf.clear();
+    }
+}
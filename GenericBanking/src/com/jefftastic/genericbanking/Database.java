@@ -3,6 +3,9 @@ package com.jefftastic.genericbanking;
 import com.opencsv.*;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,36 +17,31 @@ import java.util.List;
 public class Database {
     // Constants
     public static final String DEFAULT_PATH = "." + File.separator + "adb.csv";
+    public static final String SNAPSHOT_PATH = "." + File.separator + "adb.snap";
+    public static final String DATA_PATH = "." + File.separator + "adb.data";
+    public static final int DEFAULT_SHARDS = 16;
+    private static final LatencyHistogram READ_LATENCY = Metrics.histogram("csv.read");
 
     /**
-     * Constructs the account list from a CSV file.
+     * Constructs the account list from a CSV file. Rows are
+     * expected to hold an ID, name, address and balance. Rows
+     * written before accounts had IDs only hold the last three,
+     * and are given fresh IDs after every stored ID is known.
+     * The file is parsed in parallel, and malformed rows are
+     * reported with their line number and skipped.
      * @param file The filepath to retrieve values from
-     * @return The list of accounts constructed from the CSV file
+     * @return The account store constructed from the CSV file
      * @see AccountManager
      */
-    public static List<Account> constructAccountList(File file) throws Exception {
-        // Get the list of values
-        List<String[]> values = readCSV(file);
-        List<Account> result = new ArrayList<>();
-
-        // Iterate and construct accounts
-        for (String[] value : values) {
-            // If the array has too many or too little values, discard
-            if (value.length != 3) {
-                System.out.printf("""
-                        An error occurred during the creation of aDB!
-                        Expected 3 values but received %d. Skipping!
-                        """, value.length);
-                break;
-            }
-            result.add(new Account(value[0], value[1], Double.parseDouble(value[2])));
-        }
-
-        return result;
+    public static AccountStore constructAccountStore(File file) throws Exception {
+        AccountStore store = new ColumnarAccountStore();
+        CsvLoader.load(file, store);
+        return store;
     }
 
     /**
-     * Reads a CSV file.
+     * Reads a CSV file, as UTF-8 like it's written. Quotes are the
+     * only escape, so backslashes are read as they are.
      * @param file The filepath to retrieve values from
      * @return A list containing arrays of each line's values.
      */
@@ -52,11 +50,13 @@ public class Database {
         CSVReader reader = null;
         List<String[]> result = new ArrayList<>();
         String[] line;
+        long start = System.nanoTime();
 
         try {
             // Initialize reader and iterate
-            reader = new CSVReaderBuilder(new FileReader(file)).withCSVParser(
-                    new CSVParserBuilder().withSeparator(';').build()).build();
+            reader = new CSVReaderBuilder(new FileReader(file, StandardCharsets.UTF_8)).withCSVParser(
+                    new CSVParserBuilder().withSeparator(';')
+                            .withEscapeChar(ICSVParser.NULL_CHARACTER).build()).build();
             while ((line = reader.readNext()) != null)
                 result.add(line);
 
@@ -72,26 +72,24 @@ public class Database {
             if (reader != null)
                 reader.close();
         }
+        READ_LATENCY.recordSince(start);
 
         return result;
     }
 
     /**
-     * Converts an account list into a CSV file.
-     * @param aDB List of accounts
+     * Converts an account store into a CSV file. The file is
+     * written next to the given path first and then renamed
+     * over it, so the old file survives a failed save.
+     * @param aDB Store of accounts
+     * @param path The filepath to save values to
+     * @return Whether the file was saved
      * @see AccountManager
      */
-    public static void saveCSV(List<Account> aDB, String path) {
-        // Declare variables
-        File CSV = new File(path);
-
-        // Iterate through new file
-        try (FileWriter fw = new FileWriter(CSV)) {
-            for (Account acc : aDB)
-                fw.write("%s;%s;%f\n".formatted(
-                        acc.getName(), acc.getAddress(), acc.getBalance()
-                ));
-            fw.flush();
+    public static boolean saveCSV(AccountStore aDB, String path) {
+        try {
+            CsvWriter.write(aDB, Path.of(path));
+            return true;
         } catch (IOException e) {
             // Print error
             System.out.println("""
@@ -99,6 +97,151 @@ public class Database {
                     Something must've gone horribly wrong...
                     """);
             e.printStackTrace(System.out);
+            return false;
         }
     }
+
+    /**
+     * Constructs the account store from a binary snapshot. This is
+     * much quicker than parsing CSV, and is preferred whenever a
+     * snapshot exists. CSV remains the format for importing and
+     * exporting accounts.
+     * @param file The filepath to retrieve values from
+     * @return The account store held by the snapshot
+     * @see Snapshot
+     */
+    public static AccountStore constructAccountStoreFromSnapshot(File file) throws Exception {
+        AccountStore store = new ColumnarAccountStore();
+        Snapshot.read(file, store);
+        return store;
+    }
+
+    /**
+     * Converts an account store into a binary snapshot. Like
+     * {@link #saveCSV}, the old snapshot survives a failed save.
+     * @param aDB Store of accounts
+     * @param path The filepath to save values to
+     * @return Whether the snapshot was saved
+     * @see Snapshot
+     */
+    public static boolean saveSnapshot(AccountStore aDB, String path) {
+        try {
+            Snapshot.write(aDB, Path.of(path));
+            return true;
+        } catch (IOException e) {
+            // Print error
+            System.out.println("""
+                    Could not write ADB snapshot!
+                    Something must've gone horribly wrong...
+                    """);
+            e.printStackTrace(System.out);
+            return false;
+        }
+    }
+
+    /**
+     * Constructs the account store from a data directory of shards,
+     * reading every shard in parallel.
+     * @param dir The data directory to retrieve values from
+     * @return The account store held by the data directory
+     * @see ShardStorage
+     */
+    public static AccountStore constructAccountStoreFromShards(File dir) throws Exception {
+        return ShardStorage.load(dir);
+    }
+
+    /**
+     * Opens the account store of a data directory without reading
+     * any accounts up front. Accounts are read from the shards as
+     * they're asked for, and only the most recently used ones are
+     * kept in memory, so startup takes the same time and the heap
+     * stays the same size however many accounts there are.
+     * @param dir The data directory to page values from
+     * @return The account store paging from the data directory
+     * @see PagedAccountStore
+     */
+    public static AccountStore openPagedAccountStore(File dir) throws Exception {
+        return PagedAccountStore.open(dir, PagedAccountStore.DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Splits an account store into {@link #DEFAULT_SHARDS} shards,
+     * so that saving it to a data directory only writes the shards
+     * that changed since the last save. Nothing in it is saved yet,
+     * so the first save still writes every shard.
+     * @param aDB Store of accounts, read from anywhere but a data directory
+     * @return The store, split into shards
+     * @see ShardStorage
+     */
+    public static AccountStore shardAccountStore(AccountStore aDB) {
+        ShardedAccountStore sharded = new ShardedAccountStore(aDB, DEFAULT_SHARDS);
+        for (int i = 0; i < sharded.shardCount(); i++)
+            sharded.markDirty(i);
+        return sharded;
+    }
+
+    /**
+     * @param dir A directory
+     * @return Whether the directory holds shards saved by {@link #saveShards}
+     */
+    public static boolean hasShards(File dir) {
+        return ShardStorage.exists(dir);
+    }
+
+    /**
+     * Saves an account store to a data directory of shards. Stores
+     * read from a data directory only have the shards holding changed
+     * accounts written, so saving takes as long as what changed.
+     * Any other store is split into {@link #DEFAULT_SHARDS} shards,
+     * all of which are written.
+     * @param aDB Store of accounts
+     * @param path The data directory to save values to
+     * @return Whether every shard was saved
+     * @see ShardStorage
+     */
+    public static boolean saveShards(AccountStore aDB, String path) {
+        try {
+            ShardStorage.save(aDB, new File(path), DEFAULT_SHARDS);
+            return true;
+        } catch (IOException e) {
+            // Print error
+            System.out.println("""
+                    Could not save ADB shards!
+                    Something must've gone horribly wrong...
+                    """);
+            e.printStackTrace(System.out);
+            return false;
+        }
+    }
+
+    /**
+     * Atomically renames a freshly written file over its target,
+     * then syncs the directory so the rename survives a crash.
+     * @param temp The fully written and synced file
+     * @param target The file to replace
+     */
+    static void replaceFile(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        syncParent(target);
+    }
+
+    /**
+     * Syncs the directory holding a file, so that the file being
+     * created, renamed or deleted survives a crash.
+     * @param file The file whose directory to sync
+     */
+    static void syncParent(Path file) {
+        // Not every platform can open a directory, so this is best effort
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir == null)
+            return;
+        try (FileChannel fc = FileChannel.open(dir, StandardOpenOption.READ)) {
+            fc.force(true);
+        } catch (IOException ignored) {}
+    }
 }
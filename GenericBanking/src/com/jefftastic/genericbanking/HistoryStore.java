@@ -0,0 +1,795 @@
+package com.jefftastic.genericbanking;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ *  History of every account, kept apart from the accounts themselves,
+ *  with an entry for each:<br>
+ *  - Opening, closing and import of an account<br>
+ *  - Deposit and withdrawal<br>
+ *  - Transfer, on both sides<br>
+ *  Every entry has the time it happened, the amount moved and the
+ *  balance it resulted in. Entries go into per-account chunks of
+ *  primitive columns, which start small and double up to 128 entries.
+ *  Only the newest two chunks of an account stay in memory, so its
+ *  latest entries are read without touching disk. Older chunks, and
+ *  all but the newest once too many entries are in memory overall,
+ *  are spilled to append-only segment files, and a range of time only
+ *  reads the chunks that overlap it. Histories are found by ID in
+ *  pages, like the columnar store finds accounts.<br>
+ *  Appending never writes to disk itself. Chunks to spill are handed
+ *  to a spiller thread, and read from memory until it has written
+ *  them, so a slow disk only holds up the spiller.<br>
+ *  Spilled chunks are checksummed like journal records, and every
+ *  segment has an index of its chunks sorted by account, written
+ *  when the segment is full and on close. Opening only maps the
+ *  indexes, and an account's history is found in them the first time
+ *  it's asked for, so opening takes the same time and memory however
+ *  long the history is. Only a segment whose index is missing or
+ *  behind, which a crash leaves, is scanned. Whatever is still in
+ *  memory is spilled on close, so a crash loses it, though never any
+ *  balance, which the journal has.
+ * @see Ledger
+ */
+
+public class HistoryStore implements AutoCloseable {
+    // Declare constants
+    public static final String DEFAULT_PATH = "." + File.separator + "adb.history";
+    public static final long DEFAULT_MEMORY_ENTRIES = 1L << 21;
+    private static final int FIRST_CHUNK_ENTRIES = 4;
+    private static final int CHUNK_ENTRIES = 128;
+    private static final int FIELDS = 4;
+    private static final int ENTRY_SIZE = FIELDS * Long.BYTES;
+    private static final int SPILLED_FIELDS = 3;
+    private static final int HEADER_SIZE = 4, TRAILER_SIZE = 4;
+    private static final long SEGMENT_SIZE = 64L << 20;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    private static final int PAGE_SHIFT = 14;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final String SEGMENT_FORMAT = "%06d.seg";
+    private static final String INDEX_FORMAT = "%06d.idx";
+    private static final int INDEX_MAGIC = 0x58444948;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 32;
+    private static final int INDEX_ENTRY_SIZE = 32;
+    private static final int INDEX_FIELDS = 4;
+    private static final LatencyHistogram SPILL_LATENCY = Metrics.histogram("history.spill");
+    private static final LatencyHistogram INDEX_LATENCY = Metrics.histogram("history.index");
+
+    /**
+     * What an entry records.
+     */
+    public enum Kind { OPEN, CLOSE, DEPOSIT, WITHDRAW, TRANSFER_OUT, TRANSFER_IN, IMPORT }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    /**
+     * One entry of an account's history.
+     * @param time When it happened, in milliseconds since the epoch
+     * @param kind What happened
+     * @param amount The amount moved, in cents, negative if it left the account
+     * @param balance The balance it resulted in, in cents
+     * @param otherID The other account of a transfer, or 0
+     */
+    public record Entry(long time, Kind kind, long amount, long balance, int otherID) {}
+
+    /**
+     * Everything about one account's history, guarded by itself.
+     * Chunks hold the time, amount, balance, and kind and other ID of
+     * each entry, oldest first. The current chunk is appended to, the
+     * previous one is the full chunk before it, and spilled chunks hold
+     * older entries still, as where they are, their first time and
+     * their last time. Nothing is set up front, so a history found
+     * before its first entry is in just reads as empty.
+     */
+    private static final class History {
+        long[] current, previous, spilled;
+        int count, spilledCount;
+        long lastTime;
+        ArrayDeque<Spill> queued;
+    }
+
+    /**
+     * A chunk handed to the spiller, which is queued in its history
+     * too until it's written, oldest first.
+     * @param entries How many entries of the chunk are in use
+     */
+    private record Spill(int id, History history, long[] chunk, int entries) {}
+
+    private static final Spill STOP = new Spill(0, null, null, 0);
+
+    /**
+     * The memory-mapped index of a segment, which is a table of
+     * (id, location, first time, last time) entries sorted by ID, and
+     * by location within an ID, so an account's chunks are found with
+     * a binary search and come out oldest first.
+     */
+    private record SegmentIndex(Snapshot.Region entries, int count) {
+        int id(int i) { return entries.getInt((long) i * INDEX_ENTRY_SIZE); }
+        long location(int i) { return entries.getLong((long) i * INDEX_ENTRY_SIZE + 8); }
+        long first(int i) { return entries.getLong((long) i * INDEX_ENTRY_SIZE + 16); }
+        long last(int i) { return entries.getLong((long) i * INDEX_ENTRY_SIZE + 24); }
+
+        /**
+         * @return The first entry of the account, or where it would be
+         */
+        int lowerBound(int id) {
+            int low = 0, high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (id(mid) < id)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+    }
+
+    // Declare class variables
+    private final File dir;
+    private final long memoryEntries;
+    private final long segmentSize;
+    private final AtomicLong inMemory = new AtomicLong();
+    private volatile History[][] pages = new History[0][];
+    private final BlockingQueue<Spill> spills = new LinkedBlockingQueue<>();
+    private final Thread spiller;
+    // Indexes of the segments there on open, which histories are found in
+    private final List<SegmentIndex> indexes = new ArrayList<>();
+    // Guarded by segments
+    private final List<FileChannel> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer pending = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private long segmentFill, pendingStart;
+    private long[] written = new long[64 * INDEX_FIELDS];
+    private int writtenCount;
+    private boolean failed;
+
+    private HistoryStore(File dir, long memoryEntries, long segmentSize) {
+        this.dir = dir;
+        this.memoryEntries = memoryEntries;
+        this.segmentSize = segmentSize;
+        this.spiller = new Thread(this::spillLoop, "history-spiller");
+        this.spiller.setDaemon(true);
+    }
+
+    /**
+     * Opens the history kept in a directory, creating it if needed.
+     * A torn chunk at the end of a segment, left behind by a crash
+     * mid-write, is cut off.
+     * @param dir The directory holding the segment files
+     * @param memoryEntries Roughly how many entries to keep in memory across every account
+     * @param segmentSize The most bytes to write to a segment before starting the next
+     * @return The opened history
+     */
+    static HistoryStore open(File dir, long memoryEntries, long segmentSize) throws IOException {
+        // Declare variables
+        HistoryStore history = new HistoryStore(dir, memoryEntries, segmentSize);
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir.getPath());
+        for (int i = 0; ; i++) {
+            File file = new File(dir, String.format(SEGMENT_FORMAT, i));
+            if (!file.exists())
+                break;
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            history.segments.add(channel);
+            history.indexes.add(history.loadIndex(i, channel));
+            history.segmentFill = history.pendingStart = channel.size();
+        }
+        history.spiller.start();
+
+        return history;
+    }
+
+    /**
+     * Opens the history kept in a directory, creating it if needed.
+     * @param dir The directory holding the segment files
+     * @param memoryEntries Roughly how many entries to keep in memory across every account
+     * @return The opened history
+     * @see #open(File, long, long)
+     */
+    public static HistoryStore open(File dir, long memoryEntries) throws IOException {
+        return open(dir, memoryEntries, SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the history kept in a directory.
+     * @param dir The directory holding the segment files
+     * @return The opened history
+     * @see #open(File, long, long)
+     */
+    public static HistoryStore open(File dir) throws IOException {
+        return open(dir, DEFAULT_MEMORY_ENTRIES);
+    }
+
+    /**
+     * Adds an entry to an account's history, timed now. Entries of
+     * an account never go back in time, even if the clock does.
+     * @param id The ID of the account
+     * @param kind What happened
+     * @param amount The amount moved, negative if it left the account
+     * @param balance The balance it resulted in
+     * @param otherID The other account of a transfer, or 0
+     */
+    public void append(int id, Kind kind, long amount, long balance, int otherID) {
+        // Declare variables
+        History h = history(id);
+
+        synchronized (h) {
+            if (h.current == null || h.count * FIELDS == h.current.length) {
+                // Over the budget, new chunks stay small and the rest goes to disk
+                boolean over = inMemory.get() > memoryEntries;
+                int capacity = h.current == null || over ? FIRST_CHUNK_ENTRIES
+                        : Math.min(CHUNK_ENTRIES, h.current.length / FIELDS * 2);
+                if (h.current != null) {
+                    spill(id, h, h.previous, CHUNK_ENTRIES);
+                    h.previous = h.current;
+                    if (over) {
+                        spill(id, h, h.previous, h.count);
+                        h.previous = null;
+                    }
+                }
+                h.current = new long[capacity * FIELDS];
+                h.count = 0;
+                inMemory.addAndGet(capacity);
+            }
+
+            int at = h.count++ * FIELDS;
+            h.lastTime = Math.max(h.lastTime, System.currentTimeMillis());
+            h.current[at] = h.lastTime;
+            h.current[at + 1] = amount;
+            h.current[at + 2] = balance;
+            h.current[at + 3] = (long) kind.ordinal() << 32 | otherID & 0xFFFFFFFFL;
+
+            // Closed accounts won't be appended to again, so nothing is left behind
+            if (kind == Kind.CLOSE)
+                spillAll(id, h);
+        }
+    }
+
+    /**
+     * Provides the latest entries of an account.
+     * @param id The ID of the account
+     * @param count The most entries to provide
+     * @return A new list of entries, newest first
+     */
+    public List<Entry> latest(int id, int count) throws IOException {
+        // Declare variables
+        List<Entry> result = new ArrayList<>();
+        History h = loaded(id);
+
+        if (h == null)
+            return result;
+        synchronized (h) {
+            collectLatest(h.current, h.count, count, result);
+            collectLatest(h.previous, CHUNK_ENTRIES, count, result);
+            if (h.queued != null) {
+                for (Iterator<Spill> it = h.queued.descendingIterator(); it.hasNext() && result.size() < count; ) {
+                    Spill s = it.next();
+                    collectLatest(s.chunk(), s.entries(), count, result);
+                }
+            }
+            for (int s = h.spilledCount - 1; s >= 0 && result.size() < count; s--) {
+                long location = h.spilled[s * SPILLED_FIELDS];
+                collectLatest(read(location), CHUNK_ENTRIES, count, result);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Provides the entries of an account within a range of time.
+     * @param id The ID of the account
+     * @param from The earliest time, in milliseconds since the epoch
+     * @param to The latest time, in milliseconds since the epoch
+     * @param limit The most entries to provide
+     * @return A new list of entries, oldest first
+     */
+    public List<Entry> between(int id, long from, long to, int limit) throws IOException {
+        // Declare variables
+        List<Entry> result = new ArrayList<>();
+        History h = loaded(id);
+
+        if (h == null)
+            return result;
+        synchronized (h) {
+            // Spilled chunks are in order, so only those that overlap are read
+            for (int s = 0; s < h.spilledCount; s++) {
+                int at = s * SPILLED_FIELDS;
+                if (h.spilled[at + 1] > to || result.size() >= limit)
+                    return result;
+                if (h.spilled[at + 2] >= from)
+                    collectBetween(read(h.spilled[at]), CHUNK_ENTRIES, from, to, limit, result);
+            }
+            if (h.queued != null) {
+                for (Spill s : h.queued)
+                    collectBetween(s.chunk(), s.entries(), from, to, limit, result);
+            }
+            collectBetween(h.previous, CHUNK_ENTRIES, from, to, limit, result);
+            collectBetween(h.current, h.count, from, to, limit, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Spills every chunk still in memory, waits for the spiller to
+     * write them, then syncs the segments and writes the index of
+     * the last one.
+     */
+    @Override
+    public void close() throws IOException {
+        History[][] rows = pages;
+        for (int row = 0; row < rows.length; row++) {
+            if (rows[row] == null)
+                continue;
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                History h = rows[row][i];
+                if (h == null)
+                    continue;
+                synchronized (h) { spillAll(row << PAGE_SHIFT | i, h); }
+            }
+        }
+        spills.add(STOP);
+        try { spiller.join(); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+
+        synchronized (segments) {
+            if (!segments.isEmpty())
+                seal();
+            for (FileChannel channel : segments) {
+                channel.force(true);
+                channel.close();
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * Provides the history of an account, starting it if there is none.
+     */
+    private History history(int id) {
+        History h = find(pages, id);
+        if (h != null)
+            return h;
+        if (id <= 0)
+            throw new IllegalArgumentException("Account IDs must be positive, got " + id);
+
+        synchronized (this) {
+            History[][] rows = pages;
+            int row = id >>> PAGE_SHIFT;
+            if (row >= rows.length)
+                rows = Arrays.copyOf(rows, row + 1);
+            if (rows[row] == null)
+                rows[row] = new History[PAGE_SIZE];
+            h = rows[row][id & PAGE_MASK];
+            if (h == null) {
+                // Older chunks are only looked up now, the first time
+                h = new History();
+                synchronized (h) { load(h, id); }
+                rows[row][id & PAGE_MASK] = h;
+            }
+            pages = rows;
+            return h;
+        }
+    }
+
+    /**
+     * Provides the history of an account to read, loading it from the
+     * segment indexes if it isn't in memory yet.
+     * @return The history, or null if the account has none
+     */
+    private History loaded(int id) {
+        History h = find(pages, id);
+        if (h != null || id <= 0)
+            return h;
+        for (SegmentIndex index : indexes) {
+            int i = index.lowerBound(id);
+            if (i < index.count() && index.id(i) == id)
+                return history(id);
+        }
+        return null;
+    }
+
+    /**
+     * Adds every chunk of an account from the segment indexes to its
+     * history, oldest first.
+     */
+    private void load(History h, int id) {
+        for (SegmentIndex index : indexes) {
+            for (int i = index.lowerBound(id); i < index.count() && index.id(i) == id; i++) {
+                addSpilled(h, index.location(i), index.first(i), index.last(i));
+                h.lastTime = Math.max(h.lastTime, index.last(i));
+            }
+        }
+    }
+
+    private static History find(History[][] rows, int id) {
+        int row = id >>> PAGE_SHIFT;
+        if (id <= 0 || row >= rows.length || rows[row] == null)
+            return null;
+        return rows[row][id & PAGE_MASK];
+    }
+
+    private static Entry entry(long[] chunk, int i) {
+        int at = i * FIELDS;
+        return new Entry(chunk[at], KINDS[(int) (chunk[at + 3] >>> 32)], chunk[at + 1], chunk[at + 2], (int) chunk[at + 3]);
+    }
+
+    private static void collectLatest(long[] chunk, int entries, int count, List<Entry> result) {
+        if (chunk == null)
+            return;
+        entries = Math.min(entries, chunk.length / FIELDS);
+        for (int i = entries - 1; i >= 0 && result.size() < count; i--)
+            result.add(entry(chunk, i));
+    }
+
+    private static void collectBetween(long[] chunk, int entries, long from, long to, int limit, List<Entry> result) {
+        if (chunk == null)
+            return;
+        entries = Math.min(entries, chunk.length / FIELDS);
+
+        // Binary search for the first entry at or after from
+        int low = 0, high = entries;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunk[mid * FIELDS] < from)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        for (int i = low; i < entries && chunk[i * FIELDS] <= to && result.size() < limit; i++)
+            result.add(entry(chunk, i));
+    }
+
+    /**
+     * Hands every chunk of an account still in memory to the spiller.
+     */
+    private void spillAll(int id, History h) {
+        spill(id, h, h.previous, CHUNK_ENTRIES);
+        spill(id, h, h.current, h.count);
+        h.previous = h.current = null;
+        h.count = 0;
+    }
+
+    /**
+     * Hands a chunk to the spiller, keeping it in the history's queue
+     * to be read from until it's written. The chunk still counts
+     * against the memory budget until then, so if the spiller falls
+     * behind, new chunks stay small.
+     * @param entries How many entries of the chunk are in use
+     */
+    private void spill(int id, History h, long[] chunk, int entries) {
+        if (chunk == null)
+            return;
+
+        entries = Math.min(entries, chunk.length / FIELDS);
+        if (entries == 0) {
+            inMemory.addAndGet(-chunk.length / FIELDS);
+            return;
+        }
+        Spill s = new Spill(id, h, chunk, entries);
+        if (h.queued == null)
+            h.queued = new ArrayDeque<>();
+        h.queued.add(s);
+        spills.add(s);
+    }
+
+    /**
+     * Writes out chunks in the order they were handed over, until
+     * the history closes, noting where each went in its history.
+     * If writing fails, the chunk is let go of anyway, so memory stays
+     * bounded, and the failure is only reported the first time.
+     */
+    private void spillLoop() {
+        while (true) {
+            // Declare variables
+            Spill s;
+            long location = -1;
+
+            try { s = spills.take(); }
+            catch (InterruptedException e) { continue; }
+            if (s == STOP)
+                return;
+
+            try { location = write(s.id(), s.chunk(), s.entries()); }
+            catch (IOException e) { report(e); }
+
+            // A history's chunks are written in order, so this one is the oldest queued
+            synchronized (s.history()) {
+                s.history().queued.remove();
+                if (location >= 0)
+                    addSpilled(s.history(), location, s.chunk()[0], s.chunk()[(s.entries() - 1) * FIELDS]);
+            }
+            inMemory.addAndGet(-s.chunk().length / FIELDS);
+        }
+    }
+
+    private static void addSpilled(History h, long location, long first, long last) {
+        if (h.spilled == null)
+            h.spilled = new long[4 * SPILLED_FIELDS];
+        else if ((h.spilledCount + 1) * SPILLED_FIELDS > h.spilled.length)
+            h.spilled = Arrays.copyOf(h.spilled, h.spilled.length * 2);
+
+        int at = h.spilledCount++ * SPILLED_FIELDS;
+        h.spilled[at] = location;
+        h.spilled[at + 1] = first;
+        h.spilled[at + 2] = last;
+    }
+
+    /**
+     * Appends a chunk to the last segment, starting a new one once
+     * it's full, as [length][id, count, entries][CRC32]. Chunks are
+     * gathered in a write buffer first, so that spilling many small
+     * chunks doesn't take a write each.
+     * @return Where the chunk went, as its segment, position and count
+     */
+    private long write(int id, long[] chunk, int entries) throws IOException {
+        // Declare variables
+        long start = System.nanoTime();
+        int length = 8 + entries * ENTRY_SIZE;
+        int size = HEADER_SIZE + length + TRAILER_SIZE;
+
+        synchronized (segments) {
+            if (segments.isEmpty() || segmentFill + size > segmentSize) {
+                if (!segments.isEmpty())
+                    seal();
+                File file = new File(dir, String.format(SEGMENT_FORMAT, segments.size()));
+                segments.add(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE));
+                segmentFill = pendingStart = 0;
+            }
+            if (pending.position() + size > pending.capacity())
+                flush();
+
+            int begin = pending.position();
+            pending.putInt(length).putInt(id).putInt(entries);
+            for (int i = 0; i < entries * FIELDS; i++)
+                pending.putLong(chunk[i]);
+            crc.reset();
+            crc.update(pending.array(), begin + HEADER_SIZE, length);
+            pending.putInt((int) crc.getValue());
+
+            long location = (long) (segments.size() - 1) << 40 | segmentFill << 8 | entries - 1;
+            addWritten(id, location, chunk[0], chunk[(entries - 1) * FIELDS]);
+            segmentFill += size;
+            SPILL_LATENCY.recordSince(start);
+            return location;
+        }
+    }
+
+    /**
+     * Writes out the write buffer to the last segment. If this
+     * fails, the buffer is kept to try again with the next flush.
+     */
+    private void flush() throws IOException {
+        if (pending.position() == 0)
+            return;
+
+        FileChannel channel = segments.get(segments.size() - 1);
+        ByteBuffer buf = pending.duplicate().flip();
+        while (buf.hasRemaining())
+            channel.write(buf, pendingStart + buf.position());
+        pendingStart += pending.position();
+        pending.clear();
+    }
+
+    /**
+     * Reads a spilled chunk back into memory, from the write buffer
+     * if it hasn't been written out yet.
+     * @param location Where the chunk is, as given by {@link #write}
+     */
+    private long[] read(long location) throws IOException {
+        // Declare variables
+        int segment = (int) (location >>> 40);
+        long position = (location >>> 8 & 0xFFFFFFFFL) + HEADER_SIZE + 8;
+        long[] chunk = new long[((int) (location & 0xFF) + 1) * FIELDS];
+        ByteBuffer buf = ByteBuffer.allocate(chunk.length * Long.BYTES);
+        FileChannel channel;
+
+        synchronized (segments) {
+            channel = segments.get(segment);
+            if (segment == segments.size() - 1 && position >= pendingStart)
+                buf.put(pending.array(), (int) (position - pendingStart), buf.capacity());
+        }
+        while (buf.hasRemaining())
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new IOException("Account history ends before a chunk does");
+
+        buf.flip().asLongBuffer().get(chunk);
+        return chunk;
+    }
+
+    /**
+     * Maps the index of a segment. If it's missing, or was written
+     * before the segment last grew, the segment is scanned and its
+     * index written again, cutting off a torn chunk at its end.
+     */
+    private SegmentIndex loadIndex(int segment, FileChannel channel) throws IOException {
+        SegmentIndex index = mapIndex(segment, channel.size());
+        if (index != null)
+            return index;
+
+        writtenCount = 0;
+        long fill = scan(segment, channel);
+        channel.truncate(fill);
+        writeIndex(segment, null, fill);
+        writtenCount = 0;
+
+        index = mapIndex(segment, fill);
+        if (index == null)
+            throw new IOException("Could not index account history segment " + segment);
+        return index;
+    }
+
+    /**
+     * @param length How long the segment is, which the index must cover
+     * @return The mapped index, or null if it's missing or doesn't cover the segment
+     */
+    private SegmentIndex mapIndex(int segment, long length) throws IOException {
+        // Declare variables
+        File file = new File(dir, String.format(INDEX_FORMAT, segment));
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (!file.exists())
+            return null;
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (fc.size() < INDEX_HEADER_SIZE)
+                return null;
+            while (header.hasRemaining())
+                fc.read(header, header.position());
+            int count = header.getInt(8);
+            if (header.getInt(0) != INDEX_MAGIC || header.getInt(4) != INDEX_VERSION || header.getLong(16) != length
+                    || fc.size() != INDEX_HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE)
+                return null;
+            // Mappings outlive the channel
+            return new SegmentIndex(new Snapshot.Region(fc, INDEX_HEADER_SIZE, (long) count * INDEX_ENTRY_SIZE), count);
+        }
+    }
+
+    /**
+     * Writes out and syncs the last segment, then writes its index,
+     * as it's either full or the history is closing.
+     */
+    private void seal() throws IOException {
+        int segment = segments.size() - 1;
+        flush();
+        segments.get(segment).force(true);
+
+        // The index from opening still holds if nothing was written since
+        if (writtenCount == 0 && segment < indexes.size())
+            return;
+        writeIndex(segment, segment < indexes.size() ? indexes.get(segment) : null, segmentFill);
+        writtenCount = 0;
+    }
+
+    /**
+     * Writes the index of a segment, replacing the file atomically.
+     * @param before The index the segment had on open, if any, whose chunks come first
+     * @param length How long the segment is
+     */
+    private void writeIndex(int segment, SegmentIndex before, long length) throws IOException {
+        // Declare variables
+        long start = System.nanoTime();
+        Path target = new File(dir, String.format(INDEX_FORMAT, segment)).toPath().toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int old = before == null ? 0 : before.count();
+        long[] order = new long[old + writtenCount];
+
+        // Sorting by ID, then by where each came from, keeps every
+        // account's chunks in the order they were written
+        for (int i = 0; i < old; i++)
+            order[i] = (long) before.id(i) << 32 | i;
+        for (int i = 0; i < writtenCount; i++)
+            order[old + i] = written[i * INDEX_FIELDS] << 32 | old + i;
+        Arrays.sort(order);
+
+        try (FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buf.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(order.length).putInt(0).putLong(length)
+                    .position(INDEX_HEADER_SIZE);
+            for (long key : order) {
+                int i = (int) key;
+                if (buf.remaining() < INDEX_ENTRY_SIZE)
+                    Snapshot.drain(fc, buf);
+                if (i < old) {
+                    buf.putInt(before.id(i)).putInt(0).putLong(before.location(i))
+                            .putLong(before.first(i)).putLong(before.last(i));
+                } else {
+                    int at = (i - old) * INDEX_FIELDS;
+                    buf.putInt((int) written[at]).putInt(0).putLong(written[at + 1])
+                            .putLong(written[at + 2]).putLong(written[at + 3]);
+                }
+            }
+            Snapshot.drain(fc, buf);
+            fc.force(true);
+        }
+        Database.replaceFile(temp, target);
+        INDEX_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Notes a chunk written to the last segment, for its index.
+     */
+    private void addWritten(int id, long location, long first, long last) {
+        if ((writtenCount + 1) * INDEX_FIELDS > written.length)
+            written = Arrays.copyOf(written, written.length * 2);
+
+        int at = writtenCount++ * INDEX_FIELDS;
+        written[at] = id;
+        written[at + 1] = location;
+        written[at + 2] = first;
+        written[at + 3] = last;
+    }
+
+    /**
+     * Finds every intact chunk in a segment, for its index.
+     * @return The position right after the last intact chunk
+     */
+    private long scan(int segment, FileChannel channel) throws IOException {
+        // Declare variables
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long pos = 0, size = channel.size();
+
+        while (pos + HEADER_SIZE <= size) {
+            // Read the length, then the rest of the chunk
+            header.clear();
+            channel.read(header, pos);
+            int length = header.getInt(0);
+            if (length < 8 + ENTRY_SIZE || pos + HEADER_SIZE + length + TRAILER_SIZE > size)
+                break;
+            ByteBuffer record = ByteBuffer.allocate(length + TRAILER_SIZE);
+            while (record.hasRemaining())
+                if (channel.read(record, pos + HEADER_SIZE + record.position()) < 0)
+                    break;
+
+            // Stop at the first chunk that doesn't match its checksum
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != record.getInt(length))
+                break;
+
+            int id = record.getInt(0), entries = record.getInt(4);
+            if (length != 8 + entries * ENTRY_SIZE || entries > CHUNK_ENTRIES || id <= 0)
+                break;
+            addWritten(id, (long) segment << 40 | pos << 8 | entries - 1,
+                    record.getLong(8), record.getLong(8 + (entries - 1) * ENTRY_SIZE));
+            pos += HEADER_SIZE + length + TRAILER_SIZE;
+        }
+
+        return pos;
+    }
+
+    private void report(IOException e) {
+        synchronized (segments) {
+            if (failed)
+                return;
+            failed = true;
+        }
+        System.out.println("""
+                Could not write account history to disk!
+                Older entries will be missing from it until it can be.
+                """);
+        e.printStackTrace(System.out);
+    }
+}
@@ -0,0 +1,403 @@
+package com.jefftastic.genericbanking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ *  Append-only write-ahead journal of account mutations, such as:<br>
+ *  - Opening an account<br>
+ *  - Closing an account<br>
+ *  - Depositing and withdrawing funds<br>
+ *  - Transferring funds between accounts<br>
+ *  Amounts and balances are in cents. Every record carries the
+ *  resulting balance rather than just the amount moved, so replaying
+ *  a journal on top of a snapshot that already holds some of its
+ *  records is harmless. Records are synced to disk by a background
+ *  thread that batches every record appended while the previous sync
+ *  was running into a single fsync.<br>
+ *  The journal can be rotated while it's in use, setting what it
+ *  holds so far aside in a second file, so that it can be let go of
+ *  once a snapshot taken after the rotation is saved.
+ * @see AccountManager
+ */
+
+public class Journal implements AutoCloseable {
+    // Constants
+    public static final String DEFAULT_PATH = "." + File.separator + "adb.journal";
+    private static final String ROTATED_SUFFIX = ".old";
+    private static final byte OPEN = 5, CLOSE = 2, DEPOSIT = 6, WITHDRAW = 7, TRANSFER = 8;
+    private static final int HEADER_SIZE = 4, TRAILER_SIZE = 4;
+    private static final LatencyHistogram COMMIT_LATENCY = Metrics.histogram("journal.commit");
+
+    // Declare class variables
+    private final Path path;
+    private FileChannel channel, writing;
+    private final Thread flusher;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer flushing = ByteBuffer.allocate(1 << 16);
+    private int recordStart;
+    private long appendedSeq, durableSeq;
+    private IOException failure;
+    private boolean closed;
+
+    private Journal(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Opens a journal, replaying every record it holds on top of the
+     * given accounts first, starting with the records set aside by
+     * the last rotation if they're still around. A torn record at the
+     * end of the journal, left behind by a crash mid-write, is cut off.
+     * @param path The filepath of the journal
+     * @param accounts The accounts loaded from the last snapshot, updated in place
+     * @return The opened journal, ready to append to
+     */
+    public static Journal open(String path, AccountStore accounts) throws IOException {
+        // Declare variables
+        Path journal = Path.of(path);
+        Path rotated = rotatedPath(journal);
+
+        if (Files.exists(rotated)) {
+            try (FileChannel old = FileChannel.open(rotated, StandardOpenOption.READ)) {
+                replay(old, accounts);
+            }
+        }
+
+        FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = replay(channel, accounts);
+            channel.truncate(end);
+            channel.position(end);
+            return new Journal(journal, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Records that an account was opened.
+     * @return The sequence number to pass to {@link #commit(long)}
+     */
+    public long logOpen(Account acc) {
+        byte[] name = acc.getName().getBytes(StandardCharsets.UTF_8);
+        byte[] address = acc.getAddress().getBytes(StandardCharsets.UTF_8);
+
+        synchronized (this) {
+            ByteBuffer buf = begin(OPEN, 4 + 8 + 4 + name.length + 4 + address.length);
+            buf.putInt(acc.getID()).putLong(acc.getBalance());
+            buf.putInt(name.length).put(name);
+            buf.putInt(address.length).put(address);
+            return end();
+        }
+    }
+
+    /**
+     * Records that an account was closed.
+     * @return The sequence number to pass to {@link #commit(long)}
+     */
+    public synchronized long logClose(int id) {
+        begin(CLOSE, 4).putInt(id);
+        return end();
+    }
+
+    /**
+     * Records a deposit and the balance it resulted in.
+     * @return The sequence number to pass to {@link #commit(long)}
+     */
+    public synchronized long logDeposit(int id, long amount, long balance) {
+        begin(DEPOSIT, 4 + 8 + 8).putInt(id).putLong(amount).putLong(balance);
+        return end();
+    }
+
+    /**
+     * Records a withdrawal and the balance it resulted in.
+     * @return The sequence number to pass to {@link #commit(long)}
+     */
+    public synchronized long logWithdraw(int id, long amount, long balance) {
+        begin(WITHDRAW, 4 + 8 + 8).putInt(id).putLong(amount).putLong(balance);
+        return end();
+    }
+
+    /**
+     * Records a transfer and the balances it resulted in, as a
+     * single record so it is never replayed halfway.
+     * @return The sequence number to pass to {@link #commit(long)}
+     */
+    public synchronized long logTransfer(int from, int to, long amount, long fromBalance, long toBalance) {
+        begin(TRANSFER, 4 + 4 + 8 + 8 + 8).putInt(from).putInt(to).putLong(amount)
+                .putLong(fromBalance).putLong(toBalance);
+        return end();
+    }
+
+    /**
+     * Blocks until the record with the given sequence number, and
+     * every record before it, is synced to disk.
+     * @param seq The sequence number returned when the record was logged
+     */
+    public synchronized void commit(long seq) {
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        while (durableSeq < seq && failure == null) {
+            try { wait(); }
+            catch (InterruptedException e) { interrupted = true; }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        COMMIT_LATENCY.recordSince(start);
+        if (failure != null && durableSeq < seq)
+            throw new UncheckedIOException("Journal could not be synced", failure);
+    }
+
+    /**
+     * Empties the journal once everything in it is held by a
+     * freshly saved snapshot.
+     */
+    public synchronized void reset() throws IOException {
+        commit(appendedSeq);
+        channel.truncate(0);
+        channel.force(true);
+        dropRotated();
+    }
+
+    /**
+     * @return The number of records logged since the journal was opened
+     */
+    public synchronized long sequence() {
+        return appendedSeq;
+    }
+
+    /**
+     * Sets everything logged so far aside and carries on in an empty
+     * journal. Records still waiting to be synced go to the new one,
+     * which only means they're replayed twice. Nothing happens if the
+     * records set aside last time haven't been let go of yet, since
+     * they would be overwritten.
+     * @return Whether the journal was rotated
+     */
+    public synchronized boolean rotate() throws IOException {
+        // Declare variables
+        Path rotated = rotatedPath(path);
+        FileChannel old = channel;
+
+        if (closed || Files.exists(rotated))
+            return false;
+
+        Database.replaceFile(path, rotated);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Database.syncParent(path);
+
+        // The flusher closes the old journal itself if it's still writing to it
+        if (writing != old)
+            old.close();
+        return true;
+    }
+
+    /**
+     * Lets go of the records set aside by the last rotation, once a
+     * snapshot taken after it is saved.
+     */
+    public void dropRotated() throws IOException {
+        Files.deleteIfExists(rotatedPath(path));
+    }
+
+    /**
+     * Syncs whatever is left and stops the background thread.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try { flusher.join(); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        channel.close();
+    }
+
+    private static Path rotatedPath(Path journal) {
+        return journal.resolveSibling(journal.getFileName() + ROTATED_SUFFIX);
+    }
+
+    /**
+     * Reserves room for a record and writes its header.
+     */
+    private ByteBuffer begin(byte type, int payload) {
+        if (closed)
+            throw new IllegalStateException("Journal is closed");
+
+        // Grow the pending buffer if this record doesn't fit
+        int size = HEADER_SIZE + 1 + payload + TRAILER_SIZE;
+        if (pending.remaining() < size) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+
+        recordStart = pending.position();
+        return pending.putInt(1 + payload).put(type);
+    }
+
+    /**
+     * Seals the record that was last begun with its checksum and
+     * wakes the background thread.
+     */
+    private long end() {
+        // Checksum everything after the length
+        crc.reset();
+        crc.update(pending.array(), recordStart + HEADER_SIZE, pending.position() - recordStart - HEADER_SIZE);
+        pending.putInt((int) crc.getValue());
+
+        notifyAll();
+        return ++appendedSeq;
+    }
+
+    /**
+     * Background loop that swaps out whatever was appended, writes
+     * it and syncs it with a single fsync.
+     */
+    private void flushLoop() {
+        while (true) {
+            // Declare variables
+            long target;
+            FileChannel to;
+
+            synchronized (this) {
+                while (appendedSeq == durableSeq && !closed) {
+                    try { wait(); }
+                    catch (InterruptedException ignored) {}
+                }
+                if (appendedSeq == durableSeq || failure != null)
+                    return;
+
+                // Take everything appended so far
+                ByteBuffer swap = flushing;
+                flushing = pending;
+                pending = swap;
+                pending.clear();
+                target = appendedSeq;
+                to = writing = channel;
+            }
+
+            try {
+                flushing.flip();
+                while (flushing.hasRemaining())
+                    to.write(flushing);
+                to.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                // The journal was rotated while we wrote to it
+                writing = null;
+                if (to != channel) {
+                    try { to.close(); }
+                    catch (IOException ignored) {}
+                }
+                durableSeq = target;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Applies every intact record in the channel to the given accounts.
+     * @return The position right after the last intact record
+     */
+    private static long replay(FileChannel channel, AccountStore accounts) throws IOException {
+        // Declare variables
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 check = new CRC32();
+        long pos = 0, size = channel.size();
+
+        while (pos + HEADER_SIZE <= size) {
+            // Read the length, then the rest of the record
+            header.clear();
+            channel.read(header, pos);
+            int length = header.getInt(0);
+            if (length <= 0 || pos + HEADER_SIZE + length + TRAILER_SIZE > size)
+                break;
+            ByteBuffer record = ByteBuffer.allocate(length + TRAILER_SIZE);
+            while (record.hasRemaining())
+                if (channel.read(record, pos + HEADER_SIZE + record.position()) < 0)
+                    break;
+
+            // Stop at the first record that doesn't match its checksum
+            check.reset();
+            check.update(record.array(), 0, length);
+            if ((int) check.getValue() != record.getInt(length))
+                break;
+
+            apply(record.flip().limit(length), accounts);
+            pos += HEADER_SIZE + length + TRAILER_SIZE;
+        }
+
+        return pos;
+    }
+
+    private static void apply(ByteBuffer record, AccountStore accounts) throws IOException {
+        // Declare variables
+        byte type = record.get();
+        int id = record.getInt();
+        long balance;
+
+        switch (type) {
+            case OPEN:
+                balance = record.getLong();
+                String name = readString(record), address = readString(record);
+                accounts.put(new Account(id, name, address, balance));
+                break;
+            case CLOSE:
+                accounts.remove(id);
+                break;
+            case DEPOSIT:
+            case WITHDRAW:
+                // Skip the amount, the resulting balance is what counts
+                record.getLong();
+                balance = record.getLong();
+                if (accounts.contains(id))
+                    accounts.setBalance(id, balance);
+                break;
+            case TRANSFER:
+                int to = record.getInt();
+                record.getLong();
+                balance = record.getLong();
+                long toBalance = record.getLong();
+                if (accounts.contains(id))
+                    accounts.setBalance(id, balance);
+                if (accounts.contains(to))
+                    accounts.setBalance(to, toBalance);
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
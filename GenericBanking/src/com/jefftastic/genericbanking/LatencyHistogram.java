@@ -0,0 +1,146 @@
+package com.jefftastic.genericbanking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Records how long something took, in nanoseconds, keeping:<br>
+ *  - A count per bucket, with buckets growing along with the values
+ *    so every value is kept to within 1% of what was recorded<br>
+ *  - The number of values, their sum and the largest value<br>
+ *  Recording never locks, and stops allocating once the counters
+ *  have spread out to the threads using them, so it's cheap enough
+ *  to put on every hot path and safe to call from any thread.
+ *  Values up to about 18 minutes are kept; anything longer is
+ *  counted as the longest value that fits.
+ * @see Metrics
+ */
+
+public final class LatencyHistogram implements LatencyHistogramMXBean {
+    // Declare constants
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 2) * (SUB_BUCKET_COUNT / 2);
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    // Declare class variables
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder(), sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * LatencyHistogram constructor.
+     * @param name What this histogram measures, e.g. "csv.write"
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records one value.
+     * @param nanos How long something took
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+
+        // Only race to raise the maximum when we might beat it
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value))
+            seen = max.get();
+    }
+
+    /**
+     * Records the time since a start time taken from {@link System#nanoTime()}.
+     * @param startNanos The start time
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Provides the value that the given share of values are at or below.
+     * @param percentile The share, from 0 to 100
+     * @return The value, in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        // Declare variables
+        long total = count.sum();
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+
+        if (total == 0)
+            return 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets everything recorded so far. Values recorded while
+     * this runs may or may not be kept.
+     */
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String getName() { return name; }
+
+    @Override
+    public long getCount() { return count.sum(); }
+
+    @Override
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / 1e3 / n;
+    }
+
+    @Override
+    public double getP50Micros() { return percentile(50) / 1e3; }
+
+    @Override
+    public double getP90Micros() { return percentile(90) / 1e3; }
+
+    @Override
+    public double getP99Micros() { return percentile(99) / 1e3; }
+
+    @Override
+    public double getP999Micros() { return percentile(99.9) / 1e3; }
+
+    @Override
+    public double getMaxMicros() { return max.get() / 1e3; }
+
+    /**
+     * Values below {@link #SUB_BUCKET_COUNT} get a bucket each. Above
+     * that, every power of two is split into half as many buckets,
+     * since its lower half is covered by the one below.
+     */
+    private static int indexOf(long value) {
+        int magnitude = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        int subBucket = (int) (value >>> magnitude);
+        return magnitude * (SUB_BUCKET_COUNT / 2) + subBucket;
+    }
+
+    private static long highestValueAt(int index) {
+        // Declare variables
+        int half = SUB_BUCKET_COUNT / 2;
+        int magnitude = Math.max(0, index / half - 1);
+        long subBucket = index - (long) magnitude * half;
+
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+}
@@ -0,0 +1,31 @@
+package com.jefftastic.genericbanking;
+
+/**
+ *  Management view of a latency histogram, with every time given
+ *  in microseconds.
+ * @see LatencyHistogram
+ */
+
+public interface LatencyHistogramMXBean {
+    /**
+     * @return What the histogram measures
+     */
+    String getName();
+
+    /**
+     * @return The number of values recorded
+     */
+    long getCount();
+
+    double getMeanMicros();
+    double getP50Micros();
+    double getP90Micros();
+    double getP99Micros();
+    double getP999Micros();
+    double getMaxMicros();
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    void reset();
+}
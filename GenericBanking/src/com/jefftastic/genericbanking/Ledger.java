@@ -0,0 +1,810 @@
+package com.jefftastic.genericbanking;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ *  Thread-safe book of accounts, shared by every session, that handles:<br>
+ *  - Opening and closing accounts, or storing them under a given ID<br>
+ *  - Depositing, withdrawing and transferring funds<br>
+ *  - Looking accounts up by ID, name, address and balance<br>
+ *  - Keeping bank-wide totals that can be read at any time<br>
+ *  Accounts live in an account store keyed by ID. Every mutation
+ *  of an account happens while holding the lock of the stripe its
+ *  ID falls into, so sessions working on different accounts rarely
+ *  wait on each other, and no update is ever lost. Amounts are
+ *  always in cents. Indexes by address and balance, and the totals,
+ *  are only built the first time they're read, since most sessions
+ *  never do, and are kept up to date from then on. Given a history
+ *  store, every mutation is also added to the history of the
+ *  accounts it touches. Once anything asks for the change stream,
+ *  every mutation is published to it as well.
+ * @see AccountManager
+ * @see AccountStore
+ */
+
+public class Ledger {
+    // Constants
+    public static final long CLOSED = Long.MIN_VALUE;
+    private static final int STRIPES = 64;
+    private static final int SIMILAR_DISTANCE = 2;
+
+    /**
+     * One movement of funds between two accounts.
+     * @param from The ID of the account to take funds from
+     * @param to The ID of the account to give funds to
+     * @param amount The amount to move
+     */
+    public record Transfer(int from, int to, long amount) {
+        public Transfer {
+            if (from == to)
+                throw new IllegalArgumentException("Can't transfer funds to the same account");
+        }
+    }
+
+    /**
+     * Bank-wide totals.
+     * @param balance The sum of every balance, in cents
+     * @param overdraft How far negative balances go below zero in total, in cents
+     * @param accounts The number of open accounts
+     * @param negative The number of accounts with a negative balance
+     */
+    public record Totals(long balance, long overdraft, int accounts, int negative) {}
+
+    /**
+     * Totals as kept up to date, next to totals worked out by going
+     * through every account at the same moment.
+     * @param maintained The totals kept up to date by the ledger
+     * @param scanned The totals worked out from every account
+     */
+    public record TotalsCheck(Totals maintained, Totals scanned) {
+        /**
+         * @return Whether the totals agree
+         */
+        public boolean matches() { return maintained.equals(scanned); }
+    }
+
+    /**
+     * Indexes that are built on first use, kept together so they're
+     * published in one step.
+     */
+    private record SecondaryIndexes(BalanceIndex balances, NameIndex addresses) {
+        void opened(Account acc) {
+            balances.add(acc.getID(), acc.getBalance());
+            addresses.add(acc.getID(), acc.getAddress());
+        }
+
+        void closed(Account acc) {
+            balances.remove(acc.getID(), acc.getBalance());
+            addresses.remove(acc.getID(), acc.getAddress());
+        }
+    }
+
+    // Declare class variables
+    private final AccountStore store;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final NameLookup nameIndex;
+    private final AtomicInteger nextAccountID;
+    private final Journal journal;
+    private final HistoryStore history;
+    private final ThreadLocal<long[]> deferredSeq = new ThreadLocal<>();
+    private volatile SecondaryIndexes secondary;
+    private volatile Aggregates aggregates;
+    private volatile ChangeStream changes;
+
+    /**
+     * Ledger constructor.
+     * @param store Account store to work on
+     * @param journal Journal to record every mutation in, or null
+     * @param history History store to add every mutation to, or null
+     */
+    public Ledger(AccountStore store, Journal journal, HistoryStore history) {
+        this.store = store;
+        this.journal = journal;
+        this.history = history;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new ReentrantLock();
+
+        // Paged stores keep their own name index on disk, anything
+        // else has everything we were given indexed in memory
+        if (store instanceof PagedAccountStore paged)
+            nameIndex = paged.names();
+        else {
+            NameIndex index = new NameIndex(true);
+            store.forEach(acc -> index.add(acc.getID(), acc.getName()));
+            nameIndex = index;
+        }
+        // Stores remember the highest ID ever handed out across saves,
+        // so IDs of closed accounts aren't handed out again
+        nextAccountID = new AtomicInteger(store.maxID() + 1);
+    }
+
+    /**
+     * Ledger constructor.
+     * @param store Account store to work on
+     * @param journal Journal to record every mutation in, or null
+     */
+    public Ledger(AccountStore store, Journal journal) {
+        this(store, journal, null);
+    }
+
+    /**
+     * Ledger constructor.
+     * @param store Account store to work on
+     */
+    public Ledger(AccountStore store) {
+        this(store, null, null);
+    }
+
+    /**
+     * Opens a new account under the next free ID.
+     * @param name The name of the account
+     * @param address The address associated with the account
+     * @param balance The starting balance of the account
+     * @return The opened account
+     */
+    public Account open(String name, String address, long balance) {
+        // Declare variables
+        Account acc = new Account(nextAccountID.getAndIncrement(), name, address, balance);
+        ReentrantLock lock = lockFor(acc.getID());
+        long seq = 0;
+
+        lock.lock();
+        try {
+            store.put(acc);
+            nameIndex.add(acc.getID(), name);
+            if (secondary != null)
+                secondary.opened(acc);
+            if (aggregates != null)
+                aggregates.opened(balance);
+            if (history != null)
+                history.append(acc.getID(), HistoryStore.Kind.OPEN, balance, balance, 0);
+            if (changes != null)
+                changes.publishOpen(acc.getID(), name, address, balance);
+            if (journal != null)
+                seq = journal.logOpen(acc);
+        } finally { lock.unlock(); }
+
+        Metrics.accountsOpened.increment();
+        commit(seq);
+        return acc;
+    }
+
+    /**
+     * Closes an account, removing it from the ledger.
+     * @param id The ID of the account
+     * @return Whether the account was open before this call
+     */
+    public boolean close(int id) {
+        // Declare variables
+        ReentrantLock lock = lockFor(id);
+        long seq = 0;
+
+        lock.lock();
+        try {
+            Account acc = store.get(id);
+            if (acc == null)
+                return false;
+            store.remove(id);
+            nameIndex.remove(id, acc.getName());
+            if (secondary != null)
+                secondary.closed(acc);
+            if (aggregates != null)
+                aggregates.closed(acc.getBalance());
+            if (history != null)
+                history.append(id, HistoryStore.Kind.CLOSE, 0, acc.getBalance(), 0);
+            if (changes != null)
+                changes.publishClose(id);
+            if (journal != null)
+                seq = journal.logClose(id);
+        } finally { lock.unlock(); }
+
+        Metrics.accountsClosed.increment();
+        commit(seq);
+        return true;
+    }
+
+    /**
+     * Stores an account under a given ID, replacing the account stored
+     * there if there is one, as imports do. Accounts opened afterwards
+     * are given IDs past it.
+     * @param id The ID of the account
+     * @param name The name of the account
+     * @param address The address associated with the account
+     * @param balance The balance of the account
+     * @return The account that was replaced, or null if there was none
+     */
+    public Account put(int id, String name, String address, long balance) {
+        // Declare variables
+        Account acc = new Account(id, name, address, balance);
+        ReentrantLock lock = lockFor(id);
+        Account old;
+        long seq = 0;
+
+        nextAccountID.accumulateAndGet(id + 1, Math::max);
+        lock.lock();
+        try {
+            old = store.get(id);
+            store.put(acc);
+            if (old == null) {
+                nameIndex.add(id, name);
+                if (secondary != null)
+                    secondary.opened(acc);
+                if (aggregates != null)
+                    aggregates.opened(balance);
+            } else {
+                // Indexes fold case, so they only change if more than case did
+                if (!old.getName().equalsIgnoreCase(name)) {
+                    nameIndex.remove(id, old.getName());
+                    nameIndex.add(id, name);
+                }
+                if (secondary != null && !old.getAddress().equalsIgnoreCase(address)) {
+                    secondary.addresses().remove(id, old.getAddress());
+                    secondary.addresses().add(id, address);
+                }
+                balanceChanged(id, old.getBalance(), balance);
+            }
+            if (history != null)
+                history.append(id, HistoryStore.Kind.IMPORT, old == null ? balance : balance - old.getBalance(), balance, 0);
+            if (changes != null)
+                changes.publishOpen(id, name, address, balance);
+            // Replaying an open replaces whatever is under the ID too
+            if (journal != null)
+                seq = journal.logOpen(acc);
+        } finally { lock.unlock(); }
+
+        if (old == null)
+            Metrics.accountsOpened.increment();
+        commit(seq);
+        return old;
+    }
+
+    /**
+     * Deposits funds into an account.
+     * @param id The ID of the account
+     * @param amount The amount to deposit
+     * @return The resulting balance, or {@link #CLOSED} if the account isn't open
+     */
+    public long deposit(int id, long amount) {
+        // Declare variables
+        ReentrantLock lock = lockFor(id);
+        long balance;
+        long seq = 0;
+
+        lock.lock();
+        try {
+            if (!store.contains(id))
+                return CLOSED;
+            long old = store.getBalance(id);
+            balance = old + amount;
+            store.setBalance(id, balance);
+            balanceChanged(id, old, balance);
+            if (history != null)
+                history.append(id, HistoryStore.Kind.DEPOSIT, amount, balance, 0);
+            if (changes != null)
+                changes.publishDeposit(id, amount, balance);
+            if (journal != null)
+                seq = journal.logDeposit(id, amount, balance);
+        } finally { lock.unlock(); }
+
+        Metrics.deposits.increment();
+        Metrics.centsDeposited.add(amount);
+        commit(seq);
+        return balance;
+    }
+
+    /**
+     * Withdraws funds from an account. Balances are allowed to go
+     * into the negatives, it is up to the caller to confirm that.
+     * @param id The ID of the account
+     * @param amount The amount to withdraw
+     * @return The resulting balance, or {@link #CLOSED} if the account isn't open
+     */
+    public long withdraw(int id, long amount) {
+        // Declare variables
+        ReentrantLock lock = lockFor(id);
+        long balance;
+        long seq = 0;
+
+        lock.lock();
+        try {
+            if (!store.contains(id))
+                return CLOSED;
+            long old = store.getBalance(id);
+            balance = old - amount;
+            store.setBalance(id, balance);
+            balanceChanged(id, old, balance);
+            if (history != null)
+                history.append(id, HistoryStore.Kind.WITHDRAW, -amount, balance, 0);
+            if (changes != null)
+                changes.publishWithdraw(id, amount, balance);
+            if (journal != null)
+                seq = journal.logWithdraw(id, amount, balance);
+        } finally { lock.unlock(); }
+
+        Metrics.withdrawals.increment();
+        Metrics.centsWithdrawn.add(amount);
+        commit(seq);
+        return balance;
+    }
+
+    /**
+     * Moves funds from one account to another in one step, so no
+     * other session ever sees the funds in neither or both. Stripe
+     * locks are always taken lowest stripe first, so two transfers
+     * running in opposite directions can't deadlock. Like withdraws,
+     * this can put the source account into the negatives.
+     * @param from The ID of the account to take funds from
+     * @param to The ID of the account to give funds to
+     * @param amount The amount to move
+     * @return The resulting balance of the source account, or
+     *         {@link #CLOSED} if either account isn't open
+     */
+    public long transfer(int from, int to, long amount) {
+        // Declare variables
+        int fromStripe = from & (STRIPES - 1), toStripe = to & (STRIPES - 1);
+        ReentrantLock first = stripes[Math.min(fromStripe, toStripe)];
+        ReentrantLock second = stripes[Math.max(fromStripe, toStripe)];
+        long[] seq = {0};
+        long fromBalance;
+
+        if (from == to)
+            throw new IllegalArgumentException("Can't transfer funds to the same account");
+
+        first.lock();
+        second.lock();
+        try {
+            fromBalance = transferLocked(from, to, amount, seq);
+        } finally {
+            second.unlock();
+            first.unlock();
+        }
+
+        commit(seq[0]);
+        return fromBalance;
+    }
+
+    /**
+     * Applies many transfers, taking the locks for each pair of
+     * stripes only once. Transfers are grouped by the stripes they
+     * touch, and each group is applied in one go, in the order the
+     * transfers were given in. Since transfers only ever add and
+     * subtract, the resulting balances are the same as applying them
+     * one by one; only the balances reported along the way differ.
+     * The journal is waited on once, for the whole batch.
+     * @param transfers The transfers to apply
+     * @return The resulting balance of each transfer's source account,
+     *         in the same order, or {@link #CLOSED} where either account
+     *         isn't open
+     */
+    public long[] transferAll(List<Transfer> transfers) {
+        // Declare variables
+        int count = transfers.size();
+        long[] keys = new long[count];
+        long[] results = new long[count];
+        long[] seq = {0};
+
+        // Sort by stripe pair, keeping the given order within each pair
+        for (int i = 0; i < count; i++) {
+            Transfer t = transfers.get(i);
+            int a = t.from() & (STRIPES - 1), b = t.to() & (STRIPES - 1);
+            keys[i] = ((long) (Math.min(a, b) * STRIPES + Math.max(a, b)) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        for (int i = 0; i < count;) {
+            int pair = (int) (keys[i] >>> 32);
+            ReentrantLock first = stripes[pair / STRIPES], second = stripes[pair % STRIPES];
+
+            first.lock();
+            second.lock();
+            try {
+                for (; i < count && (int) (keys[i] >>> 32) == pair; i++) {
+                    int index = (int) keys[i];
+                    Transfer t = transfers.get(index);
+                    results[index] = transferLocked(t.from(), t.to(), t.amount(), seq);
+                }
+            } finally {
+                second.unlock();
+                first.unlock();
+            }
+        }
+
+        commit(seq[0]);
+        return results;
+    }
+
+    /**
+     * Moves funds while holding the stripe locks of both accounts.
+     * @param seq Raised to the sequence number of the journal record, if any
+     * @return The resulting balance of the source account, or {@link #CLOSED}
+     */
+    private long transferLocked(int from, int to, long amount, long[] seq) {
+        if (!store.contains(from) || !store.contains(to))
+            return CLOSED;
+
+        long fromOld = store.getBalance(from), toOld = store.getBalance(to);
+        long fromBalance = fromOld - amount;
+        long toBalance = toOld + amount;
+        store.setBalance(from, fromBalance);
+        store.setBalance(to, toBalance);
+        balanceChanged(from, fromOld, fromBalance);
+        balanceChanged(to, toOld, toBalance);
+        if (history != null) {
+            history.append(from, HistoryStore.Kind.TRANSFER_OUT, -amount, fromBalance, to);
+            history.append(to, HistoryStore.Kind.TRANSFER_IN, amount, toBalance, from);
+        }
+        if (changes != null)
+            changes.publishTransfer(from, to, amount, fromBalance, toBalance);
+        if (journal != null)
+            seq[0] = Math.max(seq[0], journal.logTransfer(from, to, amount, fromBalance, toBalance));
+
+        Metrics.transfers.increment();
+        Metrics.centsTransferred.add(amount);
+        return fromBalance;
+    }
+
+    /**
+     * Runs some work on this thread without waiting for the journal
+     * after every mutation, then waits once for everything the work
+     * journaled. Bulk work can use this to share a single sync
+     * instead of waiting on one per mutation.
+     * @param work The work to run
+     */
+    public void deferCommits(Runnable work) {
+        // Nested calls just join the outer one
+        if (deferredSeq.get() != null) {
+            work.run();
+            return;
+        }
+
+        long[] seq = {0};
+        deferredSeq.set(seq);
+        try { work.run(); }
+        finally { deferredSeq.remove(); }
+        if (seq[0] != 0)
+            journal.commit(seq[0]);
+    }
+
+    /**
+     * Provides the account with the given ID.
+     * @param id The ID of the account
+     * @return The account, or null if no account has this ID
+     */
+    public Account get(int id) {
+        return store.get(id);
+    }
+
+    /**
+     * Provides the latest entries in the history of an account.
+     * @param id The ID of the account
+     * @param count The most entries to provide
+     * @return A new list of entries, newest first, empty if no history is kept
+     */
+    public List<HistoryStore.Entry> history(int id, int count) throws IOException {
+        return history == null ? new ArrayList<>() : history.latest(id, count);
+    }
+
+    /**
+     * Provides the entries in the history of an account within a
+     * range of time.
+     * @param id The ID of the account
+     * @param from The earliest time, in milliseconds since the epoch
+     * @param to The latest time, in milliseconds since the epoch
+     * @param limit The most entries to provide
+     * @return A new list of entries, oldest first, empty if no history is kept
+     */
+    public List<HistoryStore.Entry> history(int id, long from, long to, int limit) throws IOException {
+        return history == null ? new ArrayList<>() : history.between(id, from, to, limit);
+    }
+
+    /**
+     * Provides every account whose name matches the provided
+     * name, ignoring case.
+     * @param name The name that is being searched for
+     * @return A new list of matching accounts
+     */
+    public List<Account> find(String name) {
+        return resolve(nameIndex.find(name));
+    }
+
+    /**
+     * Provides accounts whose names start with the provided prefix,
+     * ignoring case, in alphabetical order.
+     * @param prefix The start of the name that is being searched for
+     * @param limit The maximum number of accounts to return
+     * @return A new list of matching accounts
+     */
+    public List<Account> findPrefix(String prefix, int limit) {
+        return resolve(nameIndex.findPrefix(prefix, limit));
+    }
+
+    /**
+     * Provides accounts whose names are within two typos of the
+     * provided name, ignoring case, closest first. Short words in the
+     * name have to match more closely than long ones.
+     * @param name The name that is being searched for
+     * @param limit The maximum number of accounts to return
+     * @return A new list of matching accounts
+     */
+    public List<Account> findSimilar(String name, int limit) {
+        return resolve(nameIndex.findSimilar(name, SIMILAR_DISTANCE, limit));
+    }
+
+    /**
+     * Provides every account at the provided address, ignoring case.
+     * @param address The address that is being searched for
+     * @return A new list of matching accounts
+     */
+    public List<Account> findAddress(String address) {
+        return resolve(secondary().addresses().find(address));
+    }
+
+    /**
+     * Provides accounts whose balance is within a range, lowest
+     * balance first. Takes time in the number of accounts returned,
+     * not the number of accounts in the ledger.
+     * @param low The lowest balance to include, in cents
+     * @param high The highest balance to include, in cents
+     * @param limit The maximum number of accounts to return
+     * @return A new list of matching accounts
+     */
+    public List<Account> findBalanceRange(long low, long high, int limit) {
+        // Balances may have moved since the lookup
+        List<Account> result = resolve(secondary().balances().range(low, high, limit));
+        result.removeIf(acc -> acc.getBalance() < low || acc.getBalance() > high);
+        return result;
+    }
+
+    /**
+     * Provides accounts with a negative balance, most overdrawn first.
+     * @param limit The maximum number of accounts to return
+     * @return A new list of overdrawn accounts
+     */
+    public List<Account> findOverdrawn(int limit) {
+        return findBalanceRange(Long.MIN_VALUE, -1, limit);
+    }
+
+    /**
+     * Provides the accounts with the highest balances, highest first.
+     * @param limit The maximum number of accounts to return
+     * @return A new list of accounts
+     */
+    public List<Account> findTopBalances(int limit) {
+        return resolve(secondary().balances().top(limit));
+    }
+
+    /**
+     * Provides bank-wide totals. Totals are counted as accounts
+     * change, so this takes the same time however many accounts
+     * there are, apart from the very first call, which totals up
+     * every account to start from.
+     * @return The current totals
+     */
+    public Totals getTotals() {
+        return aggregates().totals();
+    }
+
+    /**
+     * Cross-checks the totals against every account. The totals are
+     * read and a view is taken at the same moment, then the view is
+     * gone through without holding any lock, so sessions carry on
+     * while it's checked.
+     * @return The totals as kept, next to the totals as scanned
+     */
+    public TotalsCheck verifyTotals() {
+        // Declare variables
+        Aggregates kept = aggregates();
+        Totals[] maintained = new Totals[1];
+        AccountView view = underEveryStripe(() -> {
+            maintained[0] = kept.totals();
+            return store.snapshot();
+        });
+
+        try (view) {
+            return new TotalsCheck(maintained[0], Aggregates.scan(view));
+        }
+    }
+
+    /**
+     * Reclaims the space left behind by closed accounts, once they
+     * take up at least the given share of the store. Closing an
+     * account only leaves a gap behind, so it never waits on this.
+     * Accounts moved in memory are moved a batch at a time while
+     * holding every stripe lock, so sessions only wait for a batch.
+     * @param ratio The share of closed accounts to start reclaiming at, from 0 to 1
+     * @return Whether any space was reclaimed
+     */
+    public boolean compact(double ratio) throws IOException {
+        return store.compact(ratio, work -> underEveryStripe(() -> {
+            work.run();
+            return null;
+        }));
+    }
+
+    /**
+     * Takes a read-only view of every account as it is right now.
+     * Every stripe lock is held just long enough to take the view, so
+     * no transfer is caught halfway. Reports and exports can then go
+     * through the view for as long as they like without holding up
+     * any session.
+     * @return The view, which has to be closed once done with
+     */
+    public AccountView snapshot() {
+        return underEveryStripe(store::snapshot);
+    }
+
+    /**
+     * Provides the stream every mutation is published to, starting it
+     * the first time. Consumers only see mutations made after they
+     * subscribe; to start from a copy of every account, use
+     * {@link #replicate} instead.
+     * @return The change stream of this ledger
+     */
+    public ChangeStream changes() {
+        ChangeStream stream = changes;
+        if (stream != null)
+            return stream;
+
+        synchronized (stripes) {
+            if (changes == null)
+                changes = new ChangeStream();
+            return changes;
+        }
+    }
+
+    /**
+     * Starts a standby replica of every account. The replica starts
+     * following the change stream and a snapshot is taken while every
+     * stripe lock is held, so no mutation is missed or applied twice.
+     * The accounts are then copied without holding up sessions, and
+     * changes made meanwhile are applied once they are; sessions only
+     * wait if the copy takes longer than the stream has room for.
+     * @param wait How the replica waits for changes once it has caught up
+     * @return The replica, to be closed once done with
+     */
+    public StandbyReplica replicate(ChangeStream.WaitStrategy wait) {
+        // Declare variables
+        ChangeStream stream = changes();
+        StandbyReplica replica = new StandbyReplica();
+
+        try (AccountView view = underEveryStripe(() -> {
+            replica.follow(stream, wait);
+            return store.snapshot();
+        })) {
+            replica.seed(view);
+        }
+        return replica;
+    }
+
+    /**
+     * @return The account store this ledger works on
+     */
+    public AccountStore getStore() {
+        return store;
+    }
+
+    private List<Account> resolve(List<Integer> ids) {
+        int[] array = new int[ids.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = ids.get(i);
+        return resolve(array);
+    }
+
+    private List<Account> resolve(int[] ids) {
+        // Accounts closed since the lookup are left out
+        List<Account> result = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            Account acc = store.get(id);
+            if (acc != null)
+                result.add(acc);
+        }
+        return result;
+    }
+
+    /**
+     * Provides the indexes by address and balance, building them the
+     * first time. Building holds every stripe lock, so no mutation
+     * can slip in between the scan and the indexes going live.
+     */
+    private SecondaryIndexes secondary() {
+        SecondaryIndexes indexes = secondary;
+        if (indexes != null)
+            return indexes;
+
+        synchronized (stripes) {
+            if (secondary == null) {
+                underEveryStripe(() -> {
+                    // Declare variables
+                    SecondaryIndexes built = new SecondaryIndexes(new BalanceIndex(), new NameIndex());
+                    int[][] ids = {new int[store.size()]};
+                    long[][] balances = {new long[store.size()]};
+                    int[] count = {0};
+
+                    store.forEach(acc -> {
+                        if (count[0] == ids[0].length) {
+                            ids[0] = Arrays.copyOf(ids[0], count[0] * 2 + 16);
+                            balances[0] = Arrays.copyOf(balances[0], count[0] * 2 + 16);
+                        }
+                        ids[0][count[0]] = acc.getID();
+                        balances[0][count[0]++] = acc.getBalance();
+                        built.addresses().add(acc.getID(), acc.getAddress());
+                    });
+                    built.balances().addAll(ids[0], balances[0], count[0]);
+                    // Published before unlocking, or a mutation could miss them
+                    return secondary = built;
+                });
+            }
+            return secondary;
+        }
+    }
+
+    /**
+     * Provides the totals, counting them up the first time.
+     */
+    private Aggregates aggregates() {
+        Aggregates totals = aggregates;
+        if (totals != null)
+            return totals;
+
+        synchronized (stripes) {
+            if (aggregates == null)
+                underEveryStripe(() -> aggregates = new Aggregates(Aggregates.scan(store)));
+            return aggregates;
+        }
+    }
+
+    /**
+     * Runs some work while holding every stripe lock, so no mutation
+     * can happen meanwhile. Whatever the work builds can be published
+     * before the locks are let go, so no mutation can miss it either.
+     */
+    private <T> T underEveryStripe(Supplier<T> work) {
+        for (ReentrantLock stripe : stripes)
+            stripe.lock();
+        try {
+            return work.get();
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--)
+                stripes[i].unlock();
+        }
+    }
+
+    /**
+     * Moves an account within the balance index and the totals, if
+     * they've been built. Must be called while holding the account's
+     * stripe lock.
+     */
+    private void balanceChanged(int id, long from, long to) {
+        SecondaryIndexes indexes = secondary;
+        Aggregates totals = aggregates;
+        if (indexes != null)
+            indexes.balances().move(id, from, to);
+        if (totals != null)
+            totals.moved(from, to);
+    }
+
+    private ReentrantLock lockFor(int id) {
+        return stripes[id & (STRIPES - 1)];
+    }
+
+    /**
+     * Waits for a journal record to be synced. This happens after
+     * the stripe lock is let go, so other sessions can keep going
+     * and share the sync. Inside {@link #deferCommits} the wait is
+     * put off until the work is done.
+     */
+    private void commit(long seq) {
+        if (seq == 0)
+            return;
+
+        long[] deferred = deferredSeq.get();
+        if (deferred != null)
+            deferred[0] = Math.max(deferred[0], seq);
+        else
+            journal.commit(seq);
+    }
+}
@@ -0,0 +1,174 @@
+package com.jefftastic.genericbanking;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Keeps track of where the time goes, through:<br>
+ *  - Latency histograms, one per named operation<br>
+ *  - Counters for accounts opened and closed, and funds moved<br>
+ *  Everything is published as platform MBeans under
+ *  {@value #DOMAIN}, and can also be dumped to a file every so often.
+ *  Histograms are meant to be looked up once and kept in a constant,
+ *  so the recording path stays free of lookups.
+ * @see LatencyHistogram
+ */
+
+public final class Metrics {
+    // Declare constants
+    public static final String DOMAIN = "com.jefftastic.genericbanking";
+
+    // Declare class variables
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    static final LongAdder accountsOpened = new LongAdder();
+    static final LongAdder accountsClosed = new LongAdder();
+    static final LongAdder deposits = new LongAdder(), centsDeposited = new LongAdder();
+    static final LongAdder withdrawals = new LongAdder(), centsWithdrawn = new LongAdder();
+    static final LongAdder transfers = new LongAdder(), centsTransferred = new LongAdder();
+    private static ScheduledExecutorService dumper;
+    private static Path dumpFile;
+
+    static {
+        register(new Counters(), DOMAIN + ":type=Metrics");
+    }
+
+    private Metrics() {}
+
+    /**
+     * Provides the histogram for an operation, creating and
+     * publishing it the first time it is asked for.
+     * @param name The name of the operation, e.g. "csv.write"
+     * @return The histogram
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> {
+            LatencyHistogram histogram = new LatencyHistogram(key);
+            register(histogram, DOMAIN + ":type=Latency,name=" + ObjectName.quote(key));
+            return histogram;
+        });
+    }
+
+    /**
+     * @return Every metric as readable text
+     */
+    public static String report() {
+        // Declare variables
+        StringBuilder report = new StringBuilder();
+
+        report.append("Metrics at ").append(LocalDateTime.now()).append("\n\n");
+        report.append("""
+                Accounts opened   %14d
+                Accounts closed   %14d
+                Deposits          %14d  %18s
+                Withdrawals       %14d  %18s
+                Transfers         %14d  %18s
+
+                """.formatted(
+                accountsOpened.sum(), accountsClosed.sum(),
+                deposits.sum(), Money.format(centsDeposited.sum()),
+                withdrawals.sum(), Money.format(centsWithdrawn.sum()),
+                transfers.sum(), Money.format(centsTransferred.sum())));
+
+        // Times are in microseconds
+        report.append("%-28s %10s %10s %10s %10s %10s %10s %10s\n".formatted(
+                "Operation", "Count", "Mean", "p50", "p90", "p99", "p99.9", "Max"));
+        for (LatencyHistogram h : new TreeMap<>(histograms).values())
+            report.append("%-28s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f\n".formatted(
+                    h.getName(), h.getCount(), h.getMeanMicros(), h.getP50Micros(), h.getP90Micros(),
+                    h.getP99Micros(), h.getP999Micros(), h.getMaxMicros()));
+
+        return report.toString();
+    }
+
+    /**
+     * Starts writing the report to a file every so often, replacing
+     * the previous one. Any earlier dump is stopped first.
+     * @param file The file to write
+     * @param periodSeconds How often to write it
+     */
+    public static synchronized void startDump(Path file, long periodSeconds) {
+        stopDump();
+        dumpFile = file;
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(file), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops writing the report to a file, after writing it one last time.
+     */
+    public static synchronized void stopDump() {
+        if (dumper == null)
+            return;
+
+        dumper.shutdown();
+        try {
+            dumper.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        dump(dumpFile);
+        dumper = null;
+    }
+
+    /**
+     * Writes the report to a file once, replacing it atomically.
+     * @param file The file to write
+     * @return Whether the file was written
+     */
+    public static boolean dump(Path file) {
+        Path target = file.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.writeString(temp, report(), StandardCharsets.UTF_8);
+            Database.replaceFile(temp, target);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not write metrics to \"%s\".".formatted(file));
+            e.printStackTrace(System.out);
+            return false;
+        }
+    }
+
+    private static void register(Object bean, String name) {
+        // Metrics are nice to have, so never fail over them
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (!server.isRegistered(objectName))
+                server.registerMBean(bean, objectName);
+        } catch (JMException | SecurityException e) {
+            System.out.println("Could not publish metrics as \"%s\".".formatted(name));
+            e.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * Publishes the counters.
+     */
+    private static class Counters implements MetricsMXBean {
+        public long getAccountsOpened() { return accountsOpened.sum(); }
+        public long getAccountsClosed() { return accountsClosed.sum(); }
+        public long getDeposits() { return deposits.sum(); }
+        public long getWithdrawals() { return withdrawals.sum(); }
+        public long getTransfers() { return transfers.sum(); }
+        public long getCentsDeposited() { return centsDeposited.sum(); }
+        public long getCentsWithdrawn() { return centsWithdrawn.sum(); }
+        public long getCentsTransferred() { return centsTransferred.sum(); }
+        public String getReport() { return report(); }
+    }
+}
@@ -0,0 +1,23 @@
+package com.jefftastic.genericbanking;
+
+/**
+ *  Management view of the counters kept by {@link Metrics}. Amounts
+ *  are in cents.
+ * @see Metrics
+ */
+
+public interface MetricsMXBean {
+    long getAccountsOpened();
+    long getAccountsClosed();
+    long getDeposits();
+    long getWithdrawals();
+    long getTransfers();
+    long getCentsDeposited();
+    long getCentsWithdrawn();
+    long getCentsTransferred();
+
+    /**
+     * @return Every metric as readable text, as written to the dump file
+     */
+    String getReport();
+}
@@ -0,0 +1,96 @@
+package com.jefftastic.genericbanking;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ *  Converts amounts of money to and from whole cents, which is
+ *  how every balance is held. Cents never pick up the rounding
+ *  error that adding up doubles does.
+ */
+
+public final class Money {
+    private Money() {}
+
+    /**
+     * Converts an amount typed in by a user into cents, rounding
+     * to the nearest cent.
+     * @param amount The amount in dollars
+     * @return The amount in cents
+     */
+    public static long fromDouble(double amount) {
+        return Math.round(amount * 100.0d);
+    }
+
+    /**
+     * Parses a decimal amount of dollars, such as "-12.345", into
+     * cents, rounding half up to the nearest cent. Plain decimals
+     * are parsed without allocating; anything fancier, such as an
+     * exponent, falls back to {@link BigDecimal}.
+     * @param str The amount in dollars
+     * @return The amount in cents
+     * @throws NumberFormatException If the amount is not a number
+     */
+    public static long parse(String str) {
+        // Declare variables
+        int len = str.length(), pos = 0;
+        boolean negative = false;
+        long whole = 0;
+        int fraction = 0, fractionDigits = 0, roundDigit = 0;
+
+        if (pos < len && (str.charAt(pos) == '-' || str.charAt(pos) == '+'))
+            negative = str.charAt(pos++) == '-';
+        int wholeStart = pos;
+        while (pos < len && Character.isDigit(str.charAt(pos)) && pos - wholeStart < 16)
+            whole = whole * 10 + (str.charAt(pos++) - '0');
+        boolean hasWhole = pos > wholeStart;
+
+        // Keep two digits of the fraction, and the third to round with
+        if (pos < len && str.charAt(pos) == '.') {
+            pos++;
+            while (pos < len && Character.isDigit(str.charAt(pos))) {
+                int digit = str.charAt(pos++) - '0';
+                if (fractionDigits < 2)
+                    fraction = fraction * 10 + digit;
+                else if (fractionDigits == 2)
+                    roundDigit = digit;
+                fractionDigits++;
+            }
+        }
+
+        // Anything we didn't fully understand goes the slow way
+        if (pos != len || (!hasWhole && fractionDigits == 0))
+            return slowParse(str);
+
+        if (fractionDigits == 1)
+            fraction *= 10;
+        long cents = whole * 100 + fraction + (roundDigit >= 5 ? 1 : 0);
+        return negative ? -cents : cents;
+    }
+
+    /**
+     * Formats cents as a decimal amount of dollars, such as "-12.35".
+     * @param cents The amount in cents
+     * @return The amount in dollars
+     */
+    public static String format(long cents) {
+        // Declare variables
+        StringBuilder sb = new StringBuilder(24);
+        long abs = Math.abs(cents);
+
+        if (cents < 0)
+            sb.append('-');
+        sb.append(abs / 100).append('.');
+        if (abs % 100 < 10)
+            sb.append('0');
+        return sb.append(abs % 100).toString();
+    }
+
+    private static long slowParse(String str) {
+        try {
+            return new BigDecimal(str.trim()).setScale(2, RoundingMode.HALF_UP).movePointRight(2).longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + str);
+        }
+    }
+}
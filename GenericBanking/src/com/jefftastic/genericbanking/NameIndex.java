@@ -0,0 +1,287 @@
+package com.jefftastic.genericbanking;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ *  Indexes account IDs by their case-folded name, or any other
+ *  string such as their address, allowing for:<br>
+ *  - Constant-time lookups of exact (case-insensitive) names<br>
+ *  - "Starts with" searches through a sorted set of names<br>
+ *  - Searches for names with a few typos in them, if asked to<br>
+ *  Folded names are kept in a {@link StringPool}, and IDs are kept
+ *  by the pool's code for the name, so past the one lookup of the
+ *  name itself, finding its accounts only compares ints. Most names
+ *  belong to a single account, whose ID is kept inline instead of in
+ *  an array of its own. Typo-tolerant searches look up the words of
+ *  a name in a {@link TrigramIndex}, then every name made of words
+ *  close to them, closest first.<br>
+ *  The index has to be kept in sync with the account store by
+ *  whoever opens and closes accounts. It is safe to use from
+ *  many sessions at once; changes are made one at a time, and
+ *  arrays of IDs are replaced rather than modified, so lookups
+ *  never lock.
+ * @see Ledger
+ */
+
+class NameIndex implements NameLookup {
+    // Declare constants
+    private static final int MAX_SIMILAR_LOOKUPS = 4096;
+
+    /**
+     * IDs by name code. A name held by a single account has its
+     * ID + 1 in lone, one held by more has them all in shared.
+     */
+    private record Ids(int[] lone, int[][] shared) {}
+
+    // Declare class variables
+    private final StringPool keys = new StringPool();
+    private final ConcurrentSkipListSet<byte[]> sortedNames = new ConcurrentSkipListSet<>(Arrays::compareUnsigned);
+    private volatile Ids ids = new Ids(new int[1024], new int[1024][]);
+    private final TrigramIndex words;
+
+    /**
+     * NameIndex constructor.
+     * @param similar Whether names should also be found with typos in them
+     */
+    NameIndex(boolean similar) {
+        this.words = similar ? new TrigramIndex() : null;
+    }
+
+    /**
+     * NameIndex constructor, for exact and prefix searches only.
+     */
+    NameIndex() {
+        this(false);
+    }
+
+    /**
+     * Adds an account to the index.
+     * @param id The ID of the account
+     * @param name The name of the account
+     */
+    @Override
+    public synchronized void add(int id, String name) {
+        // Declare variables
+        String key = fold(name);
+        int code = keys.intern(key);
+
+        if (code >= ids.lone().length) {
+            int size = Math.max(code + 1, ids.lone().length * 2);
+            ids = new Ids(Arrays.copyOf(ids.lone(), size), Arrays.copyOf(ids.shared(), size));
+        }
+        int[] lone = ids.lone();
+        int[][] shared = ids.shared();
+
+        // Going from one account to two, the array goes in before the
+        // inline ID goes, since lookups check the array first
+        if (shared[code] != null) {
+            int[] grown = Arrays.copyOf(shared[code], shared[code].length + 1);
+            grown[grown.length - 1] = id;
+            shared[code] = grown;
+        } else if (lone[code] != 0) {
+            shared[code] = new int[] {lone[code] - 1, id};
+            lone[code] = 0;
+        } else {
+            // First account under this name, so it has to be
+            // made visible to prefix searches as well
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            lone[code] = id + 1;
+            sortedNames.add(bytes);
+            if (words != null)
+                words.add(bytes);
+        }
+    }
+
+    /**
+     * Removes an account from the index. Nothing happens if
+     * the account was never indexed.
+     * @param id The ID of the account
+     * @param name The name of the account
+     */
+    @Override
+    public synchronized void remove(int id, String name) {
+        // Declare variables
+        String key = fold(name);
+        int code = keys.code(key);
+
+        if (code < 0)
+            return;
+        int[] lone = ids.lone();
+        int[][] shared = ids.shared();
+
+        if (shared[code] != null) {
+            // Buckets are tiny, so a scan is fine here
+            int[] bucket = shared[code];
+            int index = -1;
+            for (int i = 0; i < bucket.length && index == -1; i++)
+                if (bucket[i] == id)
+                    index = i;
+            if (index == -1)
+                return;
+
+            // Down to one account, the inline ID goes in first
+            if (bucket.length == 2) {
+                lone[code] = bucket[1 - index] + 1;
+                shared[code] = null;
+            } else {
+                int[] shrunk = new int[bucket.length - 1];
+                System.arraycopy(bucket, 0, shrunk, 0, index);
+                System.arraycopy(bucket, index + 1, shrunk, index, shrunk.length - index);
+                shared[code] = shrunk;
+            }
+        } else if (lone[code] == id + 1) {
+            // Drop the name entirely once nobody holds it
+            sortedNames.remove(key.getBytes(StandardCharsets.UTF_8));
+            lone[code] = 0;
+        } else
+            return;
+
+        keys.release(code);
+    }
+
+    /**
+     * Provides the ID of every account whose name matches the
+     * provided name, ignoring case.
+     * @param name The name that is being searched for
+     * @return The matching IDs, which must not be modified
+     */
+    @Override
+    public int[] find(String name) {
+        return find(fold(name).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Provides the IDs of accounts whose names start with the
+     * provided prefix, ignoring case, in alphabetical order.
+     * @param prefix The start of the name that is being searched for
+     * @param limit The maximum number of IDs to return
+     * @return A new list of matching IDs
+     */
+    @Override
+    public List<Integer> findPrefix(String prefix, int limit) {
+        // Declare variables
+        List<Integer> result = new ArrayList<>();
+        byte[] key = fold(prefix).getBytes(StandardCharsets.UTF_8);
+
+        // Walk the sorted names from the prefix onwards, stopping at
+        // the first name that no longer starts with it. UTF-8 sorts
+        // by code point, so every name with the prefix is in one run.
+        for (byte[] name : sortedNames.tailSet(key, true)) {
+            if (name.length < key.length || Arrays.mismatch(name, 0, key.length, key, 0, key.length) != -1
+                    || result.size() >= limit)
+                break;
+
+            // The name may have been dropped since we saw it
+            for (int id : find(name)) {
+                if (result.size() >= limit)
+                    break;
+                result.add(id);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Provides the IDs of accounts whose names are within a number
+     * of typos of the provided name, ignoring case, closest first.
+     * Names are matched word by word, each word being allowed one
+     * typo if it's 3 to 5 characters long, two if it's longer, and
+     * none if it's shorter, up to the given number across the name.
+     * Nothing is found if this index wasn't asked to find similar names.
+     * @param name The name that is being searched for
+     * @param maxDistance The most typos a name may be away from the provided name
+     * @param limit The maximum number of IDs to return
+     * @return A new list of matching IDs
+     */
+    @Override
+    public List<Integer> findSimilar(String name, int maxDistance, int limit) {
+        // Declare variables
+        List<Integer> result = new ArrayList<>();
+        String[] parts = fold(name).split(" ", -1);
+        List<List<TrigramIndex.Match>> matches = new ArrayList<>(parts.length);
+
+        if (words == null)
+            return result;
+        for (String part : parts) {
+            int typos = part.length() <= 2 ? 0 : part.length() <= 5 ? 1 : 2;
+            matches.add(part.isEmpty() ? List.of(new TrigramIndex.Match(part, 0))
+                    : words.find(part, Math.min(typos, maxDistance)));
+        }
+
+        // Try names made of the words found, closest names first,
+        // and stop trying once enough were looked up
+        int[] lookups = {0};
+        String[] chosen = new String[parts.length];
+        for (int distance = 0; distance <= maxDistance && result.size() < limit; distance++)
+            combine(matches, 0, distance, chosen, lookups, limit, result);
+
+        return result;
+    }
+
+    /**
+     * Looks up every name made of the words found whose typos add up
+     * to exactly the given distance, adding their IDs to the result.
+     */
+    private void combine(List<List<TrigramIndex.Match>> matches, int word, int distance, String[] chosen,
+                         int[] lookups, int limit, List<Integer> result) {
+        if (result.size() >= limit || lookups[0] >= MAX_SIMILAR_LOOKUPS)
+            return;
+
+        if (word == matches.size()) {
+            if (distance != 0)
+                return;
+            lookups[0]++;
+            for (int id : find(String.join(" ", chosen).getBytes(StandardCharsets.UTF_8))) {
+                if (result.size() >= limit)
+                    break;
+                result.add(id);
+            }
+            return;
+        }
+
+        // Matches are closest first, so the rest are all too far once one is
+        for (TrigramIndex.Match match : matches.get(word)) {
+            if (match.distance() > distance)
+                break;
+            chosen[word] = match.word();
+            combine(matches, word + 1, distance - match.distance(), chosen, lookups, limit, result);
+        }
+    }
+
+    /**
+     * Folds a name into the key used by this index. Two names fold
+     * to the same key exactly when {@link String#equalsIgnoreCase}
+     * considers them equal.
+     * @param name The name to fold
+     * @return The case-folded name
+     */
+    static String fold(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        return new String(chars);
+    }
+
+    private int[] find(byte[] key) {
+        // Declare variables
+        int code = keys.code(key);
+        Ids current = ids;
+        int[] found;
+
+        if (code < 0 || code >= current.lone().length)
+            return new int[0];
+        if (current.shared()[code] != null)
+            found = current.shared()[code];
+        else {
+            int lone = current.lone()[code];
+            found = lone == 0 ? new int[0] : new int[] {lone - 1};
+        }
+
+        // The name's code may have been let go of and handed to
+        // another name while we were reading its IDs
+        return keys.code(key) == code ? found : new int[0];
+    }
+}
@@ -0,0 +1,54 @@
+package com.jefftastic.genericbanking;
+
+import java.util.List;
+
+/**
+ *  Finds account IDs by name, ignoring case. Implementations decide
+ *  where the names are kept: in memory, or on disk next to the
+ *  accounts themselves.
+ * @see NameIndex
+ * @see Ledger
+ */
+
+interface NameLookup {
+    /**
+     * Takes note of a newly opened account.
+     * @param id The ID of the account
+     * @param name The name of the account
+     */
+    void add(int id, String name);
+
+    /**
+     * Takes note of a closed account.
+     * @param id The ID of the account
+     * @param name The name of the account
+     */
+    void remove(int id, String name);
+
+    /**
+     * Provides the ID of every account whose name matches the
+     * provided name, ignoring case.
+     * @param name The name that is being searched for
+     * @return The matching IDs, which must not be modified
+     */
+    int[] find(String name);
+
+    /**
+     * Provides the IDs of accounts whose names start with the
+     * provided prefix, ignoring case, in alphabetical order.
+     * @param prefix The start of the name that is being searched for
+     * @param limit The maximum number of IDs to return
+     * @return A new list of matching IDs
+     */
+    List<Integer> findPrefix(String prefix, int limit);
+
+    /**
+     * Provides the IDs of accounts whose names are within a number
+     * of typos of the provided name, ignoring case, closest first.
+     * @param name The name that is being searched for
+     * @param maxDistance The most typos a name may be away from the provided name
+     * @param limit The maximum number of IDs to return
+     * @return A new list of matching IDs
+     */
+    List<Integer> findSimilar(String name, int maxDistance, int limit);
+}
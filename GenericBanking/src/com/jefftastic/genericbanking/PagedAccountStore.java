@@ -0,0 +1,720 @@
+package com.jefftastic.genericbanking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ *  Account store that leaves accounts in the shards of a data
+ *  directory and only reads them when they're asked for, keeping:<br>
+ *  - The shards memory-mapped, along with an on-disk index of IDs and names<br>
+ *  - A bounded cache of recently used accounts, evicting the least
+ *    recently used one when it's full<br>
+ *  - Accounts opened since the last save, until they're written out<br>
+ *  Opening the store only maps files, so it starts in the same time
+ *  however many accounts there are, and the heap holds no more than
+ *  the cache and the accounts opened since the last save. Balances
+ *  changed in the cache are written back in place when their account
+ *  is evicted or the store is saved; closing an account flags its
+ *  record in place, and so does renaming or moving it, before it's
+ *  saved again like a new account. Everything in between is covered
+ *  by the journal.<br>
+ *  Accounts are split into stripes by shard, each with its own lock,
+ *  cache and accounts opened since the last save, so sessions only
+ *  wait on others using the same shard. Saving writes one shard at a
+ *  time, and only holds every lock to hand the new records over to
+ *  the index. The manifest counts the open accounts, and is marked
+ *  as uncounted before any record is closed or added on disk, so
+ *  only a start after a crash has to count them from the shards.
+ *  Compacting rewrites shards where enough records are flagged as
+ *  closed without them, then builds the index again, holding every
+ *  lock throughout, which is why it's only done once enough records
+ *  are closed.
+ * @see PagedIndex
+ * @see ShardStorage
+ */
+
+class PagedAccountStore implements AccountStore {
+    // Declare constants
+    static final int DEFAULT_CACHE_SIZE = 100_000;
+    private static final LatencyHistogram PAGE_IN_LATENCY = Metrics.histogram("paged.pagein");
+    private static final LatencyHistogram FLUSH_LATENCY = Metrics.histogram("paged.flush");
+    private static final LatencyHistogram COMPACT_LATENCY = Metrics.histogram("paged.compact");
+
+    /**
+     * An account held in memory. Accounts that haven't been written
+     * to a shard yet have no shard or record.
+     */
+    private static final class Entry {
+        final int id, shard, record;
+        final String name, address;
+        long balance;
+        boolean dirty;
+
+        Entry(int id, int shard, int record, String name, String address, long balance) {
+            this.id = id;
+            this.shard = shard;
+            this.record = record;
+            this.name = name;
+            this.address = address;
+            this.balance = balance;
+        }
+    }
+
+    /**
+     * The accounts of one shard that are held in memory. Everything
+     * here, and the shard's records, is only touched while holding
+     * the stripe's lock.
+     */
+    private final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<Integer, Entry> cache;
+        final TreeMap<Integer, Entry> added = new TreeMap<>();
+        // Records past this aren't in the index yet, so they're still in added
+        int indexed;
+
+        Stripe(int cacheSize, int indexed) {
+            this.indexed = indexed;
+
+            // Access order makes the eldest entry the least recently used
+            this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                    if (size() <= cacheSize)
+                        return false;
+                    writeBack(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+    }
+
+    // Declare class variables
+    private final File dir;
+    private final Snapshot.Table[] shards;
+    private final int shardBits;
+    private final Stripe[] stripes;
+    // Held to read the index for name lookups, and taken exclusively to replace it
+    private final ReentrantReadWriteLock layout = new ReentrantReadWriteLock();
+    private PagedIndex index;
+    private final NameIndex addedNames = new NameIndex(true);
+    private final PagedNames names = new PagedNames();
+    // Open accounts with a record on disk, and those still only in memory
+    private final AtomicInteger saved = new AtomicInteger(), added = new AtomicInteger();
+    private final AtomicInteger maxID;
+    // Guards the manifest, and closing records in place
+    private final Object manifestLock = new Object();
+    private boolean counted;
+    private volatile long generation;
+    private volatile boolean broken;
+
+    private PagedAccountStore(File dir, Snapshot.Table[] shards, PagedIndex index,
+                              long generation, int accounts, int maxID, int cacheSize) {
+        this.dir = dir;
+        this.shards = shards;
+        this.shardBits = Integer.numberOfTrailingZeros(shards.length);
+        this.index = index;
+        this.generation = generation;
+        this.maxID = new AtomicInteger(Math.max(maxID, index.maxID()));
+        this.stripes = new Stripe[shards.length];
+        for (int s = 0; s < shards.length; s++)
+            stripes[s] = new Stripe(Math.max(1, cacheSize / shards.length), shards[s].count());
+
+        // Only a save that stopped halfway leaves the manifest uncounted
+        counted = accounts != ShardStorage.UNCOUNTED;
+        if (counted)
+            saved.set(accounts);
+        else
+            for (Snapshot.Table shard : shards)
+                saved.addAndGet(liveRecords(shard, shard.count()));
+    }
+
+    /**
+     * Opens the shards of a data directory in place, building the
+     * index first if it's missing or out of date.
+     * @param dir The data directory
+     * @param cacheSize The maximum number of saved accounts to keep in memory
+     * @return The opened store
+     */
+    static PagedAccountStore open(File dir, int cacheSize) throws IOException {
+        // Declare variables
+        Properties manifest = ShardStorage.readManifest(dir);
+        int shardCount = ShardStorage.parseInt(manifest, "shards");
+        long generation = ShardStorage.generation(manifest);
+        Snapshot.Table[] shards = new Snapshot.Table[shardCount];
+
+        if (ShardStorage.parseInt(manifest, "version") != ShardStorage.FORMAT_VERSION)
+            throw new IOException("Unsupported data directory version " + manifest.getProperty("version"));
+        if (shardCount <= 0 || Integer.bitCount(shardCount) != 1)
+            throw new IOException("The number of shards must be a power of two, got " + shardCount);
+
+        try {
+            for (int i = 0; i < shardCount; i++)
+                shards[i] = new Snapshot.Table(ShardStorage.shardFile(dir, i).toPath(), true);
+            PagedIndex index = PagedIndex.open(dir, shards, generation);
+            return new PagedAccountStore(dir, shards, index, generation, ShardStorage.accounts(manifest),
+                    ShardStorage.maxID(manifest), cacheSize);
+        } catch (IOException e) {
+            for (Snapshot.Table shard : shards)
+                if (shard != null)
+                    shard.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Name lookups over every account in this store, which
+     *         this store keeps up to date by itself
+     */
+    NameLookup names() { return names; }
+
+    @Override
+    public void put(Account acc) {
+        // Declare variables
+        int id = acc.getID();
+        if (id <= 0)
+            throw new IllegalArgumentException("Account IDs must be positive, got " + id);
+        Stripe stripe = stripeOf(id);
+
+        stripe.lock.lock();
+        try {
+            // If only the balance changed, it's written back in place
+            Entry entry = entry(stripe, id);
+            if (entry != null && entry.name.equals(acc.getName()) && entry.address.equals(acc.getAddress())) {
+                entry.balance = acc.getBalance();
+                entry.dirty = entry.shard >= 0;
+                return;
+            }
+
+            // Otherwise the record can't be rewritten in place, so the old
+            // one is closed and the account is saved again as if it were new
+            if (entry != null) {
+                if (entry.shard >= 0) {
+                    closeRecord(entry.shard, entry.record);
+                    stripe.cache.remove(id);
+                } else {
+                    stripe.added.remove(id);
+                    addedNames.remove(id, entry.name);
+                    added.decrementAndGet();
+                }
+            }
+
+            stripe.added.put(id, new Entry(id, -1, -1, acc.getName(), acc.getAddress(), acc.getBalance()));
+            addedNames.add(id, acc.getName());
+            added.incrementAndGet();
+            maxID.accumulateAndGet(id, Math::max);
+        } finally { stripe.lock.unlock(); }
+    }
+
+    @Override
+    public boolean remove(int id) {
+        // Declare variables
+        Stripe stripe = stripeOf(id);
+
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.added.remove(id);
+            if (entry != null) {
+                addedNames.remove(id, entry.name);
+                added.decrementAndGet();
+                return true;
+            }
+
+            long location = index.location(id);
+            if (location == 0)
+                return false;
+            int shard = (int) (location >>> 32), record = (int) location - 1;
+            if (shards[shard].isClosed(record))
+                return false;
+
+            closeRecord(shard, record);
+            stripe.cache.remove(id);
+            return true;
+        } finally { stripe.lock.unlock(); }
+    }
+
+    @Override
+    public boolean contains(int id) {
+        Stripe stripe = stripeOf(id);
+        stripe.lock.lock();
+        try {
+            return entry(stripe, id) != null;
+        } finally { stripe.lock.unlock(); }
+    }
+
+    @Override
+    public Account get(int id) {
+        Stripe stripe = stripeOf(id);
+        stripe.lock.lock();
+        try {
+            Entry entry = entry(stripe, id);
+            return entry == null ? null : new Account(id, entry.name, entry.address, entry.balance);
+        } finally { stripe.lock.unlock(); }
+    }
+
+    @Override
+    public long getBalance(int id) {
+        Stripe stripe = stripeOf(id);
+        stripe.lock.lock();
+        try {
+            return existing(stripe, id).balance;
+        } finally { stripe.lock.unlock(); }
+    }
+
+    @Override
+    public void setBalance(int id, long balance) {
+        Stripe stripe = stripeOf(id);
+        stripe.lock.lock();
+        try {
+            Entry entry = existing(stripe, id);
+            entry.balance = balance;
+            entry.dirty = entry.shard >= 0;
+        } finally { stripe.lock.unlock(); }
+    }
+
+    @Override
+    public int size() { return saved.get() + added.get(); }
+
+    @Override
+    public int maxID() { return maxID.get(); }
+
+    @Override
+    public void raiseMaxID(int maxID) { this.maxID.accumulateAndGet(maxID, Math::max); }
+
+    @Override
+    public void forEach(Consumer<Account> action) {
+        // Declare variables
+        List<Entry> fresh = new ArrayList<>();
+
+        // Saved accounts go straight from the shards, in ID order,
+        // once the cache has nothing newer than them
+        lockEveryStripe();
+        try {
+            for (Stripe stripe : stripes) {
+                writeBackAll(stripe);
+                fresh.addAll(stripe.added.values());
+            }
+            for (int id = 1; id <= index.maxID(); id++) {
+                long location = index.location(id);
+                if (location == 0)
+                    continue;
+                Account acc = shards[(int) (location >>> 32)].account((int) location - 1);
+                if (acc != null)
+                    action.accept(acc);
+            }
+            fresh.sort(Comparator.comparingInt(entry -> entry.id));
+            for (Entry entry : fresh)
+                action.accept(new Account(entry.id, entry.name, entry.address, entry.balance));
+        } finally { unlockEveryStripe(); }
+    }
+
+    @Override
+    public long totalBalance() {
+        // Declare variables
+        long total = 0;
+
+        // One shard at a time, so sessions on other shards carry on
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            stripe.lock.lock();
+            try {
+                writeBackAll(stripe);
+                for (int r = 0; r < stripe.indexed; r++)
+                    if (!shards[s].isClosed(r))
+                        total += shards[s].balance(r);
+                for (Entry entry : stripe.added.values())
+                    total += entry.balance;
+            } finally { stripe.lock.unlock(); }
+        }
+
+        return total;
+    }
+
+    @Override
+    public int countNegative() {
+        // Declare variables
+        int count = 0;
+
+        // One shard at a time, so sessions on other shards carry on
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            stripe.lock.lock();
+            try {
+                writeBackAll(stripe);
+                for (int r = 0; r < stripe.indexed; r++)
+                    if (!shards[s].isClosed(r) && shards[s].balance(r) < 0)
+                        count++;
+                for (Entry entry : stripe.added.values())
+                    if (entry.balance < 0)
+                        count++;
+            } finally { stripe.lock.unlock(); }
+        }
+
+        return count;
+    }
+
+    /**
+     * Saves everything changed since the store was opened. Changed
+     * balances are written back in place, and accounts opened since
+     * the last save are added to the end of their shards, so no
+     * record already on disk ever moves. Each shard is written while
+     * holding only its own stripe's lock, and every lock is only held
+     * to add the new records to the index.
+     */
+    synchronized void flush() throws IOException {
+        // Declare variables
+        long start = System.nanoTime();
+        List<Account> accounts = new ArrayList<>();
+        List<Entry> appended = new ArrayList<>();
+        List<Integer> shardOf = new ArrayList<>(), recordOf = new ArrayList<>();
+
+        if (broken)
+            throw new IOException("An earlier save stopped halfway, restart to recover from the journal");
+
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            stripe.lock.lock();
+            try {
+                writeBackAll(stripe);
+            } finally { stripe.lock.unlock(); }
+            shards[s].force();
+        }
+
+        if (added.get() > 0) {
+            // Anything from here on can leave the index and the count
+            // behind the shards
+            uncount();
+            broken = true;
+            index.invalidate();
+            for (int s = 0; s < stripes.length; s++) {
+                Stripe stripe = stripes[s];
+                stripe.lock.lock();
+                try {
+                    if (stripe.added.isEmpty())
+                        continue;
+                    List<Account> shard = new ArrayList<>(stripe.added.size());
+                    for (Entry entry : stripe.added.values()) {
+                        shard.add(new Account(entry.id, entry.name, entry.address, entry.balance));
+                        appended.add(entry);
+                    }
+                    Path path = ShardStorage.shardFile(dir, s).toPath();
+                    int first = Snapshot.append(path, shard, maxID.get());
+                    shards[s].close();
+                    shards[s] = new Snapshot.Table(path, true);
+                    for (int i = 0; i < shard.size(); i++) {
+                        shardOf.add(s);
+                        recordOf.add(first + i);
+                    }
+                    accounts.addAll(shard);
+                } finally { stripe.lock.unlock(); }
+            }
+            handOver(accounts, appended, shardOf, recordOf);
+            broken = false;
+        }
+
+        writeCount();
+        FLUSH_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Adds records just written to the index, and moves their
+     * accounts out of memory so they get paged like everything else.
+     * Accounts changed since they were written are written back or
+     * closed again in place.
+     */
+    private void handOver(List<Account> accounts, List<Entry> appended,
+                          List<Integer> shardOf, List<Integer> recordOf) throws IOException {
+        // Declare variables
+        int[] shardArray = shardOf.stream().mapToInt(Integer::intValue).toArray();
+        int[] recordArray = recordOf.stream().mapToInt(Integer::intValue).toArray();
+
+        layout.writeLock().lock();
+        lockEveryStripe();
+        try {
+            index.append(accounts, shardArray, recordArray, generation + 1);
+            generation++;
+
+            for (int i = 0; i < appended.size(); i++) {
+                Entry entry = appended.get(i);
+                Stripe stripe = stripes[shardArray[i]];
+                if (stripe.added.get(entry.id) != entry) {
+                    // Closed or renamed since, so its record is already out of date
+                    shards[shardArray[i]].markClosed(recordArray[i]);
+                    continue;
+                }
+                stripe.added.remove(entry.id);
+                addedNames.remove(entry.id, entry.name);
+                Entry moved = new Entry(entry.id, shardArray[i], recordArray[i],
+                        entry.name, entry.address, entry.balance);
+                moved.dirty = true;
+                stripe.cache.put(entry.id, moved);
+                added.decrementAndGet();
+                saved.incrementAndGet();
+            }
+            for (int s = 0; s < stripes.length; s++)
+                stripes[s].indexed = shards[s].count();
+        } finally {
+            unlockEveryStripe();
+            layout.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites every shard where closed records make up at least the
+     * given share, leaving them out. Records move, so the index is
+     * built again afterwards; sessions wait on the store meanwhile,
+     * which is why it's only done once enough records are closed.
+     * Accounts never move in memory, so no exclusive work is needed.
+     */
+    @Override
+    public synchronized boolean compact(double ratio, Consumer<Runnable> exclusive) throws IOException {
+        // Declare variables
+        List<Integer> sparse = new ArrayList<>();
+        long start = System.nanoTime();
+
+        if (broken)
+            throw new IOException("An earlier save stopped halfway, restart to recover from the journal");
+
+        // Checking one shard at a time keeps sessions going when
+        // there's nothing to do, and records only ever get closed, so
+        // a shard found sparse stays sparse
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe stripe = stripes[s];
+            stripe.lock.lock();
+            try {
+                int closed = stripe.indexed - liveRecords(shards[s], stripe.indexed);
+                if (closed > 0 && closed >= ratio * stripe.indexed)
+                    sparse.add(s);
+            } finally { stripe.lock.unlock(); }
+        }
+        if (sparse.isEmpty())
+            return false;
+
+        layout.writeLock().lock();
+        lockEveryStripe();
+        try {
+            // Anything from here on can leave the index behind the shards
+            for (Stripe stripe : stripes)
+                writeBackAll(stripe);
+            broken = true;
+            index.invalidate();
+            for (int s : sparse) {
+                List<Account> accounts = new ArrayList<>(liveRecords(shards[s], shards[s].count()));
+                for (int r = 0; r < shards[s].count(); r++) {
+                    Account acc = shards[s].account(r);
+                    if (acc != null)
+                        accounts.add(acc);
+                }
+                Path path = ShardStorage.shardFile(dir, s).toPath();
+                Snapshot.write(accounts, maxID.get(), path);
+                shards[s].close();
+                shards[s] = new Snapshot.Table(path, true);
+            }
+
+            // Every cached account points at where its record used to be
+            for (int s = 0; s < stripes.length; s++) {
+                stripes[s].cache.clear();
+                stripes[s].indexed = shards[s].count();
+            }
+            index = PagedIndex.open(dir, shards, generation + 1);
+            generation++;
+            broken = false;
+        } finally {
+            unlockEveryStripe();
+            layout.writeLock().unlock();
+        }
+
+        writeCount();
+        COMPACT_LATENCY.recordSince(start);
+        return true;
+    }
+
+    /**
+     * Takes every stripe lock, lowest stripe first, so no session can
+     * touch the store until {@link #unlockEveryStripe} is called.
+     */
+    private void lockEveryStripe() {
+        for (Stripe stripe : stripes)
+            stripe.lock.lock();
+    }
+
+    private void unlockEveryStripe() {
+        for (int s = stripes.length - 1; s >= 0; s--)
+            stripes[s].lock.unlock();
+    }
+
+    /**
+     * Closes a record in place, first marking the manifest as
+     * uncounted, since the record may reach the disk before the next
+     * save does. Must be called while holding the record's stripe lock.
+     */
+    private void closeRecord(int shard, int record) {
+        synchronized (manifestLock) {
+            try {
+                uncount();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not mark the data directory as changed", e);
+            }
+            shards[shard].markClosed(record);
+            saved.decrementAndGet();
+        }
+    }
+
+    /**
+     * Marks the manifest as uncounted, if it isn't already, so that a
+     * crash before the next save has the accounts counted on start.
+     */
+    private void uncount() throws IOException {
+        synchronized (manifestLock) {
+            if (!counted)
+                return;
+            ShardStorage.writeManifest(dir, shards.length, ShardStorage.UNCOUNTED, maxID.get(), generation);
+            counted = false;
+        }
+    }
+
+    /**
+     * Writes the number of open accounts to the manifest, once every
+     * record closed so far is on disk.
+     */
+    private void writeCount() throws IOException {
+        synchronized (manifestLock) {
+            for (Snapshot.Table shard : shards)
+                shard.force();
+            ShardStorage.writeManifest(dir, shards.length, saved.get(), maxID.get(), generation);
+            counted = true;
+        }
+    }
+
+    private static int liveRecords(Snapshot.Table shard, int count) {
+        int live = 0;
+        for (int r = 0; r < count; r++)
+            if (!shard.isClosed(r))
+                live++;
+        return live;
+    }
+
+    private Stripe stripeOf(int id) {
+        return stripes[ShardedAccountStore.shardOf(id, shardBits)];
+    }
+
+    /**
+     * Provides an account, paging it in from its shard if it isn't
+     * in memory already. Must be called while holding its stripe lock.
+     * @return The account, or null if no open account has this ID
+     */
+    private Entry entry(Stripe stripe, int id) {
+        Entry entry = stripe.added.get(id);
+        if (entry == null)
+            entry = stripe.cache.get(id);
+        if (entry != null)
+            return entry;
+
+        long location = index.location(id);
+        if (location == 0)
+            return null;
+        long start = System.nanoTime();
+        int shard = (int) (location >>> 32), record = (int) location - 1;
+        Account acc = shards[shard].account(record);
+        if (acc == null)
+            return null;
+
+        entry = new Entry(id, shard, record, acc.getName(), acc.getAddress(), acc.getBalance());
+        stripe.cache.put(id, entry);
+        PAGE_IN_LATENCY.recordSince(start);
+        return entry;
+    }
+
+    private Entry existing(Stripe stripe, int id) {
+        Entry entry = entry(stripe, id);
+        if (entry == null)
+            throw new NoSuchElementException("No account with ID " + id);
+        return entry;
+    }
+
+    private void writeBack(Entry entry) {
+        if (!entry.dirty)
+            return;
+        shards[entry.shard].setBalance(entry.record, entry.balance);
+        entry.dirty = false;
+    }
+
+    private void writeBackAll(Stripe stripe) {
+        for (Entry entry : stripe.cache.values())
+            writeBack(entry);
+    }
+
+    /**
+     * Name lookups that search the on-disk index, then the accounts
+     * opened since the last save. The journal opens accounts without
+     * going through the ledger, so the store keeps track of new names
+     * itself and ignores what the ledger tells it.
+     */
+    private final class PagedNames implements NameLookup {
+        @Override
+        public void add(int id, String name) {}
+
+        @Override
+        public void remove(int id, String name) {}
+
+        @Override
+        public int[] find(String name) {
+            layout.readLock().lock();
+            try {
+                int[] saved = index.find(name), fresh = addedNames.find(name);
+                int[] result = Arrays.copyOf(saved, saved.length + fresh.length);
+                System.arraycopy(fresh, 0, result, saved.length, fresh.length);
+                return result;
+            } finally { layout.readLock().unlock(); }
+        }
+
+        @Override
+        public List<Integer> findPrefix(String prefix, int limit) {
+            layout.readLock().lock();
+            try {
+                // Every run is sorted on its own, so merge them by name
+                List<PagedIndex.Match> matches = index.findPrefix(prefix, limit);
+                for (int id : addedNames.findPrefix(prefix, limit)) {
+                    String name = addedName(id);
+                    if (name != null)
+                        matches.add(new PagedIndex.Match(NameIndex.fold(name), id));
+                }
+                matches.sort(Comparator.comparing(PagedIndex.Match::name));
+
+                List<Integer> result = new ArrayList<>(Math.min(limit, matches.size()));
+                for (int i = 0; i < matches.size() && i < limit; i++)
+                    result.add(matches.get(i).id());
+                return result;
+            } finally { layout.readLock().unlock(); }
+        }
+
+        /**
+         * Only names opened since the last save are searched, as the
+         * on-disk index has no trigrams, and reading every saved name
+         * to build them would undo the point of loading lazily.
+         */
+        @Override
+        public List<Integer> findSimilar(String name, int maxDistance, int limit) {
+            return addedNames.findSimilar(name, maxDistance, limit);
+        }
+
+        /**
+         * @return The name of an account opened since the last save,
+         *         or null if it was closed or saved meanwhile
+         */
+        private String addedName(int id) {
+            Stripe stripe = stripeOf(id);
+            stripe.lock.lock();
+            try {
+                Entry entry = stripe.added.get(id);
+                return entry == null ? null : entry.name;
+            } finally { stripe.lock.unlock(); }
+        }
+    }
+}
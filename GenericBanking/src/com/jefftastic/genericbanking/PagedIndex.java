@@ -0,0 +1,444 @@
+package com.jefftastic.genericbanking;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ *  On-disk index over the shards of a data directory, made of:<br>
+ *  - An ID table, giving the shard and record of every account ID<br>
+ *  - One or more name runs, each listing records sorted by case-folded name<br>
+ *  Both are memory-mapped, so opening the index costs next to nothing
+ *  and the heap doesn't grow with the number of accounts. The index
+ *  is built from the shards the first time it's needed, and again
+ *  whenever the shards were rewritten under it, which the generation
+ *  in the data directory manifest tells us. Accounts added later are
+ *  written as extra, smaller runs instead of rebuilding everything.
+ * @see PagedAccountStore
+ */
+
+class PagedIndex {
+    // Declare constants
+    static final String IDS = "ids.idx";
+    private static final int MAGIC = 0x4E534249;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 16;
+    private static final int MAX_RUNS = 8;
+    private static final long INVALID = -1;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final LatencyHistogram BUILD_LATENCY = Metrics.histogram("paged.index.build");
+
+    /**
+     * A name run, which is a sorted table of (key, shard, record)
+     * entries. The key holds the first four characters of the folded
+     * name, so most comparisons never have to read the name itself.
+     */
+    private record Run(Snapshot.Region entries, int count) {}
+
+    /**
+     * An account found by a prefix search.
+     * @param name The case-folded name of the account
+     * @param id The ID of the account
+     */
+    record Match(String name, int id) {}
+
+    // Declare class variables
+    private final File dir;
+    private final Snapshot.Table[] shards;
+    private final List<Run> runs = new ArrayList<>();
+    private Snapshot.Region idTable;
+    private int maxID;
+
+    private PagedIndex(File dir, Snapshot.Table[] shards) {
+        this.dir = dir;
+        this.shards = shards;
+    }
+
+    /**
+     * Opens the index of a data directory, building it first if it
+     * is missing or was built for other shards.
+     * @param dir The data directory
+     * @param shards Every shard, which the index reads names from
+     * @param generation The generation of the shards, from the manifest
+     * @return The opened index
+     */
+    static PagedIndex open(File dir, Snapshot.Table[] shards, long generation) throws IOException {
+        PagedIndex index = new PagedIndex(dir, shards);
+        if (!index.load(generation)) {
+            build(dir, shards, generation);
+            if (!index.load(generation))
+                throw new IOException("Could not build the account index in " + dir);
+        }
+        return index;
+    }
+
+    /**
+     * @param id The ID of an account
+     * @return The shard of the account in the high half and its record
+     *         plus one in the low half, or 0 if the ID was never saved
+     */
+    long location(int id) {
+        return id <= 0 || id > maxID ? 0 : idTable.getLong((long) id * Long.BYTES);
+    }
+
+    /**
+     * @return The highest ID ever saved, including closed accounts
+     */
+    int maxID() { return maxID; }
+
+    /**
+     * Provides the ID of every open, saved account whose name matches
+     * the provided name, ignoring case.
+     * @param name The name that is being searched for
+     * @return A new array of matching IDs
+     */
+    int[] find(String name) {
+        // Declare variables
+        String folded = NameIndex.fold(name);
+        long key = key(folded);
+        int[] result = new int[0];
+        int found = 0;
+
+        for (Run run : runs) {
+            for (int i = lowerBound(run, key, folded); i < run.count() && compare(run, i, key, folded) == 0; i++) {
+                long entry = (long) i * ENTRY_SIZE;
+                Snapshot.Table shard = shards[run.entries().getInt(entry + 8)];
+                int record = run.entries().getInt(entry + 12);
+                if (shard.isClosed(record))
+                    continue;
+                if (found == result.length)
+                    result = Arrays.copyOf(result, Math.max(4, found * 2));
+                result[found++] = shard.id(record);
+            }
+        }
+
+        return Arrays.copyOf(result, found);
+    }
+
+    /**
+     * Provides open, saved accounts whose names start with the provided
+     * prefix, ignoring case. Each run is searched separately, so the
+     * matches are not in any particular order.
+     * @param prefix The start of the name that is being searched for
+     * @param limit The maximum number of accounts to take from each run
+     * @return A new list of matches
+     */
+    List<Match> findPrefix(String prefix, int limit) {
+        // Declare variables
+        String folded = NameIndex.fold(prefix);
+        long key = key(folded);
+        List<Match> result = new ArrayList<>();
+
+        for (Run run : runs) {
+            int taken = 0;
+            for (int i = lowerBound(run, key, folded); i < run.count() && taken < limit; i++) {
+                String name = nameAt(run, i);
+                if (!name.startsWith(folded))
+                    break;
+                long entry = (long) i * ENTRY_SIZE;
+                Snapshot.Table shard = shards[run.entries().getInt(entry + 8)];
+                int record = run.entries().getInt(entry + 12);
+                if (shard.isClosed(record))
+                    continue;
+                result.add(new Match(name, shard.id(record)));
+                taken++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Marks the index as out of date, so it is built again on the
+     * next start unless {@link #append} finishes first. This is done
+     * before records are added to the shards, so a crash halfway
+     * can't leave records the index doesn't know about.
+     */
+    void invalidate() throws IOException {
+        try (FileChannel fc = FileChannel.open(new File(dir, IDS).toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putLong(0, INVALID);
+            fc.write(buf, 8);
+            fc.force(true);
+        }
+    }
+
+    /**
+     * Adds accounts that were just written to the shards, as a new
+     * name run and new rows in the ID table. Once there would be too
+     * many runs to search, the index is built again instead.
+     * @param accounts The accounts that were written
+     * @param shardOf The shard each account was written to
+     * @param recordOf The record each account was written to
+     * @param generation The new generation of the shards
+     */
+    void append(List<Account> accounts, int[] shardOf, int[] recordOf, long generation) throws IOException {
+        // Declare variables
+        int count = accounts.size();
+        int newMaxID = maxID;
+        String[] names = new String[count];
+        long[] locations = new long[count];
+        Path ids = new File(dir, IDS).toPath();
+
+        if (runs.size() >= MAX_RUNS) {
+            build(dir, shards, generation);
+            if (!load(generation))
+                throw new IOException("Could not build the account index in " + dir);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            names[i] = NameIndex.fold(accounts.get(i).getName());
+            locations[i] = location(shardOf[i], recordOf[i]);
+            newMaxID = Math.max(newMaxID, accounts.get(i).getID());
+        }
+        writeRun(runFile(dir, runs.size()).toPath(), names, locations, count);
+
+        try (FileChannel fc = FileChannel.open(ids, StandardOpenOption.WRITE)) {
+            // Grow the ID table, then fill in every new row
+            ByteBuffer buf = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            long[] rows = new long[newMaxID - maxID];
+            for (int i = 0; i < count; i++) {
+                int id = accounts.get(i).getID();
+                if (id > maxID)
+                    rows[id - maxID - 1] = locations[i];
+                else {
+                    buf.putLong(0, locations[i]);
+                    fc.write(buf.clear(), HEADER_SIZE + (long) id * Long.BYTES);
+                }
+            }
+            fc.position(HEADER_SIZE + (maxID + 1L) * Long.BYTES);
+            writeLongs(fc, rows);
+
+            // The header goes last, it's what makes the index valid again
+            writeHeader(fc, generation, newMaxID, runs.size() + 1);
+            fc.force(true);
+        }
+
+        if (!load(generation))
+            throw new IOException("Could not reopen the account index in " + dir);
+    }
+
+    /**
+     * Builds the index from scratch, replacing any index already there.
+     * @param dir The data directory
+     * @param shards Every shard of the data directory
+     * @param generation The generation of the shards, from the manifest
+     */
+    static void build(File dir, Snapshot.Table[] shards, long generation) throws IOException {
+        // Declare variables
+        long start = System.nanoTime();
+        long total = 0;
+        int open = 0, maxID = 0;
+
+        for (Snapshot.Table shard : shards)
+            total += shard.count();
+        if (total > Integer.MAX_VALUE)
+            throw new IOException("Too many records to index in " + dir);
+        String[] names = new String[(int) total];
+        long[] locations = new long[(int) total];
+
+        // Only open accounts can be found by name, but closed ones
+        // still hold on to their IDs
+        for (int s = 0; s < shards.length; s++) {
+            for (int r = 0; r < shards[s].count(); r++) {
+                maxID = Math.max(maxID, shards[s].id(r));
+                if (shards[s].isClosed(r))
+                    continue;
+                names[open] = NameIndex.fold(shards[s].name(r));
+                locations[open++] = location(s, r);
+            }
+        }
+        long[] rows = new long[maxID];
+        for (int s = 0; s < shards.length; s++)
+            for (int r = 0; r < shards[s].count(); r++)
+                rows[shards[s].id(r) - 1] = location(s, r);
+
+        writeRun(runFile(dir, 0).toPath(), names, locations, open);
+        Path target = new File(dir, IDS).toPath().toAbsolutePath();
+        Path temp = target.resolveSibling(IDS + ".tmp");
+        try (FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // Row 0 is never used, IDs start from 1
+            fc.position(HEADER_SIZE);
+            writeLongs(fc, new long[] {0});
+            writeLongs(fc, rows);
+            writeHeader(fc, generation, maxID, 1);
+            fc.force(true);
+        }
+        Database.replaceFile(temp, target);
+
+        // Runs from the old index are part of this one now
+        for (int i = 1; runFile(dir, i).exists(); i++)
+            Files.delete(runFile(dir, i).toPath());
+
+        BUILD_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Maps the index, if it matches the given generation.
+     * @return Whether the index could be used
+     */
+    private boolean load(long generation) throws IOException {
+        File file = new File(dir, IDS);
+        if (!file.isFile())
+            return false;
+
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (fc.read(header, 0) != HEADER_SIZE || header.getInt(0) != MAGIC
+                    || header.getInt(4) != VERSION || header.getLong(8) != generation)
+                return false;
+            int newMaxID = header.getInt(16), runCount = header.getInt(20);
+            if (runCount > MAX_RUNS || fc.size() < HEADER_SIZE + (newMaxID + 1L) * Long.BYTES)
+                return false;
+
+            List<Run> mapped = new ArrayList<>(runCount);
+            for (int i = 0; i < runCount; i++) {
+                Run run = mapRun(runFile(dir, i));
+                if (run == null)
+                    return false;
+                mapped.add(run);
+            }
+
+            idTable = new Snapshot.Region(fc, HEADER_SIZE, (newMaxID + 1L) * Long.BYTES);
+            maxID = newMaxID;
+            runs.clear();
+            runs.addAll(mapped);
+            return true;
+        }
+    }
+
+    private static Run mapRun(File file) throws IOException {
+        if (!file.isFile())
+            return null;
+
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (fc.read(header, 0) != HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                return null;
+            int count = header.getInt(8);
+            if (fc.size() < HEADER_SIZE + (long) count * ENTRY_SIZE)
+                return null;
+            return new Run(new Snapshot.Region(fc, HEADER_SIZE, (long) count * ENTRY_SIZE), count);
+        }
+    }
+
+    /**
+     * Writes a name run, sorted by name, replacing the file atomically.
+     */
+    private static void writeRun(Path path, String[] names, long[] locations, int count) throws IOException {
+        // Declare variables
+        Path target = path.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int[] order = sortByName(names, count);
+
+        try (FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            buf.putInt(MAGIC).putInt(VERSION).putInt(count).position(HEADER_SIZE);
+            for (int i : order) {
+                if (buf.remaining() < ENTRY_SIZE)
+                    Snapshot.drain(fc, buf);
+                buf.putLong(key(names[i])).putInt((int) (locations[i] >>> 32)).putInt((int) locations[i] - 1);
+            }
+            Snapshot.drain(fc, buf);
+            fc.force(true);
+        }
+        Database.replaceFile(temp, target);
+    }
+
+    private static void writeHeader(FileChannel fc, long generation, int maxID, int runs) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).putInt(maxID).putInt(runs).clear();
+        while (header.hasRemaining())
+            fc.write(header, header.position());
+    }
+
+    private static void writeLongs(FileChannel fc, long[] values) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (long value : values) {
+            if (!buf.hasRemaining())
+                Snapshot.drain(fc, buf);
+            buf.putLong(value);
+        }
+        Snapshot.drain(fc, buf);
+    }
+
+    /**
+     * Sorts positions by the names they point at, using a bottom-up
+     * merge sort so equal names stay in record order.
+     */
+    private static int[] sortByName(String[] names, int count) {
+        // Declare variables
+        int[] order = new int[count], scratch = new int[count];
+
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        for (int width = 1; width < count; width *= 2) {
+            for (int lo = 0; lo < count; lo += 2 * width) {
+                int mid = Math.min(lo + width, count), hi = Math.min(lo + 2 * width, count);
+                for (int i = lo, a = lo, b = mid; i < hi; i++)
+                    scratch[i] = b >= hi || (a < mid && names[order[a]].compareTo(names[order[b]]) <= 0)
+                            ? order[a++] : order[b++];
+            }
+            int[] swap = order;
+            order = scratch;
+            scratch = swap;
+        }
+
+        return order;
+    }
+
+    /**
+     * Finds the first entry of a run whose name is not below the given one.
+     */
+    private int lowerBound(Run run, long key, String folded) {
+        int lo = 0, hi = run.count();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(run, mid, key, folded) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private int compare(Run run, int i, long key, String folded) {
+        // Keys order names the same way their characters do, so
+        // the name only has to be read when the keys are equal
+        int byKey = Long.compareUnsigned(run.entries().getLong((long) i * ENTRY_SIZE), key);
+        return byKey != 0 ? byKey : nameAt(run, i).compareTo(folded);
+    }
+
+    private String nameAt(Run run, int i) {
+        long entry = (long) i * ENTRY_SIZE;
+        return NameIndex.fold(shards[run.entries().getInt(entry + 8)].name(run.entries().getInt(entry + 12)));
+    }
+
+    /**
+     * Packs the first four characters of a folded name into a key,
+     * padding shorter names with zeros.
+     */
+    private static long key(String folded) {
+        long key = 0;
+        for (int i = 0; i < 4; i++)
+            key = (key << 16) | (i < folded.length() ? folded.charAt(i) : 0);
+        return key;
+    }
+
+    private static long location(int shard, int record) {
+        return ((long) shard << 32) | (record + 1L);
+    }
+
+    private static File runFile(File dir, int run) {
+        return new File(dir, "names-%03d.idx".formatted(run));
+    }
+}
@@ -0,0 +1,130 @@
+package com.jefftastic.genericbanking;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ *  Prints reports about the accounts in a ledger, being one of:<br>
+ *  - overdrawn [limit]: accounts with a negative balance, most overdrawn first<br>
+ *  - top [limit]: accounts with the highest balances<br>
+ *  - range low high [limit]: accounts with a balance in dollars between low and high<br>
+ *  - address address: accounts at an address, ignoring case<br>
+ *  - totals: the bank-wide totals<br>
+ *  - verify: the bank-wide totals, cross-checked against every account<br>
+ *  Reports go through the ledger's secondary indexes and totals, so
+ *  apart from verify, they take time in the number of accounts
+ *  printed rather than the number of accounts in the ledger.
+ * @see Ledger
+ */
+
+public class Reports {
+    // Declare constants
+    public static final int DEFAULT_LIMIT = 100;
+    private static final String USAGE = """
+            Reports:
+              overdrawn [limit]        Accounts with a negative balance
+              top [limit]              Accounts with the highest balances
+              range low high [limit]   Accounts with a balance between low and high dollars
+              address address          Accounts at an address
+              totals                   Bank-wide totals
+              verify                   Bank-wide totals, cross-checked against every account
+            """;
+
+    /**
+     * Runs a report and prints it.
+     * @param ledger The ledger to report on
+     * @param args The name of the report followed by its arguments
+     * @param out Stream to print the report to
+     * @return Whether the report was understood and printed
+     */
+    public static boolean run(Ledger ledger, String[] args, PrintStream out) {
+        // Declare variables
+        List<Account> accounts;
+        long start = System.nanoTime();
+
+        try {
+            switch (args.length == 0 ? "" : args[0]) {
+                case "overdrawn":
+                    accounts = ledger.findOverdrawn(limit(args, 1));
+                    break;
+                case "top":
+                    accounts = ledger.findTopBalances(limit(args, 1));
+                    break;
+                case "range":
+                    if (args.length < 3) {
+                        out.print(USAGE);
+                        return false;
+                    }
+                    accounts = ledger.findBalanceRange(Money.parse(args[1]), Money.parse(args[2]), limit(args, 3));
+                    break;
+                case "address":
+                    if (args.length < 2) {
+                        out.print(USAGE);
+                        return false;
+                    }
+                    accounts = ledger.findAddress(String.join(" ", List.of(args).subList(1, args.length)));
+                    break;
+                case "totals":
+                    printTotals(ledger.getTotals(), out);
+                    out.printf("Read in %.2f ms.\n", (System.nanoTime() - start) / 1e6);
+                    return true;
+                case "verify":
+                    Ledger.TotalsCheck check = ledger.verifyTotals();
+                    printTotals(check.maintained(), out);
+                    if (check.matches())
+                        out.println("Every total matches a scan of every account.");
+                    else {
+                        out.println("\nTotals DON'T match a scan of every account, which found:");
+                        printTotals(check.scanned(), out);
+                    }
+                    out.printf("Checked in %.2f ms.\n", (System.nanoTime() - start) / 1e6);
+                    return check.matches();
+                default:
+                    out.print(USAGE);
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            out.println("Amounts and limits have to be numbers, e.g. -12.50 or 100.");
+            return false;
+        }
+
+        print(accounts, out);
+        out.printf("%d accounts found in %.2f ms.\n", accounts.size(), (System.nanoTime() - start) / 1e6);
+        return true;
+    }
+
+    /**
+     * Prints accounts as a table.
+     * @param accounts The accounts to print
+     * @param out Stream to print to
+     */
+    public static void print(List<Account> accounts, PrintStream out) {
+        out.printf("%10s  %-30s %-30s %16s\n", "Account #", "Name", "Address", "Funds");
+        for (Account acc : accounts)
+            out.printf("%10d  %-30s %-30s %16s\n",
+                    acc.getID(), acc.getName(), acc.getAddress(), Money.format(acc.getBalance()));
+    }
+
+    /**
+     * Prints bank-wide totals.
+     * @param totals The totals to print
+     * @param out Stream to print to
+     */
+    public static void printTotals(Ledger.Totals totals, PrintStream out) {
+        out.printf("""
+                Accounts            %16d
+                Total funds         %16s
+                Overdrawn accounts  %16d
+                Overdraft exposure  %16s
+                """,
+                totals.accounts(),
+                Money.format(totals.balance()),
+                totals.negative(),
+                Money.format(totals.overdraft())
+        );
+    }
+
+    private static int limit(String[] args, int at) {
+        return args.length > at ? Integer.parseInt(args[at]) : DEFAULT_LIMIT;
+    }
+}
@@ -0,0 +1,400 @@
+package com.jefftastic.genericbanking;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.LongSupplier;
+
+/**
+ *  Reads and writes a data directory holding:<br>
+ *  - One snapshot file per shard, each holding the accounts whose
+ *    IDs hash to that shard<br>
+ *  - A manifest naming the format version, the number of shards, the
+ *    number of open accounts, the highest account ID ever handed out
+ *    and a generation that goes up whenever records move around<br>
+ *  Shards are read and written in parallel on the common fork-join
+ *  pool, and only shards that changed since they were last saved
+ *  are written again. Each shard is replaced atomically, but a crash
+ *  halfway through a save can leave some shards older than others;
+ *  the journal is only emptied once every shard is saved, so
+ *  replaying it brings them all up to date again. Shards can also be
+ *  written one at a time at a limited rate, so that saving in the
+ *  background doesn't take all of the disk away from the journal.
+ * @see ShardedAccountStore
+ * @see Snapshot
+ */
+
+class ShardStorage {
+    // Declare constants
+    static final String MANIFEST = "manifest";
+    static final int FORMAT_VERSION = 1;
+    // Written as the number of accounts while shards are changed in place
+    static final int UNCOUNTED = -1;
+    private static final LatencyHistogram LOAD_LATENCY = Metrics.histogram("shards.load");
+    private static final LatencyHistogram SAVE_LATENCY = Metrics.histogram("shards.save");
+
+    /**
+     * Reads every shard in a data directory.
+     * @param dir The data directory
+     * @return A store holding every account, with no shard marked as changed
+     */
+    static ShardedAccountStore load(File dir) throws IOException {
+        // Declare variables
+        long start = System.nanoTime();
+        Properties manifest = readManifest(dir);
+        int shards = parseInt(manifest, "shards");
+        ShardedAccountStore store = new ShardedAccountStore(new ColumnarAccountStore(), shards);
+        List<ForkJoinTask<Account[]>> tasks = new ArrayList<>(shards);
+
+        if (parseInt(manifest, "version") != FORMAT_VERSION)
+            throw new IOException("Unsupported data directory version " + manifest.getProperty("version"));
+
+        // Decode every shard in parallel...
+        for (int i = 0; i < shards; i++) {
+            File file = shardFile(dir, i);
+            tasks.add(ForkJoinPool.commonPool().submit(ForkJoinTask.adapt(() -> Snapshot.readAll(file))));
+        }
+
+        // ...then add them in shard order
+        for (ForkJoinTask<Account[]> task : tasks)
+            for (Account acc : join(task))
+                if (acc != null)
+                    store.put(acc);
+
+        // Everything we just read is already on disk
+        for (int i = 0; i < shards; i++)
+            store.takeDirty(i);
+        store.raiseMaxID(maxID(manifest));
+
+        LOAD_LATENCY.recordSince(start);
+        return store;
+    }
+
+    /**
+     * Saves accounts to a data directory. A sharded store only has
+     * its changed shards written, while any other store has all of
+     * its shards written every time, so stores that are saved more
+     * than once are split with {@link Database#shardAccountStore}.
+     * @param store The accounts to save
+     * @param dir The data directory, which is created if needed
+     * @param defaultShards The number of shards to use if the store isn't sharded
+     */
+    static void save(AccountStore store, File dir, int defaultShards) throws IOException {
+        // Paged stores write their changes back where they came from
+        if (store instanceof PagedAccountStore paged) {
+            paged.flush();
+            return;
+        }
+
+        // Declare variables
+        ShardedAccountStore sharded = store instanceof ShardedAccountStore s
+                ? s : new ShardedAccountStore(store, defaultShards);
+        boolean everything = sharded != store || !exists(dir);
+        boolean[] changed = new boolean[sharded.shardCount()];
+
+        // Only shards that changed are written
+        for (int i = 0; i < changed.length; i++)
+            changed[i] = sharded.takeDirty(i) || everything;
+        write(store, sharded, changed, dir, () -> 0);
+    }
+
+    /**
+     * Saves the accounts of a ledger to a data directory while
+     * sessions carry on. The accounts are written from a view of the
+     * ledger, so sessions only wait for the view to be taken. Paged
+     * stores write their changes back where they came from instead.
+     * @param ledger The ledger whose accounts to save
+     * @param dir The data directory, which is created if needed
+     * @param defaultShards The number of shards to use if the store isn't sharded
+     * @param bytesPerSecond The most to write per second on average, read before each shard
+     */
+    static void checkpoint(Ledger ledger, File dir, int defaultShards, LongSupplier bytesPerSecond)
+            throws IOException {
+        // Paged stores write their changes back where they came from
+        if (ledger.getStore() instanceof PagedAccountStore paged) {
+            paged.flush();
+            return;
+        }
+
+        // Declare variables
+        AccountStore store = ledger.getStore();
+        ShardedAccountStore sharded = store instanceof ShardedAccountStore s ? s : null;
+        boolean everything = sharded == null || !exists(dir);
+        boolean[] changed = new boolean[sharded != null ? sharded.shardCount() : defaultShards];
+
+        // Taking what changed before the view only means some shards
+        // may be written twice, never that a change is left out
+        for (int i = 0; i < changed.length; i++)
+            changed[i] = (sharded != null && sharded.takeDirty(i)) || everything;
+        try (AccountView view = ledger.snapshot()) {
+            write(view, sharded != null ? sharded : new ShardedAccountStore(view, defaultShards),
+                    changed, dir, bytesPerSecond);
+        }
+    }
+
+    /**
+     * Writes some shards of a data directory, taking the accounts
+     * from a store or from a view of it. Shards that couldn't be
+     * written are marked as changed again, so they're tried again
+     * on the next save.
+     * @param source The accounts to write
+     * @param sharded The sharded store the accounts belong to
+     * @param changed Which shards to write
+     * @param dir The data directory, which is created if needed
+     * @param bytesPerSecond The most to write per second on average, writing
+     *                       one shard at a time, or 0 to write every shard at once
+     */
+    static void write(AccountStore source, ShardedAccountStore sharded, boolean[] changed,
+                      File dir, LongSupplier bytesPerSecond) throws IOException {
+        // Declare variables
+        int shards = changed.length;
+        long generation = exists(dir) ? generation(readManifest(dir)) : 0;
+        IOException failure;
+        long start = System.nanoTime();
+
+        Files.createDirectories(dir.toPath());
+
+        boolean any = false;
+        for (boolean shard : changed)
+            any |= shard;
+        if (!any)
+            return;
+
+        if (bytesPerSecond.getAsLong() > 0)
+            failure = writeThrottled(source, sharded, changed, dir, bytesPerSecond);
+        else
+            failure = writeParallel(source, sharded, changed, dir);
+        if (failure != null)
+            throw failure;
+
+        // Records were rewritten, so anything pointing at them is stale
+        writeManifest(dir, shards, source.size(), source.maxID(), generation + 1);
+        SAVE_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Writes every shard in parallel.
+     * @return The first error, if any shard couldn't be written
+     */
+    private static IOException writeParallel(AccountStore source, ShardedAccountStore sharded,
+                                             boolean[] changed, File dir) {
+        // Declare variables
+        List<List<Account>> accounts = new ArrayList<>(Collections.nCopies(changed.length, null));
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        IOException failure = null;
+
+        // Only shards that are written have their accounts gathered
+        for (int i = 0; i < changed.length; i++)
+            if (changed[i])
+                accounts.set(i, new ArrayList<>());
+        source.forEach(acc -> {
+            List<Account> shard = accounts.get(sharded.shardOf(acc.getID()));
+            if (shard != null)
+                shard.add(acc);
+        });
+
+        for (int i = 0; i < accounts.size(); i++) {
+            List<Account> shard = accounts.get(i);
+            Path path = shardFile(dir, i).toPath();
+            if (shard != null)
+                tasks.add(ForkJoinPool.commonPool().submit(ForkJoinTask.adapt(() -> {
+                    Snapshot.write(shard, source.maxID(), path);
+                    return null;
+                })));
+        }
+        for (int i = 0, t = 0; i < accounts.size(); i++) {
+            if (accounts.get(i) == null)
+                continue;
+            try {
+                join(tasks.get(t++));
+            } catch (IOException e) {
+                // Try this shard again next time
+                sharded.markDirty(i);
+                if (failure == null)
+                    failure = e;
+            }
+        }
+
+        return failure;
+    }
+
+    /**
+     * Writes one shard at a time, waiting after each one for as
+     * long as it takes to keep under the given rate. The rate is
+     * read again after every shard, so it can be lifted halfway.
+     * Only IDs are gathered up front, and each shard's accounts are
+     * read just before it's written, so a background save only ever
+     * holds one shard's worth of accounts.
+     * @return The first error, if any shard couldn't be written
+     */
+    private static IOException writeThrottled(AccountStore source, ShardedAccountStore sharded,
+                                              boolean[] changed, File dir, LongSupplier bytesPerSecond) {
+        // Declare variables
+        int[][] ids = new int[changed.length][];
+        int[] counts = new int[changed.length];
+        IOException failure = null;
+        long written = 0, start = System.nanoTime();
+
+        for (int i = 0; i < changed.length; i++)
+            if (changed[i])
+                ids[i] = new int[64];
+        source.forEach(acc -> {
+            int shard = sharded.shardOf(acc.getID());
+            if (ids[shard] == null)
+                return;
+            if (counts[shard] == ids[shard].length)
+                ids[shard] = Arrays.copyOf(ids[shard], counts[shard] * 2);
+            ids[shard][counts[shard]++] = acc.getID();
+        });
+
+        for (int i = 0; i < changed.length; i++) {
+            if (ids[i] == null)
+                continue;
+            if (failure != null) {
+                sharded.markDirty(i);
+                continue;
+            }
+
+            // Declare variables
+            List<Account> accounts = new ArrayList<>(counts[i]);
+            Path path = shardFile(dir, i).toPath();
+
+            for (int a = 0; a < counts[i]; a++) {
+                Account acc = source.get(ids[i][a]);
+                if (acc != null)
+                    accounts.add(acc);
+            }
+            try {
+                Snapshot.write(accounts, source.maxID(), path);
+                written += Files.size(path);
+            } catch (IOException e) {
+                sharded.markDirty(i);
+                failure = e;
+                continue;
+            }
+
+            long rate = bytesPerSecond.getAsLong();
+            long ahead = rate <= 0 ? 0 : written * 1_000_000_000L / rate - (System.nanoTime() - start);
+            if (ahead > 0) {
+                try { Thread.sleep(ahead / 1_000_000, (int) (ahead % 1_000_000)); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        }
+
+        return failure;
+    }
+
+    /**
+     * @param dir A directory
+     * @return Whether the directory holds a data directory manifest
+     */
+    static boolean exists(File dir) {
+        return new File(dir, MANIFEST).isFile();
+    }
+
+    static File shardFile(File dir, int shard) {
+        return new File(dir, "shard-%03d.snap".formatted(shard));
+    }
+
+    static Properties readManifest(File dir) throws IOException {
+        Properties manifest = new Properties();
+        try (Reader reader = new InputStreamReader(
+                new FileInputStream(new File(dir, MANIFEST)), StandardCharsets.UTF_8)) {
+            manifest.load(reader);
+        }
+        return manifest;
+    }
+
+    /**
+     * Replaces the manifest of a data directory atomically.
+     * @param dir The data directory
+     * @param shards The number of shards
+     * @param accounts The number of open accounts, or {@link #UNCOUNTED}
+     *                 if the shards may be changed without saving it
+     * @param maxID The highest account ID ever handed out
+     * @param generation The generation of the record layout
+     */
+    static void writeManifest(File dir, int shards, int accounts, int maxID, long generation) throws IOException {
+        // Declare variables
+        Path target = new File(dir, MANIFEST).toPath().toAbsolutePath();
+        Path temp = target.resolveSibling(MANIFEST + ".tmp");
+        String manifest = """
+                # GenericBanking data directory
+                version=%d
+                shards=%d
+                accounts=%d
+                maxid=%d
+                generation=%d
+                """.formatted(FORMAT_VERSION, shards, accounts, maxID, generation);
+
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            out.write(manifest.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Database.replaceFile(temp, target);
+    }
+
+    static int parseInt(Properties manifest, String key) throws IOException {
+        try {
+            return Integer.parseInt(manifest.getProperty(key, "").trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Data directory manifest has no valid \"" + key + "\"");
+        }
+    }
+
+    /**
+     * @param manifest A data directory manifest
+     * @return The generation of its record layout, which is 0 for
+     *         directories saved before generations were kept
+     */
+    static long generation(Properties manifest) {
+        try {
+            return Long.parseLong(manifest.getProperty("generation", "0").trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param manifest A data directory manifest
+     * @return The number of open accounts, or {@link #UNCOUNTED} if
+     *         the shards were changed since they were counted
+     */
+    static int accounts(Properties manifest) {
+        try {
+            return Math.max(UNCOUNTED, Integer.parseInt(manifest.getProperty("accounts", "").trim()));
+        } catch (NumberFormatException e) {
+            return UNCOUNTED;
+        }
+    }
+
+    /**
+     * @param manifest A data directory manifest
+     * @return The highest account ID ever handed out, which is 0 for
+     *         directories saved before it was kept
+     */
+    static int maxID(Properties manifest) {
+        try {
+            return Integer.parseInt(manifest.getProperty("maxid", "0").trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Waits for a task, handing back any I/O error it ran into as is.
+     */
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.join();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException io)
+                throw io;
+            throw e;
+        }
+    }
+}
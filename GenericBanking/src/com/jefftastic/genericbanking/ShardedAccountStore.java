@@ -0,0 +1,141 @@
+package com.jefftastic.genericbanking;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ *  Account store that splits accounts into a fixed number of shards
+ *  by hashing their IDs, and remembers which shards have changed
+ *  since they were last saved. The accounts themselves are kept by
+ *  another store; this one only watches what goes through it.
+ * @see ShardStorage
+ * @see AccountStore
+ */
+
+class ShardedAccountStore implements AccountStore {
+    // Declare class variables
+    private final AccountStore accounts;
+    private final int shardBits;
+    private final AtomicIntegerArray dirty;
+
+    /**
+     * ShardedAccountStore constructor.
+     * @param accounts The store to keep the accounts in
+     * @param shards The number of shards, which must be a power of two
+     */
+    ShardedAccountStore(AccountStore accounts, int shards) {
+        if (shards <= 0 || Integer.bitCount(shards) != 1)
+            throw new IllegalArgumentException("The number of shards must be a power of two, got " + shards);
+
+        this.accounts = accounts;
+        this.shardBits = Integer.numberOfTrailingZeros(shards);
+        this.dirty = new AtomicIntegerArray(shards);
+    }
+
+    /**
+     * @return The number of shards
+     */
+    int shardCount() { return dirty.length(); }
+
+    /**
+     * Provides the shard an account belongs in. IDs are handed out in
+     * order, so they are mixed first to spread them out evenly.
+     * @param id The ID of the account
+     * @return The shard, from 0 up to the number of shards
+     */
+    int shardOf(int id) {
+        return shardOf(id, shardBits);
+    }
+
+    /**
+     * Provides the shard an account belongs in.
+     * @param id The ID of the account
+     * @param shardBits The number of shards, as a power of two
+     * @return The shard, from 0 up to the number of shards
+     */
+    static int shardOf(int id, int shardBits) {
+        return shardBits == 0 ? 0 : (id * 0x9E3779B9) >>> (32 - shardBits);
+    }
+
+    /**
+     * Takes note that a shard has been saved, returning whether it
+     * had changed. Anything changed from here on marks it again.
+     * @param shard The shard
+     * @return Whether the shard had changed since it was last saved
+     */
+    boolean takeDirty(int shard) {
+        return dirty.getAndSet(shard, 0) != 0;
+    }
+
+    /**
+     * Marks a shard as changed, e.g. because saving it failed.
+     * @param shard The shard
+     */
+    void markDirty(int shard) {
+        dirty.set(shard, 1);
+    }
+
+    private void touch(int id) {
+        // Reading first keeps hot shards from bouncing between cores
+        int shard = shardOf(id);
+        if (dirty.get(shard) == 0)
+            dirty.set(shard, 1);
+    }
+
+    @Override
+    public void put(Account acc) {
+        accounts.put(acc);
+        touch(acc.getID());
+    }
+
+    @Override
+    public boolean remove(int id) {
+        boolean removed = accounts.remove(id);
+        if (removed)
+            touch(id);
+        return removed;
+    }
+
+    @Override
+    public boolean contains(int id) { return accounts.contains(id); }
+
+    @Override
+    public Account get(int id) { return accounts.get(id); }
+
+    @Override
+    public long getBalance(int id) { return accounts.getBalance(id); }
+
+    @Override
+    public void setBalance(int id, long balance) {
+        accounts.setBalance(id, balance);
+        touch(id);
+    }
+
+    @Override
+    public int size() { return accounts.size(); }
+
+    @Override
+    public int maxID() { return accounts.maxID(); }
+
+    @Override
+    public void raiseMaxID(int maxID) { accounts.raiseMaxID(maxID); }
+
+    @Override
+    public void forEach(Consumer<Account> action) { accounts.forEach(action); }
+
+    @Override
+    public long totalBalance() { return accounts.totalBalance(); }
+
+    @Override
+    public int countNegative() { return accounts.countNegative(); }
+
+    @Override
+    public AccountView snapshot() { return accounts.snapshot(); }
+
+    @Override
+    public boolean compact(double ratio, Consumer<Runnable> exclusive) throws IOException {
+        // Accounts only move within memory, so no shard changes
+        return accounts.compact(ratio, exclusive);
+    }
+}
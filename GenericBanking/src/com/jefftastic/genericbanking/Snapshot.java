@@ -0,0 +1,438 @@
+package com.jefftastic.genericbanking;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ *  Reads and writes binary account snapshots, made of:<br>
+ *  - A header holding the record count, the highest account ID ever
+ *    handed out, and where the string heap starts<br>
+ *  - A table of fixed-width records, one per account<br>
+ *  - A string heap holding every name and address as UTF-8<br>
+ *  Each record holds the ID, flags, balance in cents, the offset and
+ *  lengths of its name and address in the string heap. Records
+ *  are read straight out of a memory-mapped file, so nothing has
+ *  to be parsed row by row.
+ * @see Database
+ */
+
+class Snapshot {
+    // Declare constants
+    static final int MAGIC = 0x4E534247;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 32;
+    static final int FLAG_CLOSED = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final LatencyHistogram READ_LATENCY = Metrics.histogram("snapshot.read");
+    private static final LatencyHistogram WRITE_LATENCY = Metrics.histogram("snapshot.write");
+
+    /**
+     * Reads every open account out of a snapshot file.
+     * @param file The snapshot to read
+     * @param store The store to add the accounts to
+     */
+    static void read(File file, AccountStore store) throws IOException {
+        // Declare variables
+        long start = System.nanoTime();
+        Account[] accounts = readAll(file);
+
+        // Leave out anything that was closed in place
+        for (int i = 0; i < accounts.length; i++) {
+            if (accounts[i] != null)
+                store.put(accounts[i]);
+            accounts[i] = null;
+        }
+        store.raiseMaxID(maxID(file));
+        READ_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Reads the highest account ID ever handed out when a snapshot
+     * was written, which closed accounts may have held.
+     * @param file The snapshot to read
+     * @return The highest ID, or 0 if none was handed out
+     */
+    static int maxID(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.read(header, 0) != HEADER_SIZE || header.getInt(0) != MAGIC)
+                throw new IOException("Not an account snapshot: " + file);
+            return header.getInt(12);
+        }
+    }
+
+    /**
+     * Decodes every record in a snapshot file.
+     * @param file The snapshot to read
+     * @return One account per record, or null where it was closed in place
+     */
+    static Account[] readAll(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Check the header before trusting any offsets
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (channel.read(header, 0) != HEADER_SIZE || header.getInt(0) != MAGIC)
+                throw new IOException("Not an account snapshot: " + file);
+            int version = header.getInt(4);
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version);
+            int count = header.getInt(8);
+            long heapOffset = header.getLong(16), heapSize = header.getLong(24);
+            if (heapOffset != HEADER_SIZE + (long) count * RECORD_SIZE || heapOffset + heapSize > channel.size())
+                throw new IOException("Snapshot is truncated: " + file);
+
+            // Decode records in parallel, since they don't depend on each other
+            Region records = new Region(channel, HEADER_SIZE, (long) count * RECORD_SIZE);
+            Region heap = new Region(channel, heapOffset, heapSize);
+            Account[] accounts = new Account[count];
+            Arrays.parallelSetAll(accounts, i -> decode(records, heap, (long) i * RECORD_SIZE));
+            return accounts;
+        }
+    }
+
+    /**
+     * Writes every account in a store as a snapshot, replacing
+     * the file at the given path atomically.
+     * @param store The accounts to write
+     * @param path The file to replace
+     */
+    static void write(AccountStore store, Path path) throws IOException {
+        // Take one copy of the accounts, so the record table and the
+        // string heap are written from the same accounts
+        List<Account> accounts = new ArrayList<>(store.size());
+        store.forEach(accounts::add);
+        write(accounts, store.maxID(), path);
+    }
+
+    /**
+     * Writes the given accounts as a snapshot, replacing the file
+     * at the given path atomically.
+     * @param accounts The accounts to write
+     * @param maxID The highest account ID ever handed out
+     * @param path The file to replace
+     */
+    static void write(List<Account> accounts, int maxID, Path path) throws IOException {
+        // Declare variables
+        long start = System.nanoTime();
+        Path target = path.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long heapOffset = HEADER_SIZE + (long) accounts.size() * RECORD_SIZE;
+        long stringOffset = 0;
+
+        try (FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // Leave room for the header, it's written once the heap size is known
+            fc.position(HEADER_SIZE);
+
+            // Write the record table, working out heap offsets as we go
+            for (Account acc : accounts) {
+                int nameLength = utf8Length(acc.getName());
+                int addressLength = utf8Length(acc.getAddress());
+                if (buf.remaining() < RECORD_SIZE)
+                    drain(fc, buf);
+                buf.putInt(acc.getID()).putInt(0).putLong(acc.getBalance())
+                        .putLong(stringOffset).putInt(nameLength).putInt(addressLength);
+                stringOffset += nameLength + addressLength;
+                maxID = Math.max(maxID, acc.getID());
+            }
+
+            // Then the string heap, each address right after its name
+            for (Account acc : accounts) {
+                put(fc, buf, acc.getName().getBytes(StandardCharsets.UTF_8));
+                put(fc, buf, acc.getAddress().getBytes(StandardCharsets.UTF_8));
+            }
+            drain(fc, buf);
+
+            // Now fill in the header and make it durable
+            buf.putInt(MAGIC).putInt(VERSION).putInt(accounts.size()).putInt(maxID)
+                    .putLong(heapOffset).putLong(stringOffset).flip();
+            while (buf.hasRemaining())
+                fc.write(buf, HEADER_SIZE - buf.remaining());
+            fc.force(true);
+        }
+
+        Database.replaceFile(temp, target);
+        WRITE_LATENCY.recordSince(start);
+    }
+
+    /**
+     * Adds accounts to the end of a snapshot, replacing the file
+     * atomically. Every record already in the snapshot, including
+     * those closed in place, stays where it was, so anything that
+     * points at records by position stays valid.
+     * @param path The snapshot to add to
+     * @param accounts The accounts to add
+     * @param maxID The highest account ID ever handed out
+     * @return The number of records the snapshot held before
+     */
+    static int append(Path path, List<Account> accounts, int maxID) throws IOException {
+        // Declare variables
+        long start = System.nanoTime();
+        Path target = path.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        try (FileChannel old = FileChannel.open(target, StandardOpenOption.READ);
+             FileChannel fc = FileChannel.open(temp, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (old.read(header, 0) != HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+                throw new IOException("Can only add to a current account snapshot: " + path);
+            int count = header.getInt(8);
+            long heapOffset = header.getLong(16), heapSize = header.getLong(24);
+            long stringOffset = heapSize;
+
+            // Old records first, then the new ones, pointing past the old heap
+            fc.position(HEADER_SIZE);
+            copy(old, HEADER_SIZE, (long) count * RECORD_SIZE, fc);
+            for (Account acc : accounts) {
+                int nameLength = utf8Length(acc.getName());
+                int addressLength = utf8Length(acc.getAddress());
+                if (buf.remaining() < RECORD_SIZE)
+                    drain(fc, buf);
+                buf.putInt(acc.getID()).putInt(0).putLong(acc.getBalance())
+                        .putLong(stringOffset).putInt(nameLength).putInt(addressLength);
+                stringOffset += nameLength + addressLength;
+                maxID = Math.max(maxID, acc.getID());
+            }
+            drain(fc, buf);
+
+            // Then the old heap as is, followed by the new strings
+            copy(old, heapOffset, heapSize, fc);
+            for (Account acc : accounts) {
+                put(fc, buf, acc.getName().getBytes(StandardCharsets.UTF_8));
+                put(fc, buf, acc.getAddress().getBytes(StandardCharsets.UTF_8));
+            }
+            drain(fc, buf);
+
+            buf.putInt(MAGIC).putInt(VERSION).putInt(count + accounts.size()).putInt(maxID)
+                    .putLong(HEADER_SIZE + (long) (count + accounts.size()) * RECORD_SIZE)
+                    .putLong(stringOffset).flip();
+            while (buf.hasRemaining())
+                fc.write(buf, HEADER_SIZE - buf.remaining());
+            fc.force(true);
+
+            Database.replaceFile(temp, target);
+            WRITE_LATENCY.recordSince(start);
+            return count;
+        }
+    }
+
+    private static void copy(FileChannel from, long position, long length, FileChannel to) throws IOException {
+        for (long copied = 0; copied < length;)
+            copied += from.transferTo(position + copied, length - copied, to);
+    }
+
+    static Account decode(Region records, Region heap, long pos) {
+        if ((records.getInt(pos + 4) & FLAG_CLOSED) != 0)
+            return null;
+
+        long stringOffset = records.getLong(pos + 16);
+        int nameLength = records.getInt(pos + 24), addressLength = records.getInt(pos + 28);
+        return new Account(
+                records.getInt(pos),
+                heap.getString(stringOffset, nameLength),
+                heap.getString(stringOffset + nameLength, addressLength),
+                records.getLong(pos + 8)
+        );
+    }
+
+    private static void put(FileChannel fc, ByteBuffer buf, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buf.hasRemaining())
+                drain(fc, buf);
+            int length = Math.min(buf.remaining(), bytes.length - offset);
+            buf.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    static void drain(FileChannel fc, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            fc.write(buf);
+        buf.clear();
+    }
+
+    /**
+     * Works out how many bytes a string takes up as UTF-8,
+     * without encoding it.
+     */
+    static int utf8Length(String str) {
+        // Declare variables
+        int length = 0, chars = str.length();
+
+        for (int i = 0; i < chars; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(str.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else
+                length += Character.isSurrogate(c) ? 1 : 3;
+        }
+
+        return length;
+    }
+
+    /**
+     * A snapshot file mapped in place, so single records can be read
+     * and changed without reading the rest. Balances and flags are
+     * written straight into the mapping; names and addresses never
+     * change once written.
+     */
+    static class Table implements Closeable {
+        // Declare class variables
+        private final FileChannel channel;
+        private final Region records, heap;
+        private final int count;
+
+        /**
+         * Table constructor.
+         * @param path The snapshot to map
+         * @param writable Whether balances and flags may be changed
+         */
+        Table(Path path, boolean writable) throws IOException {
+            channel = writable
+                    ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                // Check the header before trusting any offsets
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                if (channel.read(header, 0) != HEADER_SIZE || header.getInt(0) != MAGIC)
+                    throw new IOException("Not an account snapshot: " + path);
+                if (header.getInt(4) != VERSION)
+                    throw new IOException("Unsupported snapshot version " + header.getInt(4));
+                count = header.getInt(8);
+                long heapOffset = header.getLong(16), heapSize = header.getLong(24);
+                if (heapOffset != HEADER_SIZE + (long) count * RECORD_SIZE || heapOffset + heapSize > channel.size())
+                    throw new IOException("Snapshot is truncated: " + path);
+
+                records = new Region(channel, HEADER_SIZE, (long) count * RECORD_SIZE,
+                        writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY);
+                heap = new Region(channel, heapOffset, heapSize);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return The number of records, including those closed in place
+         */
+        int count() { return count; }
+
+        int id(int record) { return records.getInt(pos(record)); }
+        boolean isClosed(int record) { return (records.getInt(pos(record) + 4) & FLAG_CLOSED) != 0; }
+        long balance(int record) { return records.getLong(pos(record) + 8); }
+        void setBalance(int record, long balance) { records.putLong(pos(record) + 8, balance); }
+
+        /**
+         * Marks a record as closed, so it is skipped from now on.
+         * @param record The position of the record
+         */
+        void markClosed(int record) {
+            records.putInt(pos(record) + 4, records.getInt(pos(record) + 4) | FLAG_CLOSED);
+        }
+
+        /**
+         * @param record The position of the record
+         * @return The name of the account, as stored
+         */
+        String name(int record) {
+            return heap.getString(records.getLong(pos(record) + 16), records.getInt(pos(record) + 24));
+        }
+
+        /**
+         * @param record The position of a record
+         * @return The account held by the record, or null if it was closed
+         */
+        Account account(int record) {
+            return decode(records, heap, pos(record));
+        }
+
+        /**
+         * Writes every balance and flag changed so far out to disk.
+         */
+        void force() { records.force(); }
+
+        @Override
+        public void close() throws IOException { channel.close(); }
+
+        private static long pos(int record) { return (long) record * RECORD_SIZE; }
+    }
+
+    /**
+     * A memory-mapped part of a file. Files can be larger than a
+     * single mapping allows, so it is mapped in windows.
+     */
+    static class Region {
+        // Declare class variables
+        private final MappedByteBuffer[] windows;
+
+        Region(FileChannel channel, long start, long size) throws IOException {
+            this(channel, start, size, FileChannel.MapMode.READ_ONLY);
+        }
+
+        Region(FileChannel channel, long start, long size, FileChannel.MapMode mode) throws IOException {
+            windows = new MappedByteBuffer[(int) Math.max(1, (size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            for (int i = 0; i < windows.length; i++) {
+                long offset = i * WINDOW_SIZE;
+                windows[i] = channel.map(mode, start + offset,
+                        Math.max(0, Math.min(WINDOW_SIZE, size - offset)));
+                windows[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        // Record fields never straddle a window, since windows are a
+        // whole number of records long
+        int getInt(long pos) { return window(pos).getInt((int) (pos % WINDOW_SIZE)); }
+        long getLong(long pos) { return window(pos).getLong((int) (pos % WINDOW_SIZE)); }
+        double getDouble(long pos) { return window(pos).getDouble((int) (pos % WINDOW_SIZE)); }
+        void putInt(long pos, int value) { window(pos).putInt((int) (pos % WINDOW_SIZE), value); }
+        void putLong(long pos, long value) { window(pos).putLong((int) (pos % WINDOW_SIZE), value); }
+
+        /**
+         * Writes any changes made through this region out to disk.
+         */
+        void force() {
+            for (MappedByteBuffer window : windows)
+                window.force();
+        }
+
+        String getString(long pos, int length) {
+            byte[] bytes = new byte[length];
+            int copied = 0;
+
+            // Strings can straddle windows, so copy piece by piece
+            while (copied < length) {
+                long at = pos + copied;
+                int offset = (int) (at % WINDOW_SIZE);
+                int chunk = (int) Math.min(length - copied, WINDOW_SIZE - offset);
+                window(at).get(offset, bytes, copied, chunk);
+                copied += chunk;
+            }
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private MappedByteBuffer window(long pos) {
+            return windows[(int) (pos / WINDOW_SIZE)];
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.jefftastic.genericbanking;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *  Copy of the accounts kept in memory by following the changes made
+ *  to them, ready to take over if the primary store is lost. It can
+ *  be built either way:<br>
+ *  - Following a ledger, through {@link Ledger#replicate}, which copies
+ *    every account and then applies each change made since<br>
+ *  - Replaying a file written by a {@link ChangeFileSink}, from the
+ *    first change made to the accounts it was written for<br>
+ *  Each change is applied in one step, so a snapshot of the replica
+ *  never has a transfer caught halfway.
+ * @see ChangeStream
+ */
+
+public class StandbyReplica implements ChangeConsumer, AutoCloseable {
+    // Declare class variables
+    private final AccountStore store;
+    private final CountDownLatch seeded = new CountDownLatch(1);
+    private volatile ChangeStream.Subscription subscription;
+
+    /**
+     * StandbyReplica constructor, starting out with no accounts.
+     */
+    public StandbyReplica() {
+        this(new ColumnarAccountStore());
+    }
+
+    /**
+     * StandbyReplica constructor.
+     * @param store The account store to keep the copy in
+     */
+    public StandbyReplica(AccountStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void onEvent(ChangeEvent event, boolean endOfBatch) throws InterruptedException {
+        // Changes made while the accounts are being copied wait for it
+        seeded.await();
+
+        synchronized (this) {
+            switch (event.getType()) {
+                case OPEN:
+                    store.put(new Account(event.getID(), event.getName(), event.getAddress(), event.getBalance()));
+                    break;
+                case CLOSE:
+                    store.remove(event.getID());
+                    break;
+                case DEPOSIT:
+                case WITHDRAW:
+                    setBalance(event.getID(), event.getBalance());
+                    break;
+                case TRANSFER:
+                    setBalance(event.getID(), event.getBalance());
+                    setBalance(event.getOtherID(), event.getOtherBalance());
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Applies every change in a file written by a change file sink.
+     * A file started after the accounts were loaded can be replayed
+     * onto a store loaded from the same point, as changes to accounts
+     * the copy doesn't have are skipped.
+     * @param path The file to replay
+     * @return The number of changes applied
+     */
+    public synchronized long replay(Path path) throws IOException {
+        // Declare variables
+        long count = 0;
+        String line;
+
+        seeded.countDown();
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                String[] fields = BatchProcessor.split(line);
+                int id = Integer.parseInt(fields[3]);
+                switch (ChangeEvent.Type.valueOf(fields[2])) {
+                    case OPEN:
+                        store.put(new Account(id, fields[4], fields[5], Money.parse(fields[6])));
+                        break;
+                    case CLOSE:
+                        store.remove(id);
+                        break;
+                    case DEPOSIT:
+                    case WITHDRAW:
+                        setBalance(id, Money.parse(fields[5]));
+                        break;
+                    case TRANSFER:
+                        setBalance(id, Money.parse(fields[6]));
+                        setBalance(Integer.parseInt(fields[4]), Money.parse(fields[7]));
+                        break;
+                }
+                count++;
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed change after " + count + " changes in \"" + path + "\"", e);
+        }
+        return count;
+    }
+
+    /**
+     * Takes a read-only view of the copy as it is right now.
+     * @return The view, which has to be closed once done with
+     */
+    public synchronized AccountView snapshot() {
+        return store.snapshot();
+    }
+
+    /**
+     * Waits until every change made to the ledger so far has been applied.
+     * @param timeoutMillis How long to wait at most
+     * @return Whether they were all applied in time
+     */
+    public boolean catchUp(long timeoutMillis) {
+        ChangeStream.Subscription sub = subscription;
+        return sub == null || sub.drain(timeoutMillis);
+    }
+
+    /**
+     * @return The account store the copy is kept in
+     */
+    public AccountStore getStore() {
+        return store;
+    }
+
+    /**
+     * Stops following the ledger, keeping the copy as it is.
+     */
+    @Override
+    public void close() {
+        ChangeStream.Subscription sub = subscription;
+        seeded.countDown();
+        if (sub != null)
+            sub.close();
+    }
+
+    /**
+     * Sets the balance of an account in the copy, if it's there.
+     */
+    private void setBalance(int id, long balance) {
+        if (store.contains(id))
+            store.setBalance(id, balance);
+    }
+
+    void follow(ChangeStream stream, ChangeStream.WaitStrategy wait) {
+        subscription = stream.subscribe("replica", this, wait);
+    }
+
+    /**
+     * Copies every account in a view taken right as the replica
+     * started following, then lets the changes made since through.
+     */
+    void seed(AccountView view) {
+        try {
+            synchronized (this) {
+                view.forEach(store::put);
+            }
+        } finally { seeded.countDown(); }
+    }
+}
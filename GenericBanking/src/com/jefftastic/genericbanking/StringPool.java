@@ -0,0 +1,371 @@
+package com.jefftastic.genericbanking;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *  Shared pool of strings, handing out an int code for each
+ *  distinct string so that accounts sharing a name or address
+ *  share a single copy of it. Codes are reference counted and
+ *  reused once nothing refers to them anymore, unless the pool is
+ *  held, in which case they're kept until it no longer is. Views of
+ *  a store hold its pool, since they refer to strings by code.<br>
+ *  Strings aren't kept as objects, but as UTF-8 bytes packed into
+ *  large chunks, found through an open-addressing table of codes, so
+ *  a pooled string costs little more than its bytes. Once strings
+ *  that were let go of take up more room than those still pooled,
+ *  the chunks are packed again.
+ * @see ColumnarAccountStore
+ */
+
+class StringPool {
+    // Declare constants
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int FIRST_CHUNK_SIZE = 1 << 12;
+    private static final int FIELD_MASK = CHUNK_SIZE - 1;
+    private static final int DELETED = -1;
+
+    /**
+     * Everything a lookup reads. Whenever any of it has to be
+     * reallocated, a new arena is made and published in one step,
+     * so lookups that don't lock always see arrays that go together.
+     */
+    private static final class Arena {
+        final byte[][] chunks;
+        // The chunk, offset and length of each code's bytes
+        final long[] entries;
+        final int[] hashes;
+        // Open addressing: 0 is empty, -1 was deleted, else code + 1
+        final int[] table;
+
+        Arena(byte[][] chunks, long[] entries, int[] hashes, int[] table) {
+            this.chunks = chunks;
+            this.entries = entries;
+            this.hashes = hashes;
+            this.table = table;
+        }
+    }
+
+    // Declare class variables
+    private volatile Arena arena = new Arena(new byte[0][], new long[1024], new int[1024], new int[2048]);
+    private int[] refs = new int[1024];
+    private int[] freeCodes = new int[64];
+    private int[] pendingCodes = new int[64];
+    private int freeCount, nextCode, pendingCount, holds;
+    private int count, occupied, chunkFill;
+    private long liveBytes, deadBytes;
+
+    /**
+     * Adds a reference to a string, pooling it if needed.
+     * @param str The string to pool
+     * @return The code of the string
+     */
+    synchronized int intern(String str) {
+        // Declare variables
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes, 0, bytes.length);
+        int code = lookup(arena, bytes, 0, bytes.length, hash);
+
+        if (code >= 0) {
+            refs[code]++;
+            return code;
+        }
+        if (bytes.length >= CHUNK_SIZE)
+            throw new IllegalArgumentException("Strings of 1 MB or more can't be pooled");
+
+        // Reuse a released code before handing out a new one
+        int newCode = freeCount > 0 ? freeCodes[--freeCount] : nextCode++;
+        if (newCode == arena.entries.length) {
+            Arena a = arena;
+            int size = newCode + (newCode >> 1);
+            refs = Arrays.copyOf(refs, size);
+            arena = new Arena(a.chunks, Arrays.copyOf(a.entries, size), Arrays.copyOf(a.hashes, size), a.table);
+        }
+
+        // The bytes and hash go in before the code can be found
+        long entry = store(bytes);
+        arena.entries[newCode] = entry;
+        arena.hashes[newCode] = hash;
+        refs[newCode] = 1;
+        if ((occupied + 1) * 2 > arena.table.length)
+            rehash();
+        insert(arena.table, newCode, hash);
+        count++;
+        liveBytes += bytes.length;
+        return newCode;
+    }
+
+    /**
+     * Looks up the code of a string without adding a reference to
+     * it. This doesn't lock, so a string being pooled at the same
+     * time may not be found yet.
+     * @param str The string to look up
+     * @return The code of the string, or -1 if it isn't pooled
+     */
+    int code(String str) {
+        return code(str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param bytes The UTF-8 bytes of the string to look up
+     * @return The code of the string, or -1 if it isn't pooled
+     * @see #code(String)
+     */
+    int code(byte[] bytes) {
+        return lookup(arena, bytes, 0, bytes.length, hash(bytes, 0, bytes.length));
+    }
+
+    /**
+     * @param bytes UTF-8 bytes holding the string to look up
+     * @param from The index of the string's first byte
+     * @param to The index right after the string's last byte
+     * @return The code of the string, or -1 if it isn't pooled
+     * @see #code(String)
+     */
+    int code(byte[] bytes, int from, int to) {
+        return lookup(arena, bytes, from, to, hash(bytes, from, to));
+    }
+
+    /**
+     * Drops a reference to a string, letting go of it once
+     * nothing refers to it anymore.
+     * @param code The code of the string
+     */
+    synchronized void release(int code) {
+        if (--refs[code] > 0)
+            return;
+
+        if (holds > 0) {
+            if (pendingCount == pendingCodes.length)
+                pendingCodes = Arrays.copyOf(pendingCodes, pendingCount * 2);
+            pendingCodes[pendingCount++] = code;
+        } else
+            free(code);
+    }
+
+    /**
+     * Stops strings from being let go of until {@link #unhold()}
+     * is called as many times as this was.
+     */
+    synchronized void hold() {
+        holds++;
+    }
+
+    /**
+     * Ends a hold, letting go of every string released during it
+     * that's still unreferenced once the last hold ends.
+     */
+    synchronized void unhold() {
+        if (--holds > 0)
+            return;
+
+        // A string may have been interned again, or released twice
+        for (int i = 0; i < pendingCount; i++)
+            if (refs[pendingCodes[i]] == 0)
+                free(pendingCodes[i]);
+        pendingCount = 0;
+    }
+
+    /**
+     * Provides a pooled string without locking. A code that was let
+     * go of meanwhile reads as some other string, or as empty, so
+     * readers that may hold one have to check it's still theirs.
+     * @param code The code of a pooled string
+     * @return The pooled string
+     */
+    String get(int code) {
+        Arena a = arena;
+        long entry = a.entries[code];
+        if (!inArena(a, entry))
+            return "";
+        return new String(a.chunks[chunkOf(entry)], offsetOf(entry), lengthOf(entry), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param code The code of a pooled string
+     * @return The UTF-8 bytes of the pooled string, as a new array
+     */
+    byte[] bytes(int code) {
+        Arena a = arena;
+        long entry = a.entries[code];
+        if (!inArena(a, entry))
+            return new byte[0];
+        int offset = offsetOf(entry);
+        return Arrays.copyOfRange(a.chunks[chunkOf(entry)], offset, offset + lengthOf(entry));
+    }
+
+    /**
+     * @return The number of distinct strings in the pool
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    private void free(int code) {
+        // Declare variables
+        Arena a = arena;
+        int mask = a.table.length - 1;
+
+        for (int i = a.hashes[code] & mask; ; i = (i + 1) & mask) {
+            if (a.table[i] == code + 1) {
+                a.table[i] = DELETED;
+                break;
+            }
+        }
+        refs[code] = -1;
+        count--;
+        liveBytes -= lengthOf(a.entries[code]);
+        deadBytes += lengthOf(a.entries[code]);
+        if (freeCount == freeCodes.length)
+            freeCodes = Arrays.copyOf(freeCodes, freeCount * 2);
+        freeCodes[freeCount++] = code;
+
+        if (deadBytes > liveBytes && deadBytes > CHUNK_SIZE)
+            pack();
+    }
+
+    /**
+     * Copies a string's bytes into the last chunk, starting a new
+     * chunk if they don't fit.
+     * @return The entry locating the bytes
+     */
+    private long store(byte[] bytes) {
+        // Declare variables
+        Arena a = arena;
+        byte[][] chunks = a.chunks;
+
+        if (chunks.length == 0 || chunkFill + bytes.length > chunks[chunks.length - 1].length) {
+            chunks = grow(chunks, bytes.length);
+            chunkFill = 0;
+            arena = new Arena(chunks, a.entries, a.hashes, a.table);
+        }
+
+        System.arraycopy(bytes, 0, chunks[chunks.length - 1], chunkFill, bytes.length);
+        long entry = entry(chunks.length - 1, chunkFill, bytes.length);
+        chunkFill += bytes.length;
+        return entry;
+    }
+
+    /**
+     * Copies every pooled string into fresh chunks, leaving behind
+     * the bytes of strings that were let go of. Lookups still using
+     * the old chunks keep reading them, as they're never changed.
+     */
+    private void pack() {
+        // Declare variables
+        Arena old = arena;
+        long[] entries = new long[old.entries.length];
+        byte[][] chunks = grow(new byte[0][], 0);
+        int fill = 0;
+
+        // Codes let go of are left reading as empty strings
+        for (int slot : old.table) {
+            if (slot <= 0)
+                continue;
+            long entry = old.entries[slot - 1];
+            int length = lengthOf(entry);
+            if (fill + length > chunks[chunks.length - 1].length) {
+                chunks = grow(chunks, length);
+                fill = 0;
+            }
+            System.arraycopy(old.chunks[chunkOf(entry)], offsetOf(entry), chunks[chunks.length - 1], fill, length);
+            entries[slot - 1] = entry(chunks.length - 1, fill, length);
+            fill += length;
+        }
+
+        chunkFill = fill;
+        deadBytes = 0;
+        arena = new Arena(chunks, entries, old.hashes, old.table);
+    }
+
+    /**
+     * Adds a chunk with room for at least the given number of bytes.
+     * Chunks start small and double up to 1 MB, so small pools stay small.
+     */
+    private static byte[][] grow(byte[][] chunks, int length) {
+        int size = chunks.length == 0 ? FIRST_CHUNK_SIZE
+                : Math.min(CHUNK_SIZE, chunks[chunks.length - 1].length * 2);
+        chunks = Arrays.copyOf(chunks, chunks.length + 1);
+        chunks[chunks.length - 1] = new byte[Math.max(size, length)];
+        return chunks;
+    }
+
+    /**
+     * Builds a new table that's a quarter to half full, leaving out
+     * deleted slots.
+     */
+    private void rehash() {
+        // Declare variables
+        Arena a = arena;
+        int size = Integer.highestOneBit(Math.max(8, count + 1) * 2) * 2;
+        int[] table = new int[size];
+
+        for (int slot : a.table)
+            if (slot > 0)
+                insert(table, slot - 1, a.hashes[slot - 1]);
+        occupied = count;
+        arena = new Arena(a.chunks, a.entries, a.hashes, table);
+    }
+
+    private void insert(int[] table, int code, int hash) {
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            if (table[i] <= 0) {
+                if (table[i] == 0)
+                    occupied++;
+                table[i] = code + 1;
+                return;
+            }
+        }
+    }
+
+    private static int lookup(Arena a, byte[] bytes, int from, int to, int hash) {
+        // Declare variables
+        int[] table = a.table;
+        int mask = table.length - 1;
+
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int slot = table[i];
+            if (slot == 0)
+                return -1;
+            if (slot == DELETED || a.hashes[slot - 1] != hash)
+                continue;
+
+            long entry = a.entries[slot - 1];
+            int offset = offsetOf(entry);
+            if (Arrays.equals(a.chunks[chunkOf(entry)], offset, offset + lengthOf(entry), bytes, from, to))
+                return slot - 1;
+        }
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        // Same as Arrays.hashCode, over a range
+        int h = 1;
+        for (int i = from; i < to; i++)
+            h = 31 * h + bytes[i];
+
+        // Spread the bits, since the table is indexed by the low ones
+        return h ^ (h >>> 16);
+    }
+
+    private static long entry(int chunk, int offset, int length) {
+        return (long) chunk << (2 * CHUNK_SHIFT) | (long) offset << CHUNK_SHIFT | length;
+    }
+
+    /**
+     * Arenas share their entries until a code needs more room, so a
+     * code let go of and handed out again may already point at a
+     * chunk added after the arena a reader is holding.
+     * @return Whether the entry's chunk is in the arena
+     */
+    private static boolean inArena(Arena a, long entry) {
+        return chunkOf(entry) < a.chunks.length;
+    }
+
+    private static int chunkOf(long entry) { return (int) (entry >>> (2 * CHUNK_SHIFT)); }
+
+    private static int offsetOf(long entry) { return (int) (entry >>> CHUNK_SHIFT) & FIELD_MASK; }
+
+    private static int lengthOf(long entry) { return (int) entry & FIELD_MASK; }
+}
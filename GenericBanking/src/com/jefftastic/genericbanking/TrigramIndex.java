@@ -0,0 +1,187 @@
+package com.jefftastic.genericbanking;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Indexes the words that names are made of by their trigrams, the
+ *  runs of three characters in them, so that words within a few
+ *  typos of a given word are found without comparing it to every
+ *  word. A word within k edits of another still has all but 3k of
+ *  its trigrams in it, so only words holding enough of them are
+ *  compared at all. Words are padded at both ends first, so typos
+ *  at the ends count like any other.<br>
+ *  Names share far fewer words than there are names, so the index
+ *  stays small. Words are never dropped, since a word nobody holds
+ *  anymore only costs a name lookup that finds nothing.<br>
+ *  Words are added one at a time. Lookups never lock, as the word
+ *  lists of a trigram are only ever appended to, behind a count.
+ * @see NameIndex
+ */
+
+class TrigramIndex {
+    // Declare constants
+    private static final char PAD = '\0';
+
+    /**
+     * A word found close to the one searched for.
+     * @param word The word found
+     * @param distance How many edits away it is
+     */
+    record Match(String word, int distance) {}
+
+    /**
+     * Codes of the words holding a trigram. Only the first count
+     * codes are in use, the array is shared by later lists.
+     */
+    private record Words(int[] codes, int count) {}
+
+    // Declare class variables
+    private final StringPool words = new StringPool();
+    private final ConcurrentHashMap<Long, Words> trigrams = new ConcurrentHashMap<>();
+    private volatile int wordCount;
+
+    /**
+     * Adds every word of a name that isn't indexed yet. Words are
+     * looked up as they are in the name, since most of them are
+     * indexed already, so they're only made into strings when not.
+     * @param name The UTF-8 bytes of the folded name, with words separated by spaces
+     */
+    void add(byte[] name) {
+        // Declare variables
+        int start = 0;
+
+        // Spaces are never part of a longer UTF-8 character
+        for (int i = 0; i <= name.length; i++) {
+            if (i < name.length && name[i] != ' ')
+                continue;
+            if (i > start && words.code(name, start, i) < 0)
+                addWord(new String(name, start, i - start, StandardCharsets.UTF_8));
+            start = i + 1;
+        }
+    }
+
+    /**
+     * Provides every indexed word within a number of edits of the
+     * given word.
+     * @param word The word that is being searched for
+     * @param maxDistance The most edits a word may be away
+     * @return A new list of matches, closest first, then alphabetically
+     */
+    List<Match> find(String word, int maxDistance) {
+        // Declare variables
+        List<Match> result = new ArrayList<>();
+        long[] grams = grams(word);
+        int needed = grams.length - 3 * maxDistance;
+        int size = wordCount;
+
+        if (needed <= 0) {
+            // Too short to filter on, so every word is compared
+            for (int code = 0; code < size; code++)
+                compare(word, code, maxDistance, result);
+        } else {
+            // Count the trigrams each word shares with this one, and
+            // compare those that share enough, as soon as they do
+            int[] counts = new int[size];
+            for (long gram : grams) {
+                Words found = trigrams.get(gram);
+                if (found == null)
+                    continue;
+                for (int i = 0; i < found.count(); i++) {
+                    int code = found.codes()[i];
+                    if (code < size && ++counts[code] == needed)
+                        compare(word, code, maxDistance, result);
+                }
+            }
+        }
+
+        result.sort(Comparator.comparingInt(Match::distance).thenComparing(Match::word));
+        return result;
+    }
+
+    /**
+     * Works out the edit distance between two words, giving up once
+     * it's over a given number of edits.
+     * @return The number of single-character insertions, deletions
+     *         and substitutions that turn one word into the other, or
+     *         anything over max if that's more than max
+     */
+    static int distance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max)
+            return max + 1;
+
+        // Declare variables
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+
+        for (int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int best = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int substitute = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitute, Math.min(previous[j], current[j - 1]) + 1);
+                best = Math.min(best, current[j]);
+            }
+
+            // Every row is at least as far as the best of the one before
+            if (best > max)
+                return max + 1;
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        return previous[b.length()];
+    }
+
+    private synchronized void addWord(String word) {
+        // Another session may have just added it
+        if (words.code(word) >= 0)
+            return;
+
+        int code = words.intern(word);
+        for (long gram : grams(word)) {
+            Words found = trigrams.get(gram);
+            int[] codes = found == null ? new int[4] : found.codes();
+            int count = found == null ? 0 : found.count();
+            if (count == codes.length)
+                codes = Arrays.copyOf(codes, count * 2);
+
+            // The code goes in before the count that covers it is published
+            codes[count] = code;
+            trigrams.put(gram, new Words(codes, count + 1));
+        }
+        wordCount = code + 1;
+    }
+
+    private void compare(String word, int code, int maxDistance, List<Match> result) {
+        String candidate = words.get(code);
+        int distance = distance(word, candidate, maxDistance);
+        if (distance <= maxDistance)
+            result.add(new Match(candidate, distance));
+    }
+
+    /**
+     * @return The distinct trigrams of a word, padded at both ends
+     */
+    private static long[] grams(String word) {
+        // Declare variables
+        String padded = "" + PAD + PAD + word + PAD + PAD;
+        long[] grams = new long[padded.length() - 2];
+        int distinct = 0;
+
+        for (int i = 0; i < grams.length; i++)
+            grams[i] = (long) padded.charAt(i) << 32 | (long) padded.charAt(i + 1) << 16 | padded.charAt(i + 2);
+        Arrays.sort(grams);
+        for (int i = 0; i < grams.length; i++)
+            if (i == 0 || grams[i] != grams[i - 1])
+                grams[distinct++] = grams[i];
+        return Arrays.copyOf(grams, distinct);
+    }
+}
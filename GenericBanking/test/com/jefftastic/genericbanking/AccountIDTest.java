@@ -0,0 +1,118 @@
+package com.jefftastic.genericbanking;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *  Closes the newest accounts, saves, loads everything again the way
+ *  a restart would, then opens another account, checking that it
+ *  never gets the ID of a closed account:<br>
+ *  - Through a data directory, read whole or paged, and a snapshot<br>
+ *  - After compacting has dropped the closed records<br>
+ *  - When the closing was only in the journal<br>
+ *  - So that the new account's history is its own
+ */
+
+class AccountIDTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void closedIDsStayTakenThroughADataDirectory() throws Exception {
+        // Declare variables
+        File data = dir.resolve("data").toFile();
+        Ledger ledger = new Ledger(new ColumnarAccountStore());
+
+        int bob = openAndCloseBob(ledger);
+        ShardStorage.save(ledger.getStore(), data, 4);
+
+        assertEquals(bob + 1, new Ledger(ShardStorage.load(data)).open("Carol", "Carol Street", 0).getID());
+    }
+
+    @Test
+    void closedIDsStayTakenThroughAPagedDataDirectory() throws Exception {
+        // Declare variables
+        File data = dir.resolve("data").toFile();
+        Ledger ledger = new Ledger(new ColumnarAccountStore());
+        PagedAccountStore paged;
+
+        ledger.open("Alice", "Alice Street", 100_00);
+        int bob = ledger.open("Bob", "Bob Street", 0).getID();
+        ShardStorage.save(ledger.getStore(), data, 4);
+
+        // Bob is closed once saved, then compacting drops his record,
+        // so nothing on disk holds his ID anymore
+        paged = PagedAccountStore.open(data, 16);
+        assertTrue(new Ledger(paged).close(bob));
+        paged.flush();
+        assertTrue(paged.compact(0, Runnable::run));
+        paged = PagedAccountStore.open(data, 16);
+        assertEquals(bob + 1, new Ledger(paged).open("Carol", "Carol Street", 0).getID());
+
+        // Nor are IDs only opened since the last save handed out again
+        Ledger reopened = new Ledger(paged);
+        int dave = reopened.open("Dave", "Dave Street", 0).getID();
+        reopened.close(dave);
+        paged.flush();
+        assertEquals(dave + 1, new Ledger(PagedAccountStore.open(data, 16)).open("Eve", "Eve Street", 0).getID());
+    }
+
+    @Test
+    void closedIDsStayTakenThroughASnapshot() throws Exception {
+        // Declare variables
+        File snapshot = dir.resolve("adb.snap").toFile();
+        Ledger ledger = new Ledger(new ColumnarAccountStore());
+
+        int bob = openAndCloseBob(ledger);
+        assertTrue(Database.saveSnapshot(ledger.getStore(), snapshot.getPath()));
+
+        assertEquals(bob + 1, new Ledger(Database.constructAccountStoreFromSnapshot(snapshot))
+                .open("Carol", "Carol Street", 0).getID());
+    }
+
+    @Test
+    void closedIDsStayTakenThroughTheJournalAndHistoryIsNotShared() throws Exception {
+        // Declare variables
+        String journalPath = dir.resolve("adb.journal").toString();
+        File historyDir = dir.resolve("adb.history").toFile();
+        int bob, carol;
+
+        // Nothing is saved, so Bob only ever lives in the journal
+        try (Journal journal = Journal.open(journalPath, new ColumnarAccountStore());
+             HistoryStore history = HistoryStore.open(historyDir)) {
+            bob = openAndCloseBob(new Ledger(new ColumnarAccountStore(), journal, history));
+        }
+
+        // Replaying the journal opens and closes Bob again
+        AccountStore store = new ColumnarAccountStore();
+        try (Journal journal = Journal.open(journalPath, store);
+             HistoryStore history = HistoryStore.open(historyDir)) {
+            Ledger ledger = new Ledger(store, journal, history);
+            carol = ledger.open("Carol", "Carol Street", 0).getID();
+
+            List<HistoryStore.Entry> entries = ledger.history(carol, 10);
+            assertEquals(1, entries.size());
+            assertEquals(HistoryStore.Kind.OPEN, entries.get(0).kind());
+        }
+        assertEquals(bob + 1, carol);
+    }
+
+    /**
+     * Opens Alice and Bob, gives Bob some funds, then closes Bob.
+     * @return Bob's ID, the highest handed out
+     */
+    private static int openAndCloseBob(Ledger ledger) {
+        ledger.open("Alice", "Alice Street", 100_00);
+        int bob = ledger.open("Bob", "Bob Street", 0).getID();
+        ledger.deposit(bob, 1_234_56);
+        ledger.withdraw(bob, 1_234_56);
+        assertTrue(ledger.close(bob));
+        return bob;
+    }
+}
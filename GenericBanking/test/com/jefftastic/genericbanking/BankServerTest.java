@@ -0,0 +1,214 @@
+package com.jefftastic.genericbanking;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *  Runs the server on a free loopback port and talks to it through
+ *  plain sockets, the way telnet would, checking that:<br>
+ *  - Many clients logged in at once each get their own session, and
+ *    their deposits and transfers all land<br>
+ *  - Clients over the session limit are turned away, until a
+ *    session frees up<br>
+ *  - Closing the server hangs up on clients still connected, and only
+ *    returns once their sessions have stopped
+ */
+
+@Timeout(60)
+class BankServerTest {
+    // Declare constants
+    private static final int CLIENTS = 16;
+    private static final long STARTING_BALANCE = 1_000_00;
+    private static final String ACCOUNT_MENU = "Please enter an option from below. (0-7)";
+    private static final int READ_TIMEOUT_MILLIS = 30_000;
+    private static final String LOGIN_MENU = "please enter an option from below. (0-2)";
+
+    /**
+     * A client typing into a session and reading what it prints.
+     */
+    private static final class Client implements Closeable {
+        // Declare class variables
+        private final Socket socket;
+        private final Writer out;
+        private final Reader in;
+        private final StringBuilder seen = new StringBuilder();
+
+        Client(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            // Fail rather than hang if the server stops answering
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            in = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
+        }
+
+        void type(String... lines) throws IOException {
+            for (String line : lines)
+                out.write(line + "\n");
+            out.flush();
+        }
+
+        /**
+         * Reads until the text has been printed since the last call.
+         */
+        void readUntil(String text) throws IOException {
+            // Declare variables
+            char[] buf = new char[4096];
+
+            while (seen.indexOf(text) < 0) {
+                int read = in.read(buf);
+                if (read < 0)
+                    fail("Hung up before printing \"" + text + "\", after:\n" + seen);
+                seen.append(buf, 0, read);
+            }
+            seen.delete(0, seen.indexOf(text) + text.length());
+        }
+
+        /**
+         * Reads everything until the server hangs up.
+         * @return What was printed since the last call
+         */
+        String readToEnd() throws IOException {
+            // Declare variables
+            char[] buf = new char[4096];
+            int read;
+
+            while ((read = in.read(buf)) >= 0)
+                seen.append(buf, 0, read);
+            return seen.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    void concurrentClientsAllLand() throws Exception {
+        // Declare variables
+        Ledger ledger = new Ledger(new ColumnarAccountStore());
+        int pool = ledger.open("Pool", "Pool Street", 0).getID();
+        int[] ids = new int[CLIENTS];
+        ExecutorService clients = Executors.newFixedThreadPool(CLIENTS);
+        CyclicBarrier allLoggedIn = new CyclicBarrier(CLIENTS);
+        List<Future<?>> sessions = new ArrayList<>();
+        int[] liveAtOnce = {0};
+
+        for (int i = 0; i < CLIENTS; i++)
+            ids[i] = ledger.open("Client " + i, "Client Street " + i, STARTING_BALANCE).getID();
+
+        try (BankServer server = new BankServer(ledger, 0)) {
+            for (int i = 0; i < CLIENTS; i++) {
+                final String name = "Client " + i;
+                sessions.add(clients.submit(() -> {
+                    try (Client client = new Client(server.getPort())) {
+                        client.type("1", name, "1");
+                        client.readUntil("Hello " + name + "!");
+
+                        // Every client is logged in before any of them posts
+                        if (allLoggedIn.await(30, TimeUnit.SECONDS) == 0)
+                            liveAtOnce[0] = server.getSessionCount();
+
+                        client.type("1", "25");
+                        client.readUntil(ACCOUNT_MENU);
+                        client.type("3", Integer.toString(pool), "y", "10");
+                        client.readUntil(ACCOUNT_MENU);
+                        client.type("5", "y", "0");
+                        client.readToEnd();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> session : sessions)
+                session.get(30, TimeUnit.SECONDS);
+        } finally { clients.shutdown(); }
+
+        assertEquals(CLIENTS, liveAtOnce[0]);
+        for (int id : ids)
+            assertEquals(STARTING_BALANCE + 25_00 - 10_00, ledger.get(id).getBalance());
+        assertEquals(CLIENTS * 10_00L, ledger.get(pool).getBalance());
+        assertTrue(ledger.verifyTotals().matches());
+    }
+
+    @Test
+    void clientsOverTheLimitAreTurnedAway() throws Exception {
+        // Declare variables
+        Ledger ledger = new Ledger(new ColumnarAccountStore());
+
+        try (BankServer server = new BankServer(ledger, 0, 2);
+             Client first = new Client(server.getPort());
+             Client second = new Client(server.getPort())) {
+            first.readUntil(LOGIN_MENU);
+            second.readUntil(LOGIN_MENU);
+
+            try (Client third = new Client(server.getPort())) {
+                assertEquals("Too many sessions, please try again later.\n", third.readToEnd());
+            }
+
+            // Once a session ends, the next client gets in
+            first.type("0");
+            first.readToEnd();
+            waitFor(() -> server.getSessionCount() == 1);
+            try (Client fourth = new Client(server.getPort())) {
+                fourth.readUntil(LOGIN_MENU);
+            }
+        }
+    }
+
+    @Test
+    void closeHangsUpAndWaitsForSessions() throws Exception {
+        // Declare variables
+        Ledger ledger = new Ledger(new ColumnarAccountStore());
+        BankServer server = new BankServer(ledger, 0);
+        List<Client> clients = new ArrayList<>();
+
+        ledger.open("Client", "Client Street", STARTING_BALANCE);
+        try {
+            for (int i = 0; i < 4; i++) {
+                Client client = new Client(server.getPort());
+                clients.add(client);
+                client.type("1", "Client", "1");
+                client.readUntil(ACCOUNT_MENU);
+            }
+            assertEquals(4, server.getSessionCount());
+
+            // Sessions are left waiting at the menu when the server closes
+            server.close();
+            assertEquals(0, server.getSessionCount());
+            for (Thread thread : Thread.getAllStackTraces().keySet())
+                assertFalse(thread.getName().startsWith("bank-session-") && thread.isAlive(),
+                        () -> thread.getName() + " still running after close");
+            for (Client client : clients)
+                client.readToEnd();
+
+            // Nothing is accepted anymore
+            assertThrows(IOException.class, () -> {
+                try (Client late = new Client(server.getPort())) {
+                    late.readUntil(LOGIN_MENU);
+                }
+            });
+        } finally {
+            for (Client client : clients)
+                client.close();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.jefftastic.genericbanking;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *  Keeps replacing a few accounts with new names, addresses and
+ *  balances that belong together, while other threads read them
+ *  without locking, checking that:<br>
+ *  - Every account read is one that was put, never half of one
+ *    and half of another<br>
+ *  - Replaced accounts are always found, and counted only once
+ */
+
+class ColumnarAccountStoreTest {
+    // Declare constants
+    private static final int ACCOUNTS = 8;
+    private static final int REPLACEMENTS = 200_000;
+    private static final int READERS = 3;
+
+    @Test
+    void readersNeverSeeAHalfReplacedAccount() throws Exception {
+        // Declare variables
+        ColumnarAccountStore store = new ColumnarAccountStore();
+        ExecutorService pool = Executors.newFixedThreadPool(READERS);
+        List<Future<Integer>> readers = new ArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean();
+
+        for (int id = 1; id <= ACCOUNTS; id++)
+            store.put(account(id, 0));
+
+        for (int r = 0; r < READERS; r++) {
+            readers.add(pool.submit(() -> {
+                int reads = 0;
+                while (!stop.get()) {
+                    for (int id = 1; id <= ACCOUNTS; id++, reads++) {
+                        Account acc = store.get(id);
+                        assertNotNull(acc, () -> "Lost an account while it was replaced");
+                        int version = (int) acc.getBalance();
+                        assertEquals(account(id, version).getName(), acc.getName());
+                        assertEquals(account(id, version).getAddress(), acc.getAddress());
+                    }
+                }
+                return reads;
+            }));
+        }
+
+        try {
+            for (int version = 1; version <= REPLACEMENTS; version++)
+                store.put(account(version % ACCOUNTS + 1, version));
+        } finally {
+            stop.set(true);
+            pool.shutdown();
+        }
+        for (Future<Integer> reader : readers)
+            assertTrue(reader.get(1, TimeUnit.MINUTES) > 0);
+
+        int[] count = {0};
+        store.forEach(acc -> count[0]++);
+        assertEquals(ACCOUNTS, store.size());
+        assertEquals(ACCOUNTS, count[0]);
+    }
+
+    /**
+     * @return An account whose name and address both tell which
+     *         version it is, the same as its balance
+     */
+    private static Account account(int id, int version) {
+        return new Account(id, "Name " + id + " v" + version, "Street " + id + " v" + version, version);
+    }
+}
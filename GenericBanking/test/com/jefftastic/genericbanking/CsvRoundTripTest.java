@@ -0,0 +1,161 @@
+package com.jefftastic.genericbanking;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *  Saves accounts with hostile names and addresses as CSV, then reads
+ *  them back both through opencsv and through the loader, expecting:<br>
+ *  - Separators, quotes, commas, backslashes and non-ASCII characters
+ *    to come back as they were<br>
+ *  - Line breaks to come back as spaces, as rows stay on one line<br>
+ *  - Balances to come back to the cent<br>
+ *  It also times saving a million accounts, to catch the writer
+ *  slowing down
+ */
+
+class CsvRoundTripTest {
+    // Declare constants
+    private static final String[] HOSTILE = {
+            "Smith; \"Jim\"", "O'Brien, Pat", "\"", "\"\"", ";", ";;\";", "\"quoted\"", "trailing;",
+            "back\\slash", "\\\"", "C:\\Users\\", "tab\there", "Zoë Ünïcode", "日本語の名前", "emoji 🏦 name",
+            "line\nbreak", "carriage\r\nreturn", " padded ", ",", "a,b;c\"d"
+    };
+    private static final int TIMED_ACCOUNTS = 1_000_000;
+    private static final int TIMED_RUNS = 3;
+    // Saving runs at about 100 MB/s on one slow core, syncing included,
+    // while unbuffered rows or a format string per row fall to a few
+    // MB/s, so the floor leaves room for a busy machine and still
+    // catches the writer losing its buffering
+    private static final double MIN_MB_PER_SECOND = 40;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void hostileFieldsSurviveOpenCsv() throws Exception {
+        // Declare variables
+        ColumnarAccountStore store = hostileStore();
+        File file = save(store);
+        List<String[]> rows = Database.readCSV(file);
+
+        assertEquals(store.size(), rows.size());
+        for (String[] row : rows) {
+            assertEquals(4, row.length, () -> "Row split wrongly: " + String.join("|", row));
+            assertRoundTripped(store, new Account(Integer.parseInt(row[0]), row[1], row[2], Money.parse(row[3])));
+        }
+    }
+
+    @Test
+    void hostileFieldsSurviveLoader() throws Exception {
+        // Declare variables
+        ColumnarAccountStore store = hostileStore();
+        ColumnarAccountStore loaded = new ColumnarAccountStore();
+
+        CsvLoader.load(save(store), loaded);
+        assertEquals(store.size(), loaded.size());
+        loaded.forEach(acc -> assertRoundTripped(store, acc));
+    }
+
+    @Test
+    void manyRandomRowsSurviveBothReaders() throws Exception {
+        // Declare variables
+        ColumnarAccountStore store = new ColumnarAccountStore();
+        ColumnarAccountStore loaded = new ColumnarAccountStore();
+        SplittableRandom random = new SplittableRandom(42);
+
+        // Enough rows that the loader splits the file into several chunks
+        for (int id = 1; id <= 100_000; id++)
+            store.put(new Account(id, randomField(random), randomField(random),
+                    random.nextLong(-10_000_000_00L, 10_000_000_00L)));
+        File file = save(store);
+
+        List<String[]> rows = Database.readCSV(file);
+        assertEquals(store.size(), rows.size());
+        for (String[] row : rows)
+            assertRoundTripped(store, new Account(Integer.parseInt(row[0]), row[1], row[2], Money.parse(row[3])));
+
+        CsvLoader.load(file, loaded);
+        assertEquals(store.size(), loaded.size());
+        loaded.forEach(acc -> assertRoundTripped(store, acc));
+    }
+
+    @Test
+    void savingMeetsTheThroughputFloor() throws Exception {
+        // Declare variables
+        ColumnarAccountStore store = new ColumnarAccountStore();
+        SplittableRandom random = new SplittableRandom(1);
+        Path file = dir.resolve("timed.csv");
+        double best = 0;
+
+        for (int id = 1; id <= TIMED_ACCOUNTS; id++)
+            store.put(new Account(id, "Customer " + random.nextInt(1_000_000),
+                    random.nextInt(1, 10_000) + " Market Street, Springfield", random.nextLong(-1_000_00, 100_000_00)));
+
+        // The best of a few runs, after one to warm up
+        CsvWriter.write(store, file);
+        for (int run = 0; run < TIMED_RUNS; run++) {
+            long start = System.nanoTime();
+            long bytes = CsvWriter.write(store, file);
+            best = Math.max(best, bytes / 1e6 / ((System.nanoTime() - start) / 1e9));
+        }
+        double mbPerSecond = best;
+        assertTrue(mbPerSecond >= MIN_MB_PER_SECOND,
+                () -> "Saving CSV ran at %.1f MB/s, under %.0f MB/s".formatted(mbPerSecond, MIN_MB_PER_SECOND));
+    }
+
+    private File save(AccountStore store) {
+        File file = dir.resolve("adb.csv").toFile();
+        assertTrue(Database.saveCSV(store, file.getPath()));
+        return file;
+    }
+
+    private static ColumnarAccountStore hostileStore() {
+        // Declare variables
+        ColumnarAccountStore store = new ColumnarAccountStore();
+        long[] balances = {0, 1, -1, 99, -99, 100, 123_456_789, -123_456_789, Long.MAX_VALUE / 2, Long.MIN_VALUE / 2};
+        int id = 1;
+
+        for (String name : HOSTILE)
+            for (String address : HOSTILE)
+                store.put(new Account(id, name, address, balances[id++ % balances.length]));
+        return store;
+    }
+
+    private static String randomField(SplittableRandom random) {
+        // Declare variables
+        StringBuilder sb = new StringBuilder();
+        int words = random.nextInt(1, 4);
+
+        for (int i = 0; i < words; i++) {
+            if (i > 0)
+                sb.append(' ');
+            sb.append(HOSTILE[random.nextInt(HOSTILE.length)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Checks an account read back against the one saved under its ID.
+     */
+    private static void assertRoundTripped(AccountStore saved, Account read) {
+        // Declare variables
+        Account expected = saved.get(read.getID());
+
+        assertNotNull(expected, () -> "Read back an account never saved: " + read.getID());
+        assertEquals(oneLine(expected.getName()), read.getName());
+        assertEquals(oneLine(expected.getAddress()), read.getAddress());
+        assertEquals(expected.getBalance(), read.getBalance());
+    }
+
+    private static String oneLine(String str) {
+        return str.replace('\r', ' ').replace('\n', ' ');
+    }
+}
@@ -0,0 +1,153 @@
+package com.jefftastic.genericbanking;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *  Writes the history of many accounts across many small segments,
+ *  then opens it again, checking that:<br>
+ *  - Every entry is read back in order, through both the latest
+ *    entries and a range of time<br>
+ *  - Entries added after opening again land after the older ones,
+ *    and survive the next close too<br>
+ *  - Every segment has an index once closed, and a segment whose
+ *    index was lost, with a torn chunk at its end, is scanned again
+ *    without losing anything before the tear<br>
+ *  - Accounts with no history read as empty
+ */
+
+class HistoryStoreTest {
+    // Declare constants
+    private static final int ACCOUNTS = 200;
+    private static final int ENTRIES = 300;
+    private static final long MEMORY_ENTRIES = 2_000;
+    private static final long SEGMENT_SIZE = 16 * 1024;
+    private static final HistoryStore.Kind[] KINDS = HistoryStore.Kind.values();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reopeningFindsEveryEntry() throws Exception {
+        // Declare variables
+        File data = dir.toFile();
+        Map<Integer, List<HistoryStore.Entry>> expected = new HashMap<>();
+        SplittableRandom random = new SplittableRandom(7);
+
+        try (HistoryStore history = HistoryStore.open(data, MEMORY_ENTRIES, SEGMENT_SIZE)) {
+            append(history, expected, random);
+        }
+        assertIndexed(data);
+        try (HistoryStore history = HistoryStore.open(data, MEMORY_ENTRIES, SEGMENT_SIZE)) {
+            assertHistory(history, expected);
+            assertTrue(history.latest(ACCOUNTS + 1, 10).isEmpty());
+
+            // New entries go after the ones already on disk
+            append(history, expected, random);
+            assertHistory(history, expected);
+        }
+        assertIndexed(data);
+        try (HistoryStore history = HistoryStore.open(data, MEMORY_ENTRIES, SEGMENT_SIZE)) {
+            assertHistory(history, expected);
+        }
+    }
+
+    @Test
+    void lostIndexIsRebuiltFromItsSegment() throws Exception {
+        // Declare variables
+        File data = dir.toFile();
+        Map<Integer, List<HistoryStore.Entry>> expected = new HashMap<>();
+        File tail, index;
+
+        try (HistoryStore history = HistoryStore.open(data, MEMORY_ENTRIES, SEGMENT_SIZE)) {
+            append(history, expected, new SplittableRandom(11));
+        }
+        tail = lastFile(data, ".seg");
+        index = new File(data, tail.getName().replace(".seg", ".idx"));
+        long length = tail.length();
+
+        // A crash leaves the index behind, and half a chunk at the end
+        assertTrue(index.delete());
+        Files.write(tail.toPath(), new byte[] {0, 0, 1, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (HistoryStore history = HistoryStore.open(data, MEMORY_ENTRIES, SEGMENT_SIZE)) {
+            assertEquals(length, tail.length());
+            assertTrue(index.exists());
+            assertHistory(history, expected);
+        }
+    }
+
+    private static void append(HistoryStore history, Map<Integer, List<HistoryStore.Entry>> expected,
+                               SplittableRandom random) {
+        for (int i = 0; i < ENTRIES; i++) {
+            for (int id = 1; id <= ACCOUNTS; id++) {
+                HistoryStore.Kind kind = KINDS[random.nextInt(KINDS.length - 1) + 1];
+                long amount = random.nextLong(-1_000_00, 1_000_00), balance = random.nextLong(0, 1_000_000_00);
+                int other = kind == HistoryStore.Kind.CLOSE ? 0 : random.nextInt(ACCOUNTS + 1);
+                history.append(id, kind, amount, balance, other);
+                expected.computeIfAbsent(id, k -> new ArrayList<>())
+                        .add(new HistoryStore.Entry(0, kind, amount, balance, other));
+            }
+        }
+    }
+
+    private static void assertHistory(HistoryStore history, Map<Integer, List<HistoryStore.Entry>> expected)
+            throws IOException {
+        for (int id = 1; id <= ACCOUNTS; id++) {
+            List<HistoryStore.Entry> want = expected.get(id);
+            List<HistoryStore.Entry> latest = history.latest(id, Integer.MAX_VALUE);
+            List<HistoryStore.Entry> all = history.between(id, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+            Collections.reverse(latest);
+            assertEntries(want, latest);
+            assertEntries(want, all);
+            assertEntries(want.subList(want.size() - 5, want.size()), reversed(history.latest(id, 5)));
+        }
+    }
+
+    /**
+     * Checks entries read back against those added, which weren't
+     * timed yet, and that time never goes backwards.
+     */
+    private static void assertEntries(List<HistoryStore.Entry> want, List<HistoryStore.Entry> got) {
+        assertEquals(want.size(), got.size());
+        for (int i = 0; i < want.size(); i++) {
+            HistoryStore.Entry w = want.get(i), g = got.get(i);
+            assertEquals(w, new HistoryStore.Entry(0, g.kind(), g.amount(), g.balance(), g.otherID()));
+            if (i > 0)
+                assertTrue(got.get(i - 1).time() <= g.time());
+        }
+    }
+
+    private static List<HistoryStore.Entry> reversed(List<HistoryStore.Entry> entries) {
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    /**
+     * Checks that there are many segments, and each has its index.
+     */
+    private static void assertIndexed(File data) {
+        String[] segments = data.list((d, name) -> name.endsWith(".seg"));
+        assertNotNull(segments);
+        assertTrue(segments.length > 10, () -> "Only " + segments.length + " segments");
+        for (String segment : segments)
+            assertTrue(new File(data, segment.replace(".seg", ".idx")).exists(), () -> segment + " has no index");
+    }
+
+    private static File lastFile(File data, String suffix) {
+        String[] names = data.list((d, name) -> name.endsWith(suffix));
+        assertNotNull(names);
+        Arrays.sort(names);
+        return new File(data, names[names.length - 1]);
+    }
+}
@@ -0,0 +1,189 @@
+package com.jefftastic.genericbanking;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *  Runs many sessions against one ledger at once, then checks that
+ *  nothing was lost along the way:<br>
+ *  - Funds only move between a small set of core accounts, through
+ *    deposits, withdrawals and transfers, so their total has to come
+ *    out as the start plus everything deposited minus everything
+ *    withdrawn<br>
+ *  - Meanwhile, other accounts are opened, closed and renamed with
+ *    no funds in them, so the indexes and totals change under the
+ *    sessions without the total balance changing<br>
+ *  - Totals kept up to date have to match totals counted from every
+ *    account, both during the run and after it<br>
+ *  - Every account has to be found by its name, address and balance,
+ *    and nothing else is
+ */
+
+class LedgerStressTest {
+    // Declare constants
+    private static final int CORE_ACCOUNTS = 64;
+    private static final int CHURN_SLOTS = 256;
+    private static final int CHURN_NAMES = 40;
+    private static final long STARTING_BALANCE = 1_000_00;
+    private static final int THREADS = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int OPS_PER_THREAD = 40_000;
+
+    @Test
+    void concurrentSessionsConserveFundsAndKeepIndexesInStep() throws Exception {
+        // Declare variables
+        Ledger ledger = new Ledger(new ColumnarAccountStore());
+        LongAdder deposited = new LongAdder(), withdrawn = new LongAdder();
+        AtomicIntegerArray churn = new AtomicIntegerArray(CHURN_SLOTS);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> sessions = new ArrayList<>();
+        int[] core = new int[CORE_ACCOUNTS];
+        AtomicBoolean stop = new AtomicBoolean();
+
+        for (int i = 0; i < CORE_ACCOUNTS; i++)
+            core[i] = ledger.open("Core " + i, "Core Street " + i % 8, STARTING_BALANCE).getID();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            sessions.add(pool.submit(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                start.await();
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    int from = core[random.nextInt(CORE_ACCOUNTS)], to = core[random.nextInt(CORE_ACCOUNTS)];
+                    long amount = random.nextLong(1, 500_00);
+                    int op = random.nextInt(100);
+                    if (op < 45) {
+                        if (from != to)
+                            assertNotEquals(Ledger.CLOSED, ledger.transfer(from, to, amount));
+                    } else if (op < 55) {
+                        // Batches take their locks once per pair of stripes
+                        List<Ledger.Transfer> batch = new ArrayList<>();
+                        for (int j = 0; j < 8; j++) {
+                            int a = core[random.nextInt(CORE_ACCOUNTS)], b = core[random.nextInt(CORE_ACCOUNTS)];
+                            if (a != b)
+                                batch.add(new Ledger.Transfer(a, b, random.nextLong(1, 100_00)));
+                        }
+                        for (long balance : ledger.transferAll(batch))
+                            assertNotEquals(Ledger.CLOSED, balance);
+                    } else if (op < 65) {
+                        assertNotEquals(Ledger.CLOSED, ledger.deposit(from, amount));
+                        deposited.add(amount);
+                    } else if (op < 75) {
+                        assertNotEquals(Ledger.CLOSED, ledger.withdraw(from, amount));
+                        withdrawn.add(amount);
+                    } else {
+                        churn(ledger, churn, random);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        // Build the totals and indexes while sessions are running, and
+        // check the totals against every account every so often
+        Future<?> checker = pool.submit(() -> {
+            start.await();
+            ledger.getTotals();
+            ledger.findBalanceRange(Long.MIN_VALUE, Long.MAX_VALUE, 1);
+            while (!stop.get()) {
+                Ledger.TotalsCheck check = ledger.verifyTotals();
+                assertTrue(check.matches(), () -> "Totals drifted during the run: " + check);
+                Thread.sleep(5);
+            }
+            return null;
+        });
+
+        start.countDown();
+        for (Future<?> session : sessions)
+            session.get(5, TimeUnit.MINUTES);
+        stop.set(true);
+        checker.get(1, TimeUnit.MINUTES);
+        pool.shutdown();
+
+        // Funds were only ever moved among the core accounts
+        long expected = CORE_ACCOUNTS * STARTING_BALANCE + deposited.sum() - withdrawn.sum();
+        long coreTotal = 0;
+        for (int id : core)
+            coreTotal += ledger.get(id).getBalance();
+        assertEquals(expected, coreTotal);
+
+        // And the totals kept agree, with churned accounts holding nothing
+        Ledger.TotalsCheck check = ledger.verifyTotals();
+        assertTrue(check.matches(), () -> "Totals drifted: " + check);
+        assertEquals(expected, check.maintained().balance());
+        assertEquals(ledger.getStore().size(), check.maintained().accounts());
+
+        assertIndexesMatchStore(ledger);
+    }
+
+    /**
+     * Opens, closes or renames a churned account, none of which hold funds.
+     */
+    private static void churn(Ledger ledger, AtomicIntegerArray churn, SplittableRandom random) {
+        // Declare variables
+        int slot = random.nextInt(CHURN_SLOTS);
+        int id = churn.get(slot);
+        String name = "Churn " + random.nextInt(CHURN_NAMES);
+        String address = "Churn Road " + random.nextInt(CHURN_NAMES);
+
+        if (id == 0) {
+            // Only the session that takes the empty slot opens into it
+            int opened = ledger.open(name, address, 0).getID();
+            if (!churn.compareAndSet(slot, 0, opened))
+                ledger.close(opened);
+        } else if (random.nextBoolean()) {
+            if (churn.compareAndSet(slot, id, 0))
+                ledger.close(id);
+        } else {
+            // Storing over the ID renames the account, or reopens it if
+            // another session just closed it; the case changes now and then too
+            ledger.put(id, random.nextBoolean() ? name : name.toUpperCase(Locale.ROOT), address, 0);
+        }
+    }
+
+    /**
+     * Checks that every account is found by its name, address and
+     * balance, and that nothing is found that isn't there anymore.
+     */
+    private static void assertIndexesMatchStore(Ledger ledger) {
+        // Declare variables
+        AccountStore store = ledger.getStore();
+        Set<String> names = new HashSet<>(), addresses = new HashSet<>();
+        int[] foundByName = {0}, foundByAddress = {0};
+
+        store.forEach(acc -> {
+            names.add(acc.getName().toLowerCase(Locale.ROOT));
+            addresses.add(acc.getAddress().toLowerCase(Locale.ROOT));
+        });
+        for (String name : names) {
+            List<Account> found = ledger.find(name);
+            for (Account acc : found)
+                assertTrue(acc.getName().equalsIgnoreCase(name), () -> acc.getID() + " found under " + name);
+            foundByName[0] += found.size();
+        }
+        for (String address : addresses) {
+            List<Account> found = ledger.findAddress(address);
+            for (Account acc : found)
+                assertTrue(acc.getAddress().equalsIgnoreCase(address), () -> acc.getID() + " found at " + address);
+            foundByAddress[0] += found.size();
+        }
+
+        // Each account was found once by its name and once by its address
+        assertEquals(store.size(), foundByName[0]);
+        assertEquals(store.size(), foundByAddress[0]);
+        assertEquals(store.size(), ledger.findBalanceRange(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+
+        // Churned accounts never held funds
+        store.forEach(acc -> {
+            if (acc.getName().toLowerCase(Locale.ROOT).startsWith("churn"))
+                assertEquals(0, acc.getBalance(), () -> "Churned account " + acc.getID() + " holds funds");
+        });
+    }
+}
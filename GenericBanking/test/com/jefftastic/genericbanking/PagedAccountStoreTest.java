@@ -0,0 +1,174 @@
+package com.jefftastic.genericbanking;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *  Saves accounts to a data directory and opens it lazily, then puts
+ *  accounts over their IDs with other names and addresses, checking
+ *  that:<br>
+ *  - The new name, address and balance are read back, before and
+ *    after saving and opening the directory again<br>
+ *  - Names are found under their new spelling only<br>
+ *  - Every account is still counted, and only once<br>
+ *  Then closes accounts without saving, the way a crash would leave
+ *  them, checking that they're counted from the shards on the next
+ *  start, and from the manifest once saved. Lastly runs sessions
+ *  while saving over and over, checking that no funds or accounts
+ *  are lost.
+ */
+
+class PagedAccountStoreTest {
+    // Declare constants
+    private static final int ACCOUNTS = 1_000;
+    private static final int CACHE_SIZE = 16;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 20_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void putKeepsNewNamesAndAddresses() throws Exception {
+        // Declare variables
+        File data = dir.toFile();
+        ColumnarAccountStore saved = new ColumnarAccountStore();
+        PagedAccountStore store;
+
+        for (int id = 1; id <= ACCOUNTS; id++)
+            saved.put(new Account(id, "Name " + id, "Street " + id, id * 100L));
+        ShardStorage.save(saved, data, 4);
+
+        store = PagedAccountStore.open(data, CACHE_SIZE);
+        store.put(new Account(ACCOUNTS + 1, "Fresh", "Fresh Street", 5));
+
+        // A saved account, one only in memory, and a case-only change
+        store.put(new Account(7, "Renamed", "Moved Street", 700));
+        store.put(new Account(ACCOUNTS + 1, "Fresher", "Fresher Street", 6));
+        store.put(new Account(9, "NAME 9", "Street 9", 900));
+        assertPut(store);
+
+        // Saving writes the changes out, and reopening reads them back
+        ShardStorage.save(store, data, 4);
+        assertPut(store);
+        assertPut(PagedAccountStore.open(data, CACHE_SIZE));
+    }
+
+    @Test
+    void closingWithoutSavingIsCountedOnTheNextStart() throws Exception {
+        // Declare variables
+        File data = dir.toFile();
+        PagedAccountStore store;
+
+        ShardStorage.save(saved(), data, 4);
+        assertEquals(ACCOUNTS, ShardStorage.accounts(ShardStorage.readManifest(data)));
+
+        // Closing in place leaves the manifest's count behind
+        store = PagedAccountStore.open(data, CACHE_SIZE);
+        for (int id = 1; id <= 3; id++)
+            assertTrue(store.remove(id));
+        assertEquals(ShardStorage.UNCOUNTED, ShardStorage.accounts(ShardStorage.readManifest(data)));
+        assertEquals(ACCOUNTS - 3, PagedAccountStore.open(data, CACHE_SIZE).size());
+
+        // Saving counts them again
+        store.put(new Account(ACCOUNTS + 1, "Fresh", "Fresh Street", 5));
+        store.flush();
+        assertEquals(ACCOUNTS - 2, ShardStorage.accounts(ShardStorage.readManifest(data)));
+        assertEquals(ACCOUNTS - 2, PagedAccountStore.open(data, CACHE_SIZE).size());
+    }
+
+    @Test
+    void sessionsCarryOnWhileSaving() throws Exception {
+        // Declare variables
+        File data = dir.toFile();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> sessions = new ArrayList<>();
+        AtomicInteger opened = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        PagedAccountStore store;
+        Ledger ledger;
+
+        ShardStorage.save(saved(), data, 4);
+        store = PagedAccountStore.open(data, CACHE_SIZE);
+        ledger = new Ledger(store);
+        long total = store.totalBalance();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            sessions.add(pool.submit(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                for (int i = 0; i < OPS_PER_THREAD; i++) {
+                    int from = random.nextInt(1, ACCOUNTS + 1), to = random.nextInt(1, ACCOUNTS + 1);
+                    if (i % 100 == 0) {
+                        // New accounts are written out by the saves below
+                        int id = ledger.open("Session " + seed, "Session Street", 0).getID();
+                        opened.incrementAndGet();
+                        assertEquals(0, ledger.getStore().getBalance(id));
+                    } else if (from != to)
+                        assertNotEquals(Ledger.CLOSED, ledger.transfer(from, to, random.nextLong(1, 100)));
+                }
+                return null;
+            }));
+        }
+
+        Future<?> saver = Executors.newSingleThreadExecutor().submit(() -> {
+            while (!done.get())
+                store.flush();
+            return null;
+        });
+        try {
+            for (Future<?> session : sessions)
+                session.get(1, TimeUnit.MINUTES);
+        } finally {
+            done.set(true);
+            pool.shutdown();
+        }
+        saver.get(1, TimeUnit.MINUTES);
+
+        assertEquals(total, store.totalBalance());
+        assertEquals(ACCOUNTS + opened.get(), store.size());
+        store.flush();
+        PagedAccountStore reopened = PagedAccountStore.open(data, CACHE_SIZE);
+        assertEquals(total, reopened.totalBalance());
+        assertEquals(ACCOUNTS + opened.get(), reopened.size());
+    }
+
+    private static ColumnarAccountStore saved() {
+        ColumnarAccountStore saved = new ColumnarAccountStore();
+        for (int id = 1; id <= ACCOUNTS; id++)
+            saved.put(new Account(id, "Name " + id, "Street " + id, id * 100L));
+        return saved;
+    }
+
+    private static void assertPut(PagedAccountStore store) {
+        assertEquals("Renamed", store.get(7).getName());
+        assertEquals("Moved Street", store.get(7).getAddress());
+        assertEquals(700, store.get(7).getBalance());
+        assertEquals("Fresher Street", store.get(ACCOUNTS + 1).getAddress());
+        assertEquals("NAME 9", store.get(9).getName());
+
+        assertArrayEquals(new int[] {7}, store.names().find("renamed"));
+        assertArrayEquals(new int[0], store.names().find("Name 7"));
+        assertArrayEquals(new int[] {ACCOUNTS + 1}, store.names().find("Fresher"));
+        assertArrayEquals(new int[0], store.names().find("Fresh"));
+        assertArrayEquals(new int[] {9}, store.names().find("name 9"));
+
+        // Every account is still there once
+        int[] count = {0};
+        store.forEach(acc -> count[0]++);
+        assertEquals(ACCOUNTS + 1, store.size());
+        assertEquals(ACCOUNTS + 1, count[0]);
+        assertEquals(100L * ACCOUNTS * (ACCOUNTS + 1) / 2 + 6, store.totalBalance());
+    }
+}
@@ -0,0 +1,50 @@
+package com.jefftastic.genericbanking;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *  Checkpoints a store that wasn't read from a data directory, the
+ *  way a start from a snapshot or CSV does, checking that:<br>
+ *  - The first checkpoint writes every shard<br>
+ *  - Later checkpoints only write the shard that changed
+ */
+
+class ShardStorageTest {
+    // Declare constants
+    private static final int ACCOUNTS = 1_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void laterCheckpointsOnlyWriteChangedShards() throws Exception {
+        // Declare variables
+        File data = dir.resolve("data").toFile();
+        ColumnarAccountStore accounts = new ColumnarAccountStore();
+        Ledger ledger;
+
+        for (int id = 1; id <= ACCOUNTS; id++)
+            accounts.put(new Account(id, "Name " + id, "Street " + id, id * 100L));
+        ledger = new Ledger(Database.shardAccountStore(accounts));
+
+        ShardStorage.checkpoint(ledger, data, Database.DEFAULT_SHARDS, () -> 0);
+        for (int i = 0; i < Database.DEFAULT_SHARDS; i++)
+            assertTrue(ShardStorage.shardFile(data, i).exists(), "Shard " + i + " wasn't written");
+
+        // Shards that are written again show up where they were deleted
+        for (int i = 0; i < Database.DEFAULT_SHARDS; i++)
+            assertTrue(ShardStorage.shardFile(data, i).delete());
+        ledger.deposit(7, 1_00);
+        ShardStorage.checkpoint(ledger, data, Database.DEFAULT_SHARDS, () -> 0);
+
+        int changed = ShardedAccountStore.shardOf(7, Integer.numberOfTrailingZeros(Database.DEFAULT_SHARDS));
+        for (int i = 0; i < Database.DEFAULT_SHARDS; i++)
+            assertEquals(i == changed, ShardStorage.shardFile(data, i).exists(), "Shard " + i);
+    }
+}